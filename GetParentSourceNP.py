@@ -1,17 +1,40 @@
 from chembl_structure_pipeline import standardizer
 import sys
 from rdkit import Chem
+from rdkit import RDLogger
 
 
-def main():
-    smiles_to_uncharge = sys.argv[1]
-    mol = Chem.MolFromSmiles(smiles_to_uncharge)
+def parent_smiles(smiles):
+    mol = Chem.MolFromSmiles(smiles)
 
     pmol = standardizer.get_parent_mol(mol, verbose=False)
-    print(Chem.MolToSmiles(pmol[0]))
+    return Chem.MolToSmiles(pmol[0])
+
+
+def serve():
+    # line mode for the Java standardiser pool: one SMILES per request line,
+    # one "OK<tab>SMILES" or "ERR<tab>message" per response line, in the same order
+    RDLogger.DisableLog('rdApp.*')
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            break
+        smiles = line.strip()
+        try:
+            response = 'OK\t' + parent_smiles(smiles)
+        except Exception as e:
+            response = 'ERR\t' + str(e).replace('\n', ' ')
+        sys.stdout.write(response + '\n')
+        sys.stdout.flush()
+
+
+def main():
+    if len(sys.argv) > 1 and sys.argv[1] == '--stdin':
+        serve()
+    else:
+        print(parent_smiles(sys.argv[1]))
 
 
 
 if __name__ == '__main__':
     main()
-
@@ -1,7 +1,13 @@
 package de.unijena.cheminf.npopensourcecollector;
 
 import com.mongodb.MongoClientOptions;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPDatabase;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
+import de.unijena.cheminf.npopensourcecollector.readers.IngestionScheduler;
 import de.unijena.cheminf.npopensourcecollector.readers.ReaderService;
+import de.unijena.cheminf.npopensourcecollector.readers.SourceNaturalProductWriter;
 import de.unijena.cheminf.npopensourcecollector.services.*;
 import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,9 +16,12 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.exit;
@@ -23,6 +32,17 @@ public class NpOpenSourceCollectorApplication implements CommandLineRunner {
     @Autowired
     ReaderService readerService;
 
+    @Autowired
+    IngestionScheduler ingestionScheduler;
+
+    @Autowired
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+
+    @Autowired
+    InChICache inchiCache;
+
+    @Autowired
+    IngestionMetrics ingestionMetrics;
 
     @Autowired
     NPUnificationService npUnificationService;
@@ -42,6 +62,24 @@ public class NpOpenSourceCollectorApplication implements CommandLineRunner {
     @Autowired
     SimilarityComputationService similarityComputationService;
 
+    @Autowired
+    LocalitySensitiveHashingService localitySensitiveHashingService;
+
+    @Autowired
+    SimilaritySearchService similaritySearchService;
+
+    @Autowired
+    SimilarityWorkQueueService similarityWorkQueueService;
+
+    @Autowired
+    ClusteringService clusteringService;
+
+    @Autowired
+    SubstructureScreeningService substructureScreeningService;
+
+    @Autowired
+    SubstructureSearchService substructureSearchService;
+
     @Autowired
     UpdaterService updaterService;
 
@@ -144,6 +182,171 @@ public class NpOpenSourceCollectorApplication implements CommandLineRunner {
             }
             else if(args[0].equals("runOnlySimilarity")){
                 //compute similarities between natural products
+                if(Arrays.asList(args).contains("threshold")){
+                    int index_of_threshold = Arrays.asList(args).indexOf("threshold")+1;
+                    similarityComputationService.setSimilarityThreshold(Double.parseDouble(args[index_of_threshold]));
+                }
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    similarityComputationService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                if(Arrays.asList(args).contains("coconutId")){
+                    int index_of_id = Arrays.asList(args).indexOf("coconutId")+1;
+                    similarityComputationService.computeSimilaritiesFor(args[index_of_id]);
+                }else if(Arrays.asList(args).contains("graphFile")){
+                    int index_of_file = Arrays.asList(args).indexOf("graphFile")+1;
+                    int scoreBits = 16;
+                    if(Arrays.asList(args).contains("scoreBits")){
+                        int index_of_bits = Arrays.asList(args).indexOf("scoreBits")+1;
+                        scoreBits = Integer.parseInt(args[index_of_bits]);
+                    }
+                    similarityComputationService.computeAllPairsToGraphFile(40, args[index_of_file], scoreBits);
+                }else {
+                    similarityComputationService.setRestartFromScratch(Arrays.asList(args).contains("fresh"));
+                    similarityComputationService.computeAllPairsInMemory(40);
+                }
+            }
+            else if(args[0].equals("similarityGraphNeighbours")){
+                //neighbours of a natural product in a similarity graph file written by runOnlySimilarity graphFile
+                try {
+                    SimilarityGraphFile graph = SimilarityGraphFile.open(Paths.get(args[1]));
+                    int node = graph.getNode(args[2]);
+                    if(node < 0){
+                        System.out.println("Could not find "+args[2]);
+                    }else {
+                        for (int k = 0; k < graph.degree(node); k++) {
+                            System.out.println(graph.getCoconutId(graph.neighbour(node, k)) + "\t" + graph.tanimoto(node, k));
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            else if(args[0].equals("runSimilarityWorker")){
+                //one of several processes sharing the similarity tiles through the similarityTile collection
+                if(Arrays.asList(args).contains("threshold")){
+                    int index_of_threshold = Arrays.asList(args).indexOf("threshold")+1;
+                    similarityComputationService.setSimilarityThreshold(Double.parseDouble(args[index_of_threshold]));
+                }
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    similarityComputationService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                if(Arrays.asList(args).contains("leaseMinutes")){
+                    int index_of_lease = Arrays.asList(args).indexOf("leaseMinutes")+1;
+                    similarityWorkQueueService.setLeaseMinutes(Long.parseLong(args[index_of_lease]));
+                }
+                int nbThreads = 40;
+                if(Arrays.asList(args).contains("threads")){
+                    int index_of_threads = Arrays.asList(args).indexOf("threads")+1;
+                    nbThreads = Integer.parseInt(args[index_of_threads]);
+                }
+                similarityWorkQueueService.runWorker(nbThreads);
+            }
+            else if(args[0].equals("similaritySearch")){
+                //most similar natural products of a SMILES query
+                int topN = 10;
+                if(Arrays.asList(args).contains("top")){
+                    int index_of_top = Arrays.asList(args).indexOf("top")+1;
+                    topN = Integer.parseInt(args[index_of_top]);
+                }
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    similaritySearchService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                similaritySearchService.buildIndex();
+
+                long start = System.nanoTime();
+                List<SimilarityHit> hits = similaritySearchService.search(args[1], topN);
+                System.out.println("Search done in "+(System.nanoTime()-start)/1000000+" ms");
+
+                for(SimilarityHit hit : hits){
+                    System.out.println(hit.getCoconut_id()+"\t"+hit.getTanimoto());
+                }
+            }
+            else if(args[0].equals("substructureScreen")){
+                //natural products whose fingerprint has all the bits of a SMILES query
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    substructureScreeningService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                substructureScreeningService.buildIndex();
+
+                long start = System.nanoTime();
+                List<String> candidates = substructureScreeningService.screenCoconutIds(args[1]);
+                System.out.println("Screening done in "+(System.nanoTime()-start)/1000000+" ms, candidates: "+candidates.size());
+            }
+            else if(args[0].equals("substructureSearch")){
+                //natural products containing a SMILES query, printed as they are found
+                if(Arrays.asList(args).contains("limit")){
+                    int index_of_limit = Arrays.asList(args).indexOf("limit")+1;
+                    substructureSearchService.setMaxHits(Integer.parseInt(args[index_of_limit]));
+                }
+                if(Arrays.asList(args).contains("seconds")){
+                    int index_of_seconds = Arrays.asList(args).indexOf("seconds")+1;
+                    substructureSearchService.setTimeBudgetMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(args[index_of_seconds])));
+                }
+                substructureScreeningService.buildIndex();
+                if(Arrays.asList(args).contains("preparse")){
+                    substructureSearchService.preparseAll();
+                }
+                substructureSearchService.search(args[1], System.out::println);
+            }
+            else if(args[0].equals("runNearestNeighbours")){
+                //k most similar natural products of each natural product
+                if(Arrays.asList(args).contains("k")){
+                    int index_of_k = Arrays.asList(args).indexOf("k")+1;
+                    similarityComputationService.setNumberOfNeighbours(Integer.parseInt(args[index_of_k]));
+                }
+                if(Arrays.asList(args).contains("minSimilarity")){
+                    int index_of_min = Arrays.asList(args).indexOf("minSimilarity")+1;
+                    similarityComputationService.setNeighbourMinimumSimilarity(Double.parseDouble(args[index_of_min]));
+                }
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    similarityComputationService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                similarityComputationService.computeNearestNeighbours(40);
+            }
+            else if(args[0].equals("runClustering")){
+                //Taylor-Butina clustering of the natural products on their stored fingerprints
+                if(Arrays.asList(args).contains("cutoff")){
+                    int index_of_cutoff = Arrays.asList(args).indexOf("cutoff")+1;
+                    clusteringService.setClusteringCutoff(Double.parseDouble(args[index_of_cutoff]));
+                }
+                if(Arrays.asList(args).contains("fingerprint")){
+                    int index_of_fingerprint = Arrays.asList(args).indexOf("fingerprint")+1;
+                    similarityComputationService.setFingerprintType(FingerprintType.fromName(args[index_of_fingerprint]));
+                }
+                clusteringService.doWork(40);
+            }
+            else if(args[0].equals("runLSHSimilarity")){
+                //approximate similarities between natural products with MinHash LSH on the stored fingerprints
+                List<String> argList = Arrays.asList(args);
+                if(argList.contains("bands")){
+                    localitySensitiveHashingService.setNumberOfBands(Integer.parseInt(args[argList.indexOf("bands")+1]));
+                }
+                if(argList.contains("rows")){
+                    localitySensitiveHashingService.setRowsPerBand(Integer.parseInt(args[argList.indexOf("rows")+1]));
+                }
+                if(argList.contains("threshold")){
+                    localitySensitiveHashingService.setSimilarityThreshold(Double.parseDouble(args[argList.indexOf("threshold")+1]));
+                }
+                if(argList.contains("recall")){
+                    localitySensitiveHashingService.setTargetRecall(Double.parseDouble(args[argList.indexOf("recall")+1]));
+                }
+                if(argList.contains("fingerprint")){
+                    localitySensitiveHashingService.setFingerprintType(FingerprintType.fromName(args[argList.indexOf("fingerprint")+1]));
+                }
+
+                if(argList.contains("recallSample")){
+                    localitySensitiveHashingService.doRecallEvaluation(40, Integer.parseInt(args[argList.indexOf("recallSample")+1]));
+                }else {
+                    localitySensitiveHashingService.doWork(40);
+                }
+            }
+            else if(args[0].equals("runOnlySimilarityPairwise")){
+                //old pair by pair computation of similarities between natural products
                 similarityComputationService.generateAllPairs();
                 // //similarityComputationService.computeSimilarities();
                 similarityComputationService.doParallelizedWork(40);
@@ -205,8 +408,37 @@ public class NpOpenSourceCollectorApplication implements CommandLineRunner {
                 if (canContinue) {
                     //insert in mongodb
 
+                    if(Arrays.asList(args).contains("ingestionThreads")) {
+                        ingestionScheduler.setParallelism(Integer.parseInt(args[Arrays.asList(args).indexOf("ingestionThreads")+1]));
+                    }
+                    if(Arrays.asList(args).contains("fileReaders")) {
+                        readerService.setFileReaderThreads(Integer.parseInt(args[Arrays.asList(args).indexOf("fileReaders")+1]));
+                    }
+                    if(Arrays.asList(args).contains("insertBatchSize")) {
+                        sourceNaturalProductWriter.setBatchSize(Integer.parseInt(args[Arrays.asList(args).indexOf("insertBatchSize")+1]));
+                    }
+                    if(Arrays.asList(args).contains("inchiCacheSize")) {
+                        inchiCache.setMaximumSize(Long.parseLong(args[Arrays.asList(args).indexOf("inchiCacheSize")+1]));
+                    }
+                    if(Arrays.asList(args).contains("unificationThreads")) {
+                        npUnificationService.setThreads(Integer.parseInt(args[Arrays.asList(args).indexOf("unificationThreads")+1]));
+                    }
+                    if(Arrays.asList(args).contains("metricsSummary")) {
+                        ingestionMetrics.setSummaryFile(args[Arrays.asList(args).indexOf("metricsSummary")+1]);
+                    }
+
 
-                    mongoTemplate.getDb().drop();
+                    if(Arrays.asList(args).contains("incremental")) {
+                        //the source NPs and the list of read files are kept, everything computed from them is rebuilt
+                        for(String collection : mongoTemplate.getCollectionNames()){
+                            if(!collection.equals(mongoTemplate.getCollectionName(SourceNaturalProduct.class)) && !collection.equals(mongoTemplate.getCollectionName(NPDatabase.class))){
+                                mongoTemplate.dropCollection(collection);
+                            }
+                        }
+                        readerService.setIncremental(true);
+                    }else {
+                        mongoTemplate.getDb().drop();
+                    }
 
                     readerService.readMolecularFilesAndInsertInMongo();
 
@@ -0,0 +1,157 @@
+package de.unijena.cheminf.npopensourcecollector.misc;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import net.sf.jniinchi.INCHI_OPTION;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.inchi.InChIGenerator;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SIMPLE_INCHI and SIMPLE_INCHIKEY of the curated molecules, shared by all the readers: the same compound is found in
+ * many sources, and computing its InChI again through JNI is much more expensive than writing its SMILES.
+ * Molecules are keyed by their unique SMILES with isotopes, which identifies them as well as a standard InChI without
+ * stereochemistry does. The least recently used entries are evicted beyond maximumSize.
+ */
+@Service
+public class InChICache {
+
+    @Autowired
+    IngestionMetrics ingestionMetrics;
+
+
+    private long maximumSize = 200000;
+
+    private Cache<String, String[]> cache;
+
+    //SmilesGenerator instances are not thread safe
+    private final ThreadLocal<SmilesGenerator> keyGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Unique | SmiFlavor.AtomicMass));
+
+
+    private synchronized Cache<String, String[]> cache(){
+        if(cache == null){
+            cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+            GuavaCacheMetrics.monitor(ingestionMetrics.getRegistry(), cache, "inchi");
+        }
+        return cache;
+    }
+
+
+    /**
+     * Sets the SIMPLE_INCHI and SIMPLE_INCHIKEY properties of the molecule. When the InChI cannot be generated, the
+     * unset bond orders are set to single and the generation is tried again; the CDKException of that second try is
+     * thrown.
+     */
+    public void addSimpleInchi(IAtomContainer molecule) throws CDKException {
+        String key = key(molecule);
+        String[] inchi = key == null ? null : cache().getIfPresent(key);
+        if(inchi == null){
+            long start = System.nanoTime();
+            inchi = generate(molecule);
+            ingestionMetrics.record(molecule, IngestionMetrics.Stage.INCHI, start);
+            if(key != null && inchi[0] != null){
+                cache().put(key, inchi);
+            }
+        }
+        molecule.setProperty("SIMPLE_INCHI", inchi[0]);
+        molecule.setProperty("SIMPLE_INCHIKEY", inchi[1]);
+    }
+
+
+    /**
+     * Null for the molecules that are not cached: those with unset bond orders, which are changed by the generation,
+     * and those without SMILES
+     */
+    private String key(IAtomContainer molecule){
+        for(IBond bond : molecule.bonds()){
+            if(bond.getOrder() == null || bond.getOrder() == IBond.Order.UNSET){
+                return null;
+            }
+        }
+        try {
+            return keyGenerator.get().create(molecule);
+        } catch (CDKException | RuntimeException e) {
+            return null;
+        }
+    }
+
+
+    private String[] generate(IAtomContainer molecule) throws CDKException {
+        List options = new ArrayList();
+        options.add(INCHI_OPTION.SNon);
+        options.add(INCHI_OPTION.ChiralFlagOFF);
+        options.add(INCHI_OPTION.AuxNone);
+        try {
+            InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options);
+            return new String[]{gen.getInchi(), gen.getInchiKey()};
+        } catch (CDKException e) {
+            for(IBond bond : molecule.bonds()){
+                if(bond.getOrder() == IBond.Order.UNSET){
+                    bond.setOrder(IBond.Order.SINGLE);
+                }
+            }
+            InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options);
+            return new String[]{gen.getInchi(), gen.getInchiKey()};
+        }
+    }
+
+
+    public void printStatistics(){
+        CacheStats stats = cache().stats();
+        if(stats.requestCount() > 0) {
+            System.out.println("InChI cache: " + stats.hitCount() + " hits, " + stats.missCount() + " misses ("
+                    + String.format("%.1f", stats.hitRate() * 100) + "% hit rate), " + cache().size() + " entries, "
+                    + stats.evictionCount() + " evicted");
+        }
+    }
+
+
+    public Map<String, Object> statistics(){
+        CacheStats stats = cache().stats();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("entries", cache().size());
+        statistics.put("evictions", stats.evictionCount());
+        return statistics;
+    }
+
+
+    public long getHitCount(){
+        return cache().stats().hitCount();
+    }
+
+    public long getMissCount(){
+        return cache().stats().missCount();
+    }
+
+    public double getHitRate(){
+        return cache().stats().hitRate();
+    }
+
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Takes effect only if set before the first molecule is read
+     */
+    public synchronized void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+}
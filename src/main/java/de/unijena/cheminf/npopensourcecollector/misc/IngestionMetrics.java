@@ -0,0 +1,222 @@
+package de.unijena.cheminf.npopensourcecollector.misc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer timers and counters of the ingestion, tagged by source: time spent in each Stage of the processing of
+ * a molecule, records read, saved and left unchanged, and molecules rejected by Rejection reason.
+ * The readers, the MoleculeChecker, the InChICache and the SourceNaturalProductWriter record into one registry,
+ * which is written as a JSON summary at the end of the run.
+ */
+@Service
+public class IngestionMetrics {
+
+    public enum Stage { PARSE, CURATION, STANDARDISATION, HYDROGENS, INCHI, SAVE }
+
+    public enum Rejection { PARSE_ERROR, STRANGE_ELEMENTS, NO_STRUCTURE, TOO_SMALL, TOO_LARGE, SANITISATION_FAILED, FORBIDDEN_INCHIKEY, ERROR }
+
+
+    private static final String STAGE_TIMER = "coconut.ingestion.stage";
+
+    private static final String RECORDS_COUNTER = "coconut.ingestion.records";
+
+    private static final String REJECTIONS_COUNTER = "coconut.ingestion.rejections";
+
+    private static final String UNKNOWN_SOURCE = "unknown";
+
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    //meters are looked up for every molecule, the registry would build a new id each time
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final LocalDateTime startedAt = LocalDateTime.now();
+
+    private String summaryFile = "ingestion_summary.json";
+
+
+
+    /**
+     * Time since start (System.nanoTime) spent in the stage for a molecule or a batch of the source
+     */
+    public void record(String source, Stage stage, long startNanos){
+        timer(source(source), stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Same as record, with the source of the molecule
+     */
+    public void record(IAtomContainer molecule, Stage stage, long startNanos){
+        record(sourceOf(molecule), stage, startNanos);
+    }
+
+    public void recordRead(String source){
+        counter(RECORDS_COUNTER, source(source), "outcome", "read").increment();
+    }
+
+    public void recordSaved(String source, long count){
+        counter(RECORDS_COUNTER, source(source), "outcome", "saved").increment(count);
+    }
+
+    public void recordUnchanged(String source){
+        counter(RECORDS_COUNTER, source(source), "outcome", "unchanged").increment();
+    }
+
+    /**
+     * A molecule kept without its parent from the python standardiser, which failed on it or timed out
+     */
+    public void recordNoParent(IAtomContainer molecule){
+        counter(RECORDS_COUNTER, source(sourceOf(molecule)), "outcome", "no_parent").increment();
+    }
+
+    public void recordRejection(String source, Rejection reason){
+        counter(REJECTIONS_COUNTER, source(source), "reason", reason.name().toLowerCase()).increment();
+    }
+
+    public void recordRejection(IAtomContainer molecule, Rejection reason){
+        recordRejection(sourceOf(molecule), reason);
+    }
+
+
+    private String sourceOf(IAtomContainer molecule){
+        Object source = molecule.getProperty("SOURCE");
+        return source == null ? null : source.toString();
+    }
+
+    private String source(String source){
+        return source == null ? UNKNOWN_SOURCE : source;
+    }
+
+
+    private Timer timer(String source, Stage stage){
+        return timers.computeIfAbsent(source + "|" + stage, k -> Timer.builder(STAGE_TIMER)
+                .tags("source", source, "stage", stage.name().toLowerCase())
+                .publishPercentiles(0.5, 0.95, 0.99)
+                // maximum and percentiles over the whole run, not only its last minutes
+                .distributionStatisticExpiry(Duration.ofDays(7))
+                .register(registry));
+    }
+
+    private Counter counter(String name, String source, String tag, String value){
+        return counters.computeIfAbsent(name + "|" + source + "|" + value, k -> Counter.builder(name)
+                .tags("source", source, tag, value)
+                .register(registry));
+    }
+
+
+
+    /**
+     * Summary of all the meters by source; the curation time includes the standardisation and hydrogens times
+     */
+    public Map<String, Object> summary(){
+        Map<String, Map<String, Object>> sources = new TreeMap<>();
+
+        for(Meter meter : registry.getMeters()){
+            String source = meter.getId().getTag("source");
+            if(source == null){
+                // not an ingestion meter, e.g. the InChI cache gauges
+                continue;
+            }
+            Map<String, Object> sourceSummary = sources.computeIfAbsent(source, s -> new LinkedHashMap<>());
+
+            if(meter instanceof Timer){
+                Timer timer = (Timer) meter;
+                Map<String, Object> stage = new LinkedHashMap<>();
+                stage.put("count", timer.count());
+                stage.put("totalMs", timer.totalTime(TimeUnit.MILLISECONDS));
+                stage.put("meanMs", timer.mean(TimeUnit.MILLISECONDS));
+                stage.put("maxMs", timer.max(TimeUnit.MILLISECONDS));
+                for(ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()){
+                    stage.put("p" + Math.round(percentile.percentile() * 100) + "Ms", percentile.value(TimeUnit.MILLISECONDS));
+                }
+                subMap(sourceSummary, "stages").put(meter.getId().getTag("stage"), stage);
+            }
+            else if(meter instanceof Counter){
+                if(meter.getId().getName().equals(REJECTIONS_COUNTER)){
+                    subMap(sourceSummary, "rejections").put(meter.getId().getTag("reason"), (long) ((Counter) meter).count());
+                }else{
+                    sourceSummary.put(meter.getId().getTag("outcome"), (long) ((Counter) meter).count());
+                }
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("startedAt", startedAt.toString());
+        summary.put("finishedAt", LocalDateTime.now().toString());
+        summary.put("sources", sources);
+        return summary;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> subMap(Map<String, Object> map, String key){
+        return (Map<String, Object>) map.computeIfAbsent(key, k -> new TreeMap<String, Object>());
+    }
+
+
+    /**
+     * Writes the summary as JSON, with extra top-level entries (e.g. the InChI cache statistics), and prints the
+     * time spent in each stage by source
+     */
+    @SuppressWarnings("unchecked")
+    public void writeSummary(Map<String, Object> extra){
+        Map<String, Object> summary = summary();
+        summary.putAll(extra);
+
+        for(Map.Entry<String, Map<String, Object>> source : ((Map<String, Map<String, Object>>) summary.get("sources")).entrySet()){
+            Map<String, Object> stages = (Map<String, Object>) source.getValue().getOrDefault("stages", new TreeMap<>());
+            StringBuilder times = new StringBuilder();
+            for(Stage stage : Stage.values()){
+                Map<String, Object> stageSummary = (Map<String, Object>) stages.get(stage.name().toLowerCase());
+                if(stageSummary != null){
+                    times.append(", ").append(stage.name().toLowerCase()).append(" ")
+                            .append(Math.round((Double) stageSummary.get("totalMs") / 1000)).append(" s");
+                }
+            }
+            Object noParent = source.getValue().get("no_parent");
+            System.out.println("Source "+source.getKey()+": read "+source.getValue().getOrDefault("read", 0L)
+                    +", saved "+source.getValue().getOrDefault("saved", 0L)
+                    +(noParent != null ? ", without parent standardisation "+noParent : "")+times);
+        }
+
+        try {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(summaryFile), summary);
+            System.out.println("Ingestion summary written to "+summaryFile);
+        } catch (IOException e) {
+            System.out.println("Could not write the ingestion summary to "+summaryFile+": "+e.getMessage());
+        }
+    }
+
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public String getSummaryFile() {
+        return summaryFile;
+    }
+
+    public void setSummaryFile(String summaryFile) {
+        this.summaryFile = summaryFile;
+    }
+}
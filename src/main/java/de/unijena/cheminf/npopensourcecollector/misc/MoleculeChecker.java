@@ -15,8 +15,6 @@ import org.openscience.cdk.tools.manipulator.AtomTypeManipulator;
 import org.springframework.stereotype.Service;
 
 import javax.sound.midi.SysexMessage;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -40,6 +38,10 @@ public class MoleculeChecker {
 
     MoleculeConnectivityChecker mcc;
 
+    ParentMoleculeStandardiser standardiser;
+
+    IngestionMetrics ingestionMetrics;
+
 
 
     public IAtomContainer checkMolecule(IAtomContainer molecule){
@@ -48,6 +50,8 @@ public class MoleculeChecker {
 
 
         mcc = BeanUtil.getBean(MoleculeConnectivityChecker.class);
+        standardiser = BeanUtil.getBean(ParentMoleculeStandardiser.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
 
         SmilesGenerator sg = new SmilesGenerator(SmiFlavor.Absolute);
         SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
@@ -74,12 +78,18 @@ public class MoleculeChecker {
                         nbheavyatoms++;
                     }
                 }
-                if(nbheavyatoms<= MIN_HEAVY_ATOM_COUNT || nbheavyatoms>=MAX_HEAVY_ATOM_COUNT){
+                if(nbheavyatoms<= MIN_HEAVY_ATOM_COUNT){
+                    ingestionMetrics.recordRejection(oriMol, IngestionMetrics.Rejection.TOO_SMALL);
+                    return null;
+                }
+                if(nbheavyatoms>=MAX_HEAVY_ATOM_COUNT){
+                    ingestionMetrics.recordRejection(oriMol, IngestionMetrics.Rejection.TOO_LARGE);
                     return null;
                 }
             }
             else{
 
+                ingestionMetrics.recordRejection(oriMol, IngestionMetrics.Rejection.NO_STRUCTURE);
                 return null;
             }
 
@@ -114,6 +124,7 @@ public class MoleculeChecker {
 
             if(molecule == null){
                 //System.out.println("No sanitization possible");
+                ingestionMetrics.recordRejection(oriMol, IngestionMetrics.Rejection.SANITISATION_FAILED);
                 return null;
             }
 /*
@@ -125,41 +136,34 @@ public class MoleculeChecker {
 */
             //Normalizing the ionization states
 
-            //python3 GetParentSourceNP.py "C[C@H](O)c1ccccc1"
-
+            //parent molecule from the pool of python GetParentSourceNP.py processes, charges only neutralised in Java if python cannot run or fails
+            String parentSmiles = null;
+            boolean smilesSent = false;
+            long standardisationStart = System.nanoTime();
             try {
-                //String command = "evaluate -e majorMicrospecies('7.4') "+sg.create(molecule);
-                String command = "python3 GetParentSourceNP.py "+sg.create(molecule);
-                Process process = Runtime.getRuntime().exec(command);
-
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(process.getInputStream()));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String correctSmi = line.replace("\n", "");
-                    if (!line.contains("Normalizer") && !line.contains("charge") && !line.equals("") ){
-
-                        System.out.println(correctSmi);
-
-                    try {
-                        molecule = sp.parseSmiles(correctSmi);
-                        molecule.setProperties(properties);
-                        molecule.setID(id);
-                    } catch (CDKException | IllegalArgumentException e) {
-                        e.printStackTrace();
-
-                        molecule = oriMol;
-                    }
-                }
-                }
-
-                reader.close();
-
+                String smiles = sg.create(molecule);
+                smilesSent = true;
+                parentSmiles = standardiser.standardise(smiles);
+            } catch (CDKException | IllegalArgumentException e) {
+                //no SMILES for this molecule, nothing to standardise
+            }
+            ingestionMetrics.record(oriMol, IngestionMetrics.Stage.STANDARDISATION, standardisationStart);
+            if (smilesSent && parentSmiles == null && standardiser.isAvailable()) {
+                //python could not process this molecule or timed out: the charges are neutralised in Java, as when python cannot run
+                ingestionMetrics.recordNoParent(oriMol);
+                molecule = standardiser.neutraliseCharges(molecule);
+            } else if (parentSmiles != null) {
+                try {
+                    molecule = sp.parseSmiles(parentSmiles);
+                    molecule.setProperties(properties);
+                    molecule.setID(id);
+                } catch (CDKException | IllegalArgumentException e) {
+                    e.printStackTrace();
 
-            }catch(Exception e){
-                System.out.println("Couldn't start Major Microscpecies calculation: something went wrong");
-                e.printStackTrace();
-                molecule = oriMol;
+                    molecule = oriMol;
+                }
+            } else if (!standardiser.isAvailable()) {
+                molecule = standardiser.neutraliseCharges(molecule);
             }
 
 
@@ -186,6 +190,7 @@ public class MoleculeChecker {
 
 
             // Addition of implicit hydrogens & atom typer
+            long hydrogensStart = System.nanoTime();
             CDKAtomTypeMatcher matcher = CDKAtomTypeMatcher.getInstance(molecule.getBuilder());
             for (int j = 0; j < molecule.getAtomCount(); j++) {
                 IAtom atom = molecule.getAtom(j);
@@ -210,6 +215,7 @@ public class MoleculeChecker {
 
             AtomContainerManipulator.convertImplicitToExplicitHydrogens(molecule);
             AtomContainerManipulator.removeNonChiralHydrogens(molecule);
+            ingestionMetrics.record(oriMol, IngestionMetrics.Stage.HYDROGENS, hydrogensStart);
 
 
 
@@ -243,6 +249,7 @@ public class MoleculeChecker {
 
             return molecule;
         }
+        ingestionMetrics.recordRejection(oriMol, IngestionMetrics.Rejection.STRANGE_ELEMENTS);
         return null;
     }
 
@@ -0,0 +1,322 @@
+package de.unijena.cheminf.npopensourcecollector.misc;
+
+import de.unijena.cheminf.npopensourcecollector.readers.IngestionScheduler;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parent molecules (ChEMBL structure pipeline) computed by long-lived GetParentSourceNP.py processes in line mode,
+ * instead of one python process per molecule. The processes are started on first use, up to one per ingestion
+ * thread, and lent to one caller at a time, callers wait while they are all busy; a process that crashes or does not
+ * answer in time is killed and replaced.
+ * When python cannot be started, standardise returns null, isAvailable turns false and the caller falls
+ * back on neutraliseCharges.
+ */
+@Service
+public class ParentMoleculeStandardiser {
+
+    private static final String OK = "OK\t";
+
+    private static final String ERROR = "ERR\t";
+
+    //pushed on the responses of a worker when its process closes its output
+    private static final String END_OF_STREAM = "\u0000";
+
+
+    private String pythonCommand = "python3";
+
+    private String script = "GetParentSourceNP.py";
+
+    @Autowired
+    IngestionScheduler ingestionScheduler;
+
+
+    //0: one process per thread of the ingestion scheduler
+    private int poolSize = 0;
+
+    private long timeoutMillis = 30000;
+
+    //consecutive processes stopping before their first answer, after which python is considered unavailable
+    private int maxFailedStarts = 3;
+
+
+    private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+
+    private final List<Worker> allWorkers = Collections.synchronizedList(new ArrayList<>());
+
+    private int startedWorkers = 0;
+
+    private int failedStarts = 0;
+
+    private volatile boolean unavailable = false;
+
+
+
+    /**
+     * SMILES of the parent molecule, null if it could not be computed by python
+     */
+    public String standardise(String smiles){
+        if(unavailable){
+            return null;
+        }
+        Worker worker = borrow();
+        if(worker == null){
+            return null;
+        }
+
+        String parent = null;
+        try {
+            worker.input.write(smiles.replace('\n', ' ').replace('\r', ' '));
+            worker.input.newLine();
+            worker.input.flush();
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while(true){
+                String line = worker.responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if(line == null || line.equals(END_OF_STREAM)){
+                    System.out.println(line == null ? "Standardiser process timed out, restarting it" : "Standardiser process stopped, restarting it");
+                    discard(worker, line != null);
+                    return null;
+                }
+                if(line.startsWith(OK)){
+                    parent = line.substring(OK.length());
+                    worker.answered = true;
+                    break;
+                }else if(line.startsWith(ERROR)){
+                    worker.answered = true;
+                    break;
+                }
+                // anything else is a message printed by a library, not a response
+            }
+        } catch (IOException e) {
+            System.out.println("Could not send the molecule to the standardiser process: "+e.getMessage());
+            discard(worker, true);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(worker, false);
+            return null;
+        }
+
+        idleWorkers.add(worker);
+        return parent;
+    }
+
+
+    /**
+     * False once python or the script failed to start several times in a row
+     */
+    public boolean isAvailable(){
+        return !unavailable;
+    }
+
+
+    /**
+     * An idle process, or a new one if the pool is not full; otherwise waits for one, as long as it takes: a busy
+     * pool is no reason to skip the standardisation. Null only once python is unavailable, or on interruption.
+     */
+    private Worker borrow(){
+        while(true) {
+            Worker worker = idleWorkers.poll();
+            if (worker != null) {
+                return worker;
+            }
+            synchronized (this) {
+                if (unavailable) {
+                    return null;
+                }
+                if (startedWorkers < getPoolSize()) {
+                    worker = start();
+                    if (worker != null) {
+                        startedWorkers++;
+                        return worker;
+                    }
+                    continue;
+                }
+            }
+            try {
+                // a discarded process frees a place in the pool without coming back to the idle ones, look again
+                worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (worker != null) {
+                return worker;
+            }
+        }
+    }
+
+
+    private Worker start(){
+        try {
+            Process process = new ProcessBuilder(pythonCommand, script, "--stdin")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            Worker worker = new Worker(process);
+            allWorkers.add(worker);
+            return worker;
+        } catch (IOException e) {
+            failedStart(e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Kills the process and frees its place in the pool. Only a process that exited by itself before its first
+     * answer counts as a failed start: a slow first molecule that timed out says nothing about python.
+     */
+    private void discard(Worker worker, boolean exited){
+        worker.process.destroyForcibly();
+        allWorkers.remove(worker);
+        synchronized (this){
+            startedWorkers--;
+            if(worker.answered){
+                failedStarts = 0;
+            }else if(exited){
+                // python runs but the script cannot, e.g. a missing module
+                failedStart("the process stopped before answering");
+            }
+        }
+    }
+
+
+    private synchronized void failedStart(String reason){
+        failedStarts++;
+        if(failedStarts >= maxFailedStarts && !unavailable){
+            unavailable = true;
+            System.out.println("Could not start "+pythonCommand+" "+script+", parent molecules are computed in Java: "+reason);
+        }
+    }
+
+
+
+    /**
+     * Fallback when python is not available: neutralises the charges that can be neutralised by adding or removing
+     * a hydrogen, as the ChEMBL uncharger does; charges of zwitterions and quaternary nitrogens are kept.
+     * Atom types are configured again by the caller.
+     */
+    public IAtomContainer neutraliseCharges(IAtomContainer molecule){
+        for(IAtom atom : molecule.atoms()){
+            Integer charge = atom.getFormalCharge();
+            if(charge == null || charge == 0 || hasChargedNeighbour(molecule, atom, -charge)){
+                continue;
+            }
+            int hydrogens = atom.getImplicitHydrogenCount() == null ? 0 : atom.getImplicitHydrogenCount();
+            if(charge > 0 && hydrogens >= charge){
+                atom.setImplicitHydrogenCount(hydrogens - charge);
+                atom.setFormalCharge(0);
+            }else if(charge < 0 && !atom.getSymbol().equals("C")){
+                atom.setImplicitHydrogenCount(hydrogens - charge);
+                atom.setFormalCharge(0);
+            }
+        }
+        return molecule;
+    }
+
+
+    private boolean hasChargedNeighbour(IAtomContainer molecule, IAtom atom, int sign){
+        for(IAtom neighbour : molecule.getConnectedAtomsList(atom)){
+            Integer charge = neighbour.getFormalCharge();
+            if(charge != null && Integer.signum(charge) == Integer.signum(sign)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    @PreDestroy
+    public void shutdown(){
+        synchronized (allWorkers){
+            for(Worker worker : allWorkers){
+                worker.process.destroy();
+            }
+        }
+    }
+
+
+
+    private static class Worker {
+
+        private final Process process;
+
+        private final BufferedWriter input;
+
+        private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+        private volatile boolean answered = false;
+
+
+        private Worker(Process process){
+            this.process = process;
+            this.input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+            // responses are read on their own thread, so that a caller can stop waiting for a stuck process
+            Thread reader = new Thread(() -> {
+                try(BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))){
+                    String line;
+                    while((line = output.readLine()) != null){
+                        responses.add(line);
+                    }
+                } catch (IOException e) {
+                    // the process was killed
+                }
+                responses.add(END_OF_STREAM);
+            }, "standardiser-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+
+
+    public String getPythonCommand() {
+        return pythonCommand;
+    }
+
+    public void setPythonCommand(String pythonCommand) {
+        this.pythonCommand = pythonCommand;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public void setScript(String script) {
+        this.script = script;
+    }
+
+    public int getPoolSize() {
+        return poolSize > 0 ? poolSize : ingestionScheduler.getParallelism();
+    }
+
+    /**
+     * 0 for one process per ingestion thread
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+}
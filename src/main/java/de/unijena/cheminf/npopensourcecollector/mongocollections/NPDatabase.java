@@ -19,6 +19,14 @@ public class NPDatabase {
 
     Integer nb_unique_molecules;
 
+    //source name given to the molecules of the file by its reader
+    String source;
+
+    //SHA-256 of the file content when it was last read completely
+    String fileHash;
+
+    Long fileSize;
+
 
     public String getId() {
         return id;
@@ -63,4 +71,28 @@ public class NPDatabase {
     public void setLocalFileName(String localFileName) {
         this.localFileName = localFileName;
     }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public void setFileHash(String fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
 }
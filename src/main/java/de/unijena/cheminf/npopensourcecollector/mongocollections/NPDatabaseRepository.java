@@ -3,4 +3,7 @@ package de.unijena.cheminf.npopensourcecollector.mongocollections;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
 public interface NPDatabaseRepository extends MongoRepository<NPDatabase, String> {
+
+    NPDatabase findByLocalFileName(String localFileName);
+
 }
@@ -0,0 +1,54 @@
+package de.unijena.cheminf.npopensourcecollector.mongocollections;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+
+@Document
+public class NPNeighbours {
+
+    //the coconut_id of the natural product, so that its neighbours are one read on _id
+    @Id
+    public String id;
+
+    public String uniqueNaturalProductID;
+
+    //most similar first
+    public ArrayList<String> neighbour_coconut_ids = new ArrayList<>();
+
+    public ArrayList<Double> tanimotos = new ArrayList<>();
+
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUniqueNaturalProductID() {
+        return uniqueNaturalProductID;
+    }
+
+    public void setUniqueNaturalProductID(String uniqueNaturalProductID) {
+        this.uniqueNaturalProductID = uniqueNaturalProductID;
+    }
+
+    public ArrayList<String> getNeighbour_coconut_ids() {
+        return neighbour_coconut_ids;
+    }
+
+    public void setNeighbour_coconut_ids(ArrayList<String> neighbour_coconut_ids) {
+        this.neighbour_coconut_ids = neighbour_coconut_ids;
+    }
+
+    public ArrayList<Double> getTanimotos() {
+        return tanimotos;
+    }
+
+    public void setTanimotos(ArrayList<Double> tanimotos) {
+        this.tanimotos = tanimotos;
+    }
+}
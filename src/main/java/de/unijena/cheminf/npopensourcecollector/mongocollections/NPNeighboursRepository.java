@@ -0,0 +1,6 @@
+package de.unijena.cheminf.npopensourcecollector.mongocollections;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface NPNeighboursRepository extends MongoRepository<NPNeighbours, String> {
+}
@@ -0,0 +1,107 @@
+package de.unijena.cheminf.npopensourcecollector.mongocollections;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * One tile of an all-vs-all similarity job: journal entry of a finished tile for a single process run,
+ * and work-queue item claimed with a lease when several workers share the job.
+ */
+@Document
+public class SimilarityTile {
+
+    //jobId:rowBlock:colBlock
+    @Id
+    public String id;
+
+    public String jobId;
+
+    public Integer rowBlock;
+
+    public Integer colBlock;
+
+    public Integer similarPairs;
+
+    public String status; // pending, claimed or done
+
+    public String owner;
+
+    public Date leaseExpires;
+
+    public Date finished;
+
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public Integer getRowBlock() {
+        return rowBlock;
+    }
+
+    public void setRowBlock(Integer rowBlock) {
+        this.rowBlock = rowBlock;
+    }
+
+    public Integer getColBlock() {
+        return colBlock;
+    }
+
+    public void setColBlock(Integer colBlock) {
+        this.colBlock = colBlock;
+    }
+
+    public Integer getSimilarPairs() {
+        return similarPairs;
+    }
+
+    public void setSimilarPairs(Integer similarPairs) {
+        this.similarPairs = similarPairs;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public Date getLeaseExpires() {
+        return leaseExpires;
+    }
+
+    public void setLeaseExpires(Date leaseExpires) {
+        this.leaseExpires = leaseExpires;
+    }
+
+    public Date getFinished() {
+        return finished;
+    }
+
+    public void setFinished(Date finished) {
+        this.finished = finished;
+    }
+}
@@ -0,0 +1,16 @@
+package de.unijena.cheminf.npopensourcecollector.mongocollections;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.List;
+
+public interface SimilarityTileRepository extends MongoRepository<SimilarityTile, String> {
+
+    List<SimilarityTile> findByJobIdAndStatus(String jobId, String status);
+
+    long countByJobIdAndStatusNot(String jobId, String status);
+
+    long countByJobId(String jobId);
+
+    void deleteByJobId(String jobId);
+}
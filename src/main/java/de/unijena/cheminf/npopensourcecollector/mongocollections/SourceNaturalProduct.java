@@ -1,6 +1,7 @@
 package de.unijena.cheminf.npopensourcecollector.mongocollections;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -9,6 +10,7 @@ import java.util.BitSet;
 
 
 @Document
+@CompoundIndex(name = "source_record_hash_index", def = "{'source': 1, 'recordHash': 1}")
 public class SourceNaturalProduct {
 
     @Id
@@ -61,6 +63,9 @@ public class SourceNaturalProduct {
 
     public ArrayList<String> synonyms;
 
+    //hash of the text of the record in the source file, to skip unchanged records on re-ingestion
+    public String recordHash;
+
 
 
     //Constructor
@@ -258,6 +263,14 @@ public class SourceNaturalProduct {
         this.cas = cas;
     }
 
+    public String getRecordHash() {
+        return recordHash;
+    }
+
+    public void setRecordHash(String recordHash) {
+        this.recordHash = recordHash;
+    }
+
 
 
 }
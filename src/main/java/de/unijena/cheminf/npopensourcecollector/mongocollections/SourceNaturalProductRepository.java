@@ -3,6 +3,7 @@ package de.unijena.cheminf.npopensourcecollector.mongocollections;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -11,4 +12,10 @@ public interface SourceNaturalProductRepository extends MongoRepository<SourceNa
 
     List<SourceNaturalProduct> findBySimpleInchiKey(String inchikey);
 
+    Long deleteBySource(String source);
+
+    Long deleteBySourceAndRecordHashIn(String source, Collection<String> recordHashes);
+
+    Long deleteBySourceAndRecordHashIsNull(String source);
+
 }
@@ -1,6 +1,10 @@
 package de.unijena.cheminf.npopensourcecollector.mongocollections;
 
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public interface SourceNaturalProductRepositoryCustom {
 
@@ -8,4 +12,10 @@ public interface SourceNaturalProductRepositoryCustom {
 
     List<Object> findUniqueSourceNames();
 
+    Set<String> findRecordHashesBySource(String source);
+
+    CloseableIterator<SourceNaturalProduct> streamAllOrderedBySimpleInchiKey();
+
+    void setUniqueNaturalProduct(Collection<String> ids, UniqueNaturalProduct uniqueNaturalProduct);
+
 }
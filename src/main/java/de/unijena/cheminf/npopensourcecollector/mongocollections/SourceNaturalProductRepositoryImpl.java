@@ -4,11 +4,18 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
 import org.springframework.data.mongodb.core.aggregation.AggregationResults;
 import org.springframework.data.mongodb.core.aggregation.GroupOperation;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
 
@@ -43,5 +50,38 @@ public class SourceNaturalProductRepositoryImpl implements SourceNaturalProductR
         return mongoTemplate.query(SourceNaturalProduct.class).distinct("source").all() ;
     }
 
+    @Override
+    public Set<String> findRecordHashesBySource(String source){
+        Query query = new Query(Criteria.where("source").is(source).and("recordHash").ne(null));
+        query.fields().include("recordHash").exclude("_id");
+
+        Set<String> recordHashes = new HashSet<>();
+        try(CloseableIterator<SourceNaturalProduct> products = mongoTemplate.stream(query, SourceNaturalProduct.class)){
+            products.forEachRemaining(snp -> recordHashes.add(snp.getRecordHash()));
+        }
+        return recordHashes;
+    }
+
+
+    /**
+     * All the source NPs with an InChIKey, those of a same InChIKey one after the other, in one cursor.
+     * The sort runs on the server and may spill to disk, as simpleInchiKey is not indexed: a sorted find would fail
+     * beyond the in-memory sort limit.
+     */
+    @Override
+    public CloseableIterator<SourceNaturalProduct> streamAllOrderedBySimpleInchiKey(){
+        Aggregation aggregation = newAggregation(
+                match(Criteria.where("simpleInchiKey").ne(null)),
+                sort(Sort.Direction.ASC, "simpleInchiKey"))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
 
+        return mongoTemplate.aggregateStream(aggregation, "sourceNaturalProduct", SourceNaturalProduct.class);
+    }
+
+
+    @Override
+    public void setUniqueNaturalProduct(Collection<String> ids, UniqueNaturalProduct uniqueNaturalProduct){
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(ids)),
+                Update.update("uniqueNaturalProduct", uniqueNaturalProduct), SourceNaturalProduct.class);
+    }
 }
@@ -152,6 +152,11 @@ public class UniqueNaturalProduct  {
     public String pubchemBitsString;
 
 
+    //Taylor-Butina clustering on fingerprint similarity
+    public Integer cluster_id;
+    public Boolean cluster_centroid;
+
+
 
 
 
@@ -1083,4 +1088,20 @@ public class UniqueNaturalProduct  {
     public void setPass_bioactivity_searcheable(ArrayList<String> pass_bioactivity_searcheable) {
         this.pass_bioactivity_searcheable = pass_bioactivity_searcheable;
     }
+
+    public Integer getCluster_id() {
+        return cluster_id;
+    }
+
+    public void setCluster_id(Integer cluster_id) {
+        this.cluster_id = cluster_id;
+    }
+
+    public Boolean getCluster_centroid() {
+        return cluster_centroid;
+    }
+
+    public void setCluster_centroid(Boolean cluster_centroid) {
+        this.cluster_centroid = cluster_centroid;
+    }
 }
@@ -7,4 +7,8 @@ public interface UniqueNaturalProductRepositoryCustom {
     List<String> findAllCoconutIds();
 
     List<String> findAllInchiKeys();
+
+    List<UniqueNaturalProduct> findAllWithFingerprint(String fingerprintField);
+
+    List<UniqueNaturalProduct> findAllWithFingerprintAndStructure(String fingerprintField);
 }
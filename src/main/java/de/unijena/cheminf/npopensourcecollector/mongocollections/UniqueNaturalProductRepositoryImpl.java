@@ -3,6 +3,7 @@ package de.unijena.cheminf.npopensourcecollector.mongocollections;
 import com.mongodb.client.DistinctIterable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
 
 import java.util.Iterator;
 import java.util.List;
@@ -39,4 +40,25 @@ public class UniqueNaturalProductRepositoryImpl implements UniqueNaturalProductR
 
 
     }
+
+
+    @Override
+    public List<UniqueNaturalProduct> findAllWithFingerprint(String fingerprintField) {
+
+        //only the ids and one stored fingerprint, the full documents would not fit in memory for the whole collection
+        Query query = new Query();
+        query.fields().include("coconut_id").include(fingerprintField);
+
+        return mongoTemplate.find(query, UniqueNaturalProduct.class);
+    }
+
+
+    @Override
+    public List<UniqueNaturalProduct> findAllWithFingerprintAndStructure(String fingerprintField) {
+
+        Query query = new Query();
+        query.fields().include("coconut_id").include("unique_smiles").include(fingerprintField);
+
+        return mongoTemplate.find(query, UniqueNaturalProduct.class);
+    }
 }
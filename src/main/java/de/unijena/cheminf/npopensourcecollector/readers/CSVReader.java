@@ -2,20 +2,18 @@ package de.unijena.cheminf.npopensourcecollector.readers;
 
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.misc.DatabaseTypeChecker;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
 import de.unijena.cheminf.npopensourcecollector.misc.MoleculeChecker;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
-import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
 import de.unijena.cheminf.npopensourcecollector.services.AtomContainerToSourceNaturalProductService;
-import net.sf.jniinchi.INCHI_OPTION;
 import net.sf.jniinchi.INCHI_RET;
 import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
-import org.openscience.cdk.inchi.InChIGenerator;
 import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.inchi.InChIToStructure;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.smiles.SmiFlavor;
 import org.openscience.cdk.smiles.SmilesGenerator;
 import org.openscience.cdk.smiles.SmilesParser;
@@ -26,424 +24,460 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CSVReader implements Reader {
 
 
     File file;
+    String fileName;
     ArrayList<IAtomContainer> listOfMolecules;
-    private LineNumberReader inchiReader;
-    SourceNaturalProductRepository sourceNaturalProductRepository;
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+    SourceNaturalProductWriter.Buffer writeBuffer;
     AtomContainerToSourceNaturalProductService ac2snp;
     MoleculeChecker moleculeChecker;
+    InChICache inchiCache;
+    IngestionMetrics ingestionMetrics;
     DatabaseTypeChecker databaseTypeChecker;
+    IngestionScheduler ingestionScheduler;
     String source;
 
+    //SmilesGenerator instances are not thread safe, each ingestion thread running records of the file has its own
+    private final ThreadLocal<SmilesGenerator> smilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Unique));
+    private final ThreadLocal<SmilesGenerator> absoluteSmilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Absolute));
+
+    private int recordsPerTask = 200;
+
+    //part of the hash of every record, the columns mean something else when it changes
+    private String headerLine;
+
+    private CSVTokenizer tokenizer;
+
+    //columns of the header, found once per file: position in the record of each Column, -1 if absent
+    private final int[] columns = new int[Column.values().length];
+
+    private enum Column { ID, NAME, SYNONYM, REFERENCE, CITATION, DOI, SMILES, INCHI, INCHIKEY, KINGDOM, GENUS, SPECIES, GEO, CODE, CAS }
+
     public CSVReader(){
         this.listOfMolecules = new ArrayList<IAtomContainer>();
-        sourceNaturalProductRepository = BeanUtil.getBean(SourceNaturalProductRepository.class);
+        sourceNaturalProductWriter = BeanUtil.getBean(SourceNaturalProductWriter.class);
         ac2snp = BeanUtil.getBean(AtomContainerToSourceNaturalProductService.class);
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
+        inchiCache = BeanUtil.getBean(InChICache.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
         databaseTypeChecker = BeanUtil.getBean(DatabaseTypeChecker.class);
+        ingestionScheduler = BeanUtil.getBean(IngestionScheduler.class);
     }
 
 
     @Override
     public void readFile(File file) {
 
-        SmilesGenerator smilesGenerator = new SmilesGenerator(SmiFlavor.Unique );
-        SmilesGenerator absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
-        SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
         this.file = file;
-        if(file.getName().toLowerCase().endsWith("csv")){
-            this.source = file.getName().toLowerCase().replace(".csv", "");
+        this.fileName = CompressedInput.uncompressedName(file.getName());
+        boolean csv = fileName.toLowerCase().endsWith("csv");
+        if(csv){
+            this.source = fileName.toLowerCase().replace(".csv", "");
+        }
+        else if(fileName.toLowerCase().endsWith("tsv")){
+            this.source = fileName.toLowerCase().replace(".tsv", "");
         }
-        else if(file.getName().toLowerCase().endsWith("tsv")){
-            this.source = file.getName().toLowerCase().replace(".tsv", "");
+        else{
+            System.out.println("Not a csv or tsv file: "+fileName);
+            return;
         }
 
+        // only csv fields can be quoted, a double quote in a tsv field is part of the text
+        char delimiter = csv ? ',' : '\t';
+        this.tokenizer = new CSVTokenizer(delimiter, csv);
 
 
-        try {
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(this.file));
-            //read the header
-
-            // if the first line is the header
-            ArrayList<String> header = null;
-            if (file.getName().toLowerCase().endsWith("csv")) {
-                header = new ArrayList<String>(Arrays.asList(bufferedReader.readLine().split(",")));
-            } else if (file.getName().toLowerCase().endsWith("tsv")) {
-                header = new ArrayList<String>(Arrays.asList(bufferedReader.readLine().split("\t")));
-            }
+        this.writeBuffer = sourceNaturalProductWriter.newBuffer(source);
+        IngestionScheduler.TaskGroup tasks = ingestionScheduler.newTaskGroup();
+        AtomicInteger processed = new AtomicInteger();
+
+        try(CSVRecordSplitter splitter = new CSVRecordSplitter(this.file, delimiter, csv)) {
+            //the first record is the header
+            CSVRecordSplitter.Chunk header = splitter.nextChunk(1);
 
             if (header != null){
-                //System.out.println(header);
-
-                Integer indexOfID = null;
-                Integer indexOfName = null;
-                Integer indexOfSynonym = null;
-                Integer indexOfReference = null;
-                Integer indexOfCitation = null;
-                Integer indexOfDOI = null;
-                Integer indexOfSMILES = null;
-                Integer indexOfInchi = null;
-                Integer indexOfInchikey = null;
-                Integer indexOfKingdom = null;
-                Integer indexOfGenus = null;
-                Integer indexOfSpecies = null;
-                Integer indexOfGeo = null;
-                Integer indexOfCode = null;
-                Integer indexOfCas = null;
-
-                for (String item : header) {
-
-                    if (item.toLowerCase().equals("id") || item.toLowerCase().equals("identifier")) {
-                        indexOfID = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("name")) {
-                        indexOfName = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("ref")) {
-                        indexOfReference = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("citation")) {
-                        indexOfCitation = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("doi")) {
-                        indexOfDOI = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("smiles")) {
-                        indexOfSMILES = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("inchi") && !item.toLowerCase().contains("inchikey")) {
-                        indexOfInchi = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("inchikey")) {
-                        indexOfInchikey = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("kingdom") || (item.toLowerCase().contains("origin type") && !(item.toLowerCase().contains("specie"))  )) {
-                        indexOfKingdom = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("genu")) {
-                        indexOfGenus = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("specie")) {
-                        indexOfSpecies = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("geo") || item.toLowerCase().contains("site") || item.toLowerCase().contains("local")) {
-                        indexOfGeo = header.indexOf(item);
-                    }
-                    if (item.toLowerCase().contains("code") || item.toLowerCase().contains(this.source)) {
-                        indexOfCode = header.indexOf(item);
-                    }
-                    if(item.toLowerCase().contains("cas") ){
-                        indexOfCas = header.indexOf(item);
-                    }
-                    if(item.toLowerCase().contains("synonym")){
-                        indexOfSynonym = header.indexOf(item);
-                    }
+                headerLine = header.record(0);
+                compileColumns(tokenizer.tokenize(headerLine));
 
 
+                //the rest of the file is cut in chunks of records here, they are tokenized, curated and saved on the shared ingestion pool
+                int count = 1;
+                CSVRecordSplitter.Chunk chunk;
+                while ((chunk = splitter.nextChunk(recordsPerTask)) != null) {
+                    submitChunk(tasks, chunk, count, processed);
+                    count += chunk.size();
                 }
+            }
 
+        } catch (IOException e ) {
+            e.printStackTrace();
+        }
 
-                if (indexOfID == null && indexOfCode != null) {
-                    indexOfID = indexOfCode;
-                }
+        tasks.awaitCompletion();
+        writeBuffer.flush();
 
+    }
 
-                //read the rest of the file
-                int count = 1;
-                String line;
 
-                while ((line = bufferedReader.readLine()) != null && count <= 600000) {
+    private void compileColumns(String[] header){
+        Arrays.fill(columns, -1);
 
+        for (int i = 0; i < header.length; i++) {
+            String item = header[i].trim().toLowerCase();
 
-                    ArrayList<String> dataline = null ;
-                    if(file.getName().toLowerCase().endsWith("csv")) {
-                        dataline = new ArrayList<String>(Arrays.asList(line.split(",")));
-                    }
-                    else if(file.getName().toLowerCase().endsWith("tsv")){
-                        dataline = new ArrayList<String>(Arrays.asList(line.split("\t")));
+            if (item.equals("id") || item.equals("identifier")) {
+                columns[Column.ID.ordinal()] = i;
+            }
+            if (item.contains("name")) {
+                columns[Column.NAME.ordinal()] = i;
+            }
+            if (item.contains("ref")) {
+                columns[Column.REFERENCE.ordinal()] = i;
+            }
+            if (item.contains("citation")) {
+                columns[Column.CITATION.ordinal()] = i;
+            }
+            if (item.contains("doi")) {
+                columns[Column.DOI.ordinal()] = i;
+            }
+            if (item.contains("smiles")) {
+                columns[Column.SMILES.ordinal()] = i;
+            }
+            if (item.contains("inchi") && !item.contains("inchikey")) {
+                columns[Column.INCHI.ordinal()] = i;
+            }
+            if (item.contains("inchikey")) {
+                columns[Column.INCHIKEY.ordinal()] = i;
+            }
+            if (item.contains("kingdom") || (item.contains("origin type") && !(item.contains("specie"))  )) {
+                columns[Column.KINGDOM.ordinal()] = i;
+            }
+            if (item.contains("genu")) {
+                columns[Column.GENUS.ordinal()] = i;
+            }
+            if (item.contains("specie")) {
+                columns[Column.SPECIES.ordinal()] = i;
+            }
+            if (item.contains("geo") || item.contains("site") || item.contains("local")) {
+                columns[Column.GEO.ordinal()] = i;
+            }
+            if (item.contains("code") || item.contains(this.source)) {
+                columns[Column.CODE.ordinal()] = i;
+            }
+            if(item.contains("cas") ){
+                columns[Column.CAS.ordinal()] = i;
+            }
+            if(item.contains("synonym")){
+                columns[Column.SYNONYM.ordinal()] = i;
+            }
+        }
 
-                    }
-                    try {
+        if (!hasColumn(Column.ID) && hasColumn(Column.CODE)) {
+            columns[Column.ID.ordinal()] = columns[Column.CODE.ordinal()];
+        }
+    }
 
-                        IAtomContainer molecule = null;
 
-                        if (indexOfSMILES != null && dataline.size() >= indexOfSMILES + 1) {
+    private boolean hasColumn(Column column){
+        return columns[column.ordinal()] >= 0;
+    }
 
-                            try {
-                                molecule = sp.parseSmiles(dataline.get(indexOfSMILES));
 
-                                molecule.setProperty("FILE_ORIGIN", file.getName().replace(".csv", ""));
-                                molecule.setProperty("SOURCE", source);
-                                molecule.setProperty("ORIGINAL_SMILES", dataline.get(indexOfSMILES));
+    /**
+     * Field of the record in that column, null if the file has no such column or the record is too short
+     */
+    private String value(String[] record, Column column){
+        int index = columns[column.ordinal()];
+        return index >= 0 && index < record.length ? record[index] : null;
+    }
 
 
-                                try {
-                                    if (indexOfInchi != null) {
-                                        molecule.setProperty("ORIGINAL_INCHI", dataline.get(indexOfInchi));
+    private void submitChunk(IngestionScheduler.TaskGroup tasks, CSVRecordSplitter.Chunk chunk, int firstRecordNumber, AtomicInteger processed){
+        tasks.submit(() -> {
+            SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
+            for(int r = 0; r < chunk.size(); r++){
+                try {
+                    String line = chunk.record(r);
+                    if(!line.isEmpty()) {
+                        String recordHash = SourceNaturalProductWriter.recordHash(headerLine + "\n" + line);
+                        if (writeBuffer.isNewRecord(recordHash)) {
+                            readLine(tokenizer.tokenize(line), line, firstRecordNumber + r, sp, recordHash);
+                        }
+                    }
+                } catch (Exception e) {
+                    ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
+                    e.printStackTrace();
+                }
 
-                                    }
-                                    if (indexOfInchikey != null) {
-                                        molecule.setProperty("ORIGINAL_INCHIKEY", dataline.get(indexOfInchikey));
-                                    }
-                                } catch (IndexOutOfBoundsException e) {
-                                    System.out.println("Something went wrong with indexes in " + file.getName());
-                                    System.out.println(count);
-                                    System.out.println(dataline.toString());
-                                }
-                            }catch (InvalidSmilesException e){
-                                //try to read the inchi at least
-                                if (indexOfInchi != null && dataline.size() >= indexOfInchi + 1){
-                                    // READING InCHI
-                                    InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
-                                    InChIToStructure intostruct = factory.getInChIToStructure(dataline.get(indexOfInchi), DefaultChemObjectBuilder.getInstance());
-
-                                    INCHI_RET ret = intostruct.getReturnStatus();
-                                    if (ret == INCHI_RET.WARNING) {
-                                        // Structure generated, but with warning message
-                                        System.out.println("InChI warning: " + intostruct.getMessage());
-                                    } else if (ret != INCHI_RET.OKAY) {
-                                        // Structure generation failed
-                                        throw new CDKException("Structure generation failed failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
-                                    }
-
-                                    molecule = intostruct.getAtomContainer();
-
-                                    molecule.setProperty("FILE_ORIGIN", file.getName().replace(".csv", ""));
-                                    molecule.setProperty("SOURCE", source);
+                ingestionMetrics.recordRead(source);
+                if(processed.incrementAndGet()%50000==0){
+                    System.out.println("Molecules read: "+processed.get());
+                }
+            }
+        });
+    }
 
-                                }
-                            }
 
-                        } else if (indexOfInchi != null && dataline.size() >= indexOfInchi + 1) {
-                            // READING InCHI
-                            InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
-                            InChIToStructure intostruct = factory.getInChIToStructure(dataline.get(indexOfInchi), DefaultChemObjectBuilder.getInstance());
-
-                            INCHI_RET ret = intostruct.getReturnStatus();
-                            if (ret == INCHI_RET.WARNING) {
-                                // Structure generated, but with warning message
-                                System.out.println("InChI warning: " + intostruct.getMessage());
-                            } else if (ret != INCHI_RET.OKAY) {
-                                // Structure generation failed
-                                throw new CDKException("Structure generation failed failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
-                            }
+    private void readLine(String[] record, String line, int count, SmilesParser sp, String recordHash){
 
-                            molecule = intostruct.getAtomContainer();
-                            if (indexOfInchikey != null) {
-                                molecule.setProperty("ORIGINAL_INCHIKEY", dataline.get(indexOfInchikey));
-                            }
-                        }
+        long parseStart = System.nanoTime();
+        try {
 
-                        if (molecule != null) {
-                            if (indexOfID != null) {
-                                molecule.setID(dataline.get(indexOfID));
-                                molecule.setProperty("ID", dataline.get(indexOfID));
-                            } else if (indexOfName != null) {
-                                molecule.setID(dataline.get(indexOfName));
-                                molecule.setProperty("ID", dataline.get(indexOfName));
-                            } else {
-                                molecule.setID(Integer.toString(count));
-                                molecule.setProperty("ID", Integer.toString(count));
-                            }
+            IAtomContainer molecule = null;
 
-                            molecule = moleculeChecker.checkMolecule(molecule);
+            String smiles = value(record, Column.SMILES);
+            String inchi = value(record, Column.INCHI);
+            String inchikey = value(record, Column.INCHIKEY);
 
-                            if (molecule != null) {
-                                try {
-                                    List options = new ArrayList();
-                                    options.add(INCHI_OPTION.SNon);
-                                    options.add(INCHI_OPTION.ChiralFlagOFF);
-                                    options.add(INCHI_OPTION.AuxNone);
-                                    InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options);
+            if (smiles != null) {
 
-                                    molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                    molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
+                try {
+                    molecule = sp.parseSmiles(smiles);
 
+                    molecule.setProperty("FILE_ORIGIN", fileName.replace(".csv", ""));
+                    molecule.setProperty("SOURCE", source);
+                    molecule.setProperty("ORIGINAL_SMILES", smiles);
 
-                                } catch (CDKException e) {
-                                    Integer totalBonds = molecule.getBondCount();
-                                    Integer ib = 0;
-                                    while (ib < totalBonds) {
 
-                                        IBond b = molecule.getBond(ib);
-                                        if (b.getOrder() == IBond.Order.UNSET) {
-                                            b.setOrder(IBond.Order.SINGLE);
+                    if (inchi != null) {
+                        molecule.setProperty("ORIGINAL_INCHI", inchi);
 
-                                        }
-                                        ib++;
-                                    }
-                                    List options = new ArrayList();
-                                    options.add(INCHI_OPTION.SNon);
-                                    options.add(INCHI_OPTION.ChiralFlagOFF);
-                                    options.add(INCHI_OPTION.AuxNone);
-                                    InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options);
+                    }
+                    if (inchikey != null) {
+                        molecule.setProperty("ORIGINAL_INCHIKEY", inchikey);
+                    }
+                }catch (InvalidSmilesException e){
+                    //try to read the inchi at least
+                    if (inchi != null){
+                        // READING InCHI
+                        InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
+                        InChIToStructure intostruct = factory.getInChIToStructure(inchi, DefaultChemObjectBuilder.getInstance());
+
+                        INCHI_RET ret = intostruct.getReturnStatus();
+                        if (ret == INCHI_RET.WARNING) {
+                            // Structure generated, but with warning message
+                            System.out.println("InChI warning: " + intostruct.getMessage());
+                        } else if (ret != INCHI_RET.OKAY) {
+                            // Structure generation failed
+                            throw new CDKException("Structure generation failed failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
+                        }
 
-                                    molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                    molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
+                        molecule = intostruct.getAtomContainer();
 
-                                }
+                        molecule.setProperty("FILE_ORIGIN", fileName.replace(".csv", ""));
+                        molecule.setProperty("SOURCE", source);
 
-                                String simpleSmiles = smilesGenerator.create(molecule);
-                                molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
-                                try {
-                                    String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
-                                    if (!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
-                                        molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
-                                    }
+                    }
+                }
 
-                                }catch(IllegalArgumentException e){
-                                    System.out.println("Could not make smiles for "+simpleSmiles);
-                                }
+            } else if (inchi != null) {
+                // READING InCHI
+                InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
+                InChIToStructure intostruct = factory.getInChIToStructure(inchi, DefaultChemObjectBuilder.getInstance());
+
+                INCHI_RET ret = intostruct.getReturnStatus();
+                if (ret == INCHI_RET.WARNING) {
+                    // Structure generated, but with warning message
+                    System.out.println("InChI warning: " + intostruct.getMessage());
+                } else if (ret != INCHI_RET.OKAY) {
+                    // Structure generation failed
+                    throw new CDKException("Structure generation failed failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
+                }
 
+                molecule = intostruct.getAtomContainer();
 
+                molecule.setProperty("FILE_ORIGIN", fileName.replace(".csv", ""));
+                molecule.setProperty("SOURCE", source);
+                if (inchikey != null) {
+                    molecule.setProperty("ORIGINAL_INCHIKEY", inchikey);
+                }
+            }
 
+            if (molecule != null) {
+                String id = value(record, Column.ID);
+                if (id == null) {
+                    id = value(record, Column.NAME);
+                }
+                if (id == null) {
+                    id = Integer.toString(count);
+                }
+                molecule.setID(id);
+                molecule.setProperty("ID", id);
 
-                                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
-                                LocalDate localDate = LocalDate.now();
+                ingestionMetrics.record(source, IngestionMetrics.Stage.PARSE, parseStart);
+                long curationStart = System.nanoTime();
+                molecule = moleculeChecker.checkMolecule(molecule);
+                ingestionMetrics.record(source, IngestionMetrics.Stage.CURATION, curationStart);
 
-                                molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
+                if (molecule != null) {
+                    inchiCache.addSimpleInchi(molecule);
 
+                    String simpleSmiles = smilesGenerator.get().create(molecule);
+                    molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
+                    try {
+                        String absoluteSmiles = absoluteSmilesGenerator.get().create(molecule);
+                        if (!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
+                            molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
+                        }
 
-                                SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
+                    }catch(IllegalArgumentException e){
+                        System.out.println("Could not make smiles for "+simpleSmiles);
+                    }
 
-                                String taxa = databaseTypeChecker.checkKingdom(this.source);
-                                if (taxa.equals("mixed")) {
-                                    //do things db by db
-                                    if (source.equals("nubbedb")) {
-                                        //there is a p at the beginning of each id for plants
-                                        if (molecule.getID().startsWith("p.")) {
-                                            taxa = "plants";
-                                        } else {
-                                            taxa = "animals";
-                                        }
-                                    } else if (source.equals("npatlas")) {
-                                        if (molecule.getID().startsWith("b")) {
-                                            taxa = "bacteria";
-                                        } else {
-                                            taxa = "fungi";
-                                        }
-                                    }  else if (source.equals("biofacquim")) {
-                                        taxa = dataline.get(indexOfKingdom);
-                                    } else {
-                                        taxa = "notax";
-                                    }
-                                }
-                                sourceNaturalProduct.setOrganismText(new ArrayList<String>());
-                                sourceNaturalProduct.organismText.add(taxa);
-
-                                if (indexOfKingdom != null && dataline.size() >= indexOfKingdom + 1) {
-                                    if (dataline.get(indexOfKingdom).toLowerCase().contains("bacteri")) {
-                                        sourceNaturalProduct.organismText.add("bacteria");
-                                    } else if (dataline.get(indexOfKingdom).toLowerCase().contains("fung")) {
-                                        sourceNaturalProduct.organismText.add("fungi");
-                                    } else if (dataline.get(indexOfKingdom).toLowerCase().contains("plant")) {
-                                        sourceNaturalProduct.organismText.add("plants");
-                                    }else if(dataline.get(indexOfKingdom).toLowerCase().contains("animal")){
-                                        sourceNaturalProduct.organismText.add("animals");
-                                    }else{
-                                        if(!dataline.get(indexOfKingdom).equals("") && !dataline.get(indexOfKingdom).equals("-") && !dataline.get(indexOfKingdom).equals(" ")) {
-                                            sourceNaturalProduct.organismText.add(dataline.get(indexOfKingdom));
-                                        }
-                                    }
 
-                                }
-                                if (indexOfGenus != null && dataline.size() >= indexOfGenus + 1) {
-                                    if(source.equals("np_atlas_2019_12")){
-                                        //join genus and species
-                                        String realSpecies = dataline.get(indexOfGenus)+" "+dataline.get(indexOfSpecies);
-                                        sourceNaturalProduct.organismText.add(realSpecies);
-                                    }else {
-                                        sourceNaturalProduct.organismText.add(dataline.get(indexOfGenus));
-                                    }
-                                }
-                                if (indexOfSpecies != null && dataline.size() >= indexOfSpecies + 1) {
-                                    if(!source.equals("np_atlas_2019_12")){
-                                        if(source.equals("vietherb") || source.equals("knapsack")){
-                                            String [] species = dataline.get(indexOfSpecies).split(";");
-                                            for(String speciesString : species){
-                                                    String spm = speciesString.replace("\'", "");
-                                                    sourceNaturalProduct.organismText.add(spm);
 
 
-                                            }
-                                        }else {
-                                            sourceNaturalProduct.organismText.add(dataline.get(indexOfSpecies));
-                                        }
+                    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+                    LocalDate localDate = LocalDate.now();
 
-                                    }
+                    molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
 
-                                }
 
-                                if (indexOfName != null){
-                                    sourceNaturalProduct.setName(dataline.get(indexOfName));
-                                }
+                    SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
-                                if (indexOfSynonym != null){
-                                    sourceNaturalProduct.synonyms = new ArrayList<>();
+                    String taxa = databaseTypeChecker.checkKingdom(this.source);
+                    if (taxa.equals("mixed")) {
+                        //do things db by db
+                        if (source.equals("nubbedb")) {
+                            //there is a p at the beginning of each id for plants
+                            if (molecule.getID().startsWith("p.")) {
+                                taxa = "plants";
+                            } else {
+                                taxa = "animals";
+                            }
+                        } else if (source.equals("npatlas")) {
+                            if (molecule.getID().startsWith("b")) {
+                                taxa = "bacteria";
+                            } else {
+                                taxa = "fungi";
+                            }
+                        }  else if (source.equals("biofacquim") && value(record, Column.KINGDOM) != null) {
+                            taxa = value(record, Column.KINGDOM);
+                        } else {
+                            taxa = "notax";
+                        }
+                    }
+                    sourceNaturalProduct.setOrganismText(new ArrayList<String>());
+                    sourceNaturalProduct.organismText.add(taxa);
+
+                    String kingdom = value(record, Column.KINGDOM);
+                    if (kingdom != null) {
+                        if (kingdom.toLowerCase().contains("bacteri")) {
+                            sourceNaturalProduct.organismText.add("bacteria");
+                        } else if (kingdom.toLowerCase().contains("fung")) {
+                            sourceNaturalProduct.organismText.add("fungi");
+                        } else if (kingdom.toLowerCase().contains("plant")) {
+                            sourceNaturalProduct.organismText.add("plants");
+                        }else if(kingdom.toLowerCase().contains("animal")){
+                            sourceNaturalProduct.organismText.add("animals");
+                        }else{
+                            if(!kingdom.equals("") && !kingdom.equals("-") && !kingdom.equals(" ")) {
+                                sourceNaturalProduct.organismText.add(kingdom);
+                            }
+                        }
 
-                                    String [] list = dataline.get(indexOfSynonym).split(";");
-                                    for(String e : list){
-                                        sourceNaturalProduct.synonyms.add(e);
-                                    }
-                                    if(indexOfName == null){
-                                        sourceNaturalProduct.setName(list[0]);
-                                    }
-                                }
+                    }
+                    String genus = value(record, Column.GENUS);
+                    String species = value(record, Column.SPECIES);
+                    if (genus != null) {
+                        if(source.equals("np_atlas_2019_12") && species != null){
+                            //join genus and species
+                            String realSpecies = genus+" "+species;
+                            sourceNaturalProduct.organismText.add(realSpecies);
+                        }else {
+                            sourceNaturalProduct.organismText.add(genus);
+                        }
+                    }
+                    if (species != null) {
+                        if(!source.equals("np_atlas_2019_12")){
+                            if(source.equals("vietherb") || source.equals("knapsack")){
+                                String [] speciesList = species.split(";");
+                                for(String speciesString : speciesList){
+                                        String spm = speciesString.replace("\'", "");
+                                        sourceNaturalProduct.organismText.add(spm);
 
-                                //GEOGRAPHY
-                                sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
-                                if (indexOfGeo != null && dataline.size() >= indexOfGeo + 1) {
-                                    sourceNaturalProduct.geographicLocation = new ArrayList<>();
-                                    sourceNaturalProduct.geographicLocation.add(dataline.get(indexOfGeo));
-                                }
 
-                                //CAS
-                                if(indexOfCas !=null){
-                                    sourceNaturalProduct.setCas(dataline.get(indexOfCas));
                                 }
+                            }else {
+                                sourceNaturalProduct.organismText.add(species);
+                            }
 
-                                //citation reference and doi
-                                if ((indexOfCitation != null && dataline.size() >= indexOfCitation + 1) || (indexOfDOI != null && dataline.size() >= indexOfDOI + 1) || (indexOfReference != null && dataline.size() >= indexOfReference + 1)) {
-                                    sourceNaturalProduct.citation = new ArrayList<>();
-                                    if (indexOfCitation != null) {
-                                        sourceNaturalProduct.citation.add(dataline.get(indexOfCitation));
-                                    }
-                                    if (indexOfDOI != null) {
-                                        sourceNaturalProduct.citation.add(dataline.get(indexOfDOI));
-                                    }
-                                    if (indexOfReference != null) {
-                                        sourceNaturalProduct.citation.add(dataline.get(indexOfReference));
-                                    }
-                                }
+                        }
 
-                                if (!moleculeChecker.isForbiddenMolecule(molecule)) {
-                                    sourceNaturalProductRepository.save(sourceNaturalProduct);
-                                }
-                            }
-                        } else {
-                            System.out.println("No molecular structure detected");
+                    }
+
+                    String name = value(record, Column.NAME);
+                    if (name != null){
+                        sourceNaturalProduct.setName(name);
+                    }
+
+                    String synonyms = value(record, Column.SYNONYM);
+                    if (synonyms != null){
+                        sourceNaturalProduct.synonyms = new ArrayList<>();
+
+                        String [] list = synonyms.split(";");
+                        for(String e : list){
+                            sourceNaturalProduct.synonyms.add(e);
                         }
+                        if(!hasColumn(Column.NAME)){
+                            sourceNaturalProduct.setName(list[0]);
+                        }
+                    }
 
+                    //GEOGRAPHY
+                    sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
+                    String geo = value(record, Column.GEO);
+                    if (geo != null) {
+                        sourceNaturalProduct.geographicLocation = new ArrayList<>();
+                        sourceNaturalProduct.geographicLocation.add(geo);
+                    }
+
+                    //CAS
+                    String cas = value(record, Column.CAS);
+                    if(cas !=null){
+                        sourceNaturalProduct.setCas(cas);
+                    }
 
-                    } catch (CDKException e) {
-                        e.printStackTrace();
-                        System.out.println(line);
+                    //citation reference and doi
+                    String citation = value(record, Column.CITATION);
+                    String doi = value(record, Column.DOI);
+                    String reference = value(record, Column.REFERENCE);
+                    if (citation != null || doi != null || reference != null) {
+                        sourceNaturalProduct.citation = new ArrayList<>();
+                        if (citation != null) {
+                            sourceNaturalProduct.citation.add(citation);
+                        }
+                        if (doi != null) {
+                            sourceNaturalProduct.citation.add(doi);
+                        }
+                        if (reference != null) {
+                            sourceNaturalProduct.citation.add(reference);
+                        }
                     }
 
-                    count++;
+                    if (!moleculeChecker.isForbiddenMolecule(molecule)) {
+                        sourceNaturalProduct.setRecordHash(recordHash);
+                        writeBuffer.add(sourceNaturalProduct);
+                    }else{
+                        ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.FORBIDDEN_INCHIKEY);
+                    }
                 }
+            } else {
+                ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
+                System.out.println("No molecular structure detected");
             }
 
-        } catch (IOException e ) {
+
+        } catch (CDKException e) {
+            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
             e.printStackTrace();
+            System.out.println(line);
         }
-
-
-
     }
 
     @Override
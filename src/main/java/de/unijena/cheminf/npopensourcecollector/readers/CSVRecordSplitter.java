@@ -0,0 +1,275 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Cuts a CSV or TSV file in chunks of whole records, byte ranges that always end at the end of a line, without
+ * decoding or tokenizing them: that is left to the ingestion tasks, so the only serial work is a scan for line ends.
+ * With quoting (CSV), a line end inside a quoted field does not end the record, as in RFC 4180.
+ * Plain files are memory-mapped by windows starting at the beginning of a chunk, as in SDFRecordSplitter, and the
+ * chunks are views of the mapping; compressed files are read through a growing buffer and the chunks are copies.
+ */
+public class CSVRecordSplitter implements Closeable {
+
+    private static final int WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private static final int STREAM_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    //a quoted field still open after that many bytes is taken as a stray quote, its record ends at the line end
+    private static final int MAX_QUOTED_RECORD_BYTES = 1024 * 1024;
+
+
+    private final byte delimiter;
+
+    private final boolean quoted;
+
+    private final FileChannel channel;
+
+    private final long fileSize;
+
+    //compressed files only
+    private final InputStream stream;
+
+    //fed with each window as it is mapped, null if ReadWorker did not start one
+    private final FileDigest digest;
+
+    private byte[] streamBuffer;
+
+    private boolean streamEnded = false;
+
+    private ByteBuffer window;
+
+    //file position of the first byte of the window, mapped files only
+    private long windowStart = 0;
+
+    //position in the window of the next chunk
+    private int position = 0;
+
+    private int windowBytes;
+
+
+    public CSVRecordSplitter(File file, char delimiter, boolean quoted) throws IOException {
+        this(file, delimiter, quoted, WINDOW_BYTES);
+    }
+
+
+    /**
+     * With the given size of the first window of a mapped file, for the tests of records crossing windows
+     */
+    CSVRecordSplitter(File file, char delimiter, boolean quoted, int windowBytes) throws IOException {
+        this.delimiter = (byte) delimiter;
+        this.quoted = quoted;
+        this.windowBytes = windowBytes;
+        this.digest = FileDigest.of(file);
+        if(CompressedInput.isCompressed(file.getName())){
+            this.channel = null;
+            this.fileSize = 0;
+            this.stream = CompressedInput.open(file);
+            this.streamBuffer = new byte[STREAM_BUFFER_BYTES];
+            this.window = ByteBuffer.wrap(streamBuffer, 0, 0);
+            fill();
+        }else{
+            this.stream = null;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            mapWindow(0);
+        }
+        skipByteOrderMark();
+    }
+
+
+    /**
+     * Records of one task: bytes holds whole records, the end of record i (excluded, line end included) is ends[i]
+     */
+    public static class Chunk {
+
+        private final ByteBuffer bytes;
+
+        private final int[] ends;
+
+        private Chunk(ByteBuffer bytes, int[] ends){
+            this.bytes = bytes;
+            this.ends = ends;
+        }
+
+        public int size(){
+            return ends.length;
+        }
+
+        /**
+         * Text of the record, without its line end
+         */
+        public String record(int i){
+            int from = i == 0 ? 0 : ends[i - 1];
+            int to = ends[i];
+            while(to > from && (bytes.get(to - 1) == '\n' || bytes.get(to - 1) == '\r')){
+                to--;
+            }
+            byte[] record = new byte[to - from];
+            ByteBuffer view = bytes.duplicate();
+            view.position(from);
+            view.get(record);
+            return new String(record, StandardCharsets.UTF_8);
+        }
+    }
+
+
+    /**
+     * The next maxRecords records, fewer at the end of the file or of a window, or null at the end of the file
+     */
+    public Chunk nextChunk(int maxRecords) throws IOException {
+        int[] ends = new int[maxRecords];
+        while(true) {
+            int found = 0;
+            int from = position;
+            int limit = window.limit();
+            while(found < maxRecords) {
+                int end = findRecordEnd(from);
+                if(end < 0){
+                    break;
+                }
+                ends[found++] = end - position;
+                from = end;
+            }
+
+            if(found == 0 && reachesEnd() && position < limit){
+                // last record without a line end
+                ends[found++] = limit - position;
+                from = limit;
+            }
+            if(found > 0){
+                Chunk chunk = new Chunk(slice(position, from), Arrays.copyOf(ends, found));
+                position = from;
+                return chunk;
+            }
+            if(reachesEnd()){
+                return null;
+            }
+            nextWindow();
+        }
+    }
+
+
+    /**
+     * Position just after the line end of the record starting at from, -1 if the window ends before
+     */
+    private int findRecordEnd(int from){
+        int limit = window.limit();
+        boolean inQuotes = false;
+        boolean fieldStart = true;
+        for(int i = from; i < limit; i++){
+            byte b = window.get(i);
+            if(inQuotes){
+                if(b == '"'){
+                    if(i + 1 == limit && !reachesEnd()){
+                        // cannot tell an escaped quote from a closing one yet
+                        return -1;
+                    }
+                    if(i + 1 < limit && window.get(i + 1) == '"'){
+                        i++;
+                    }else{
+                        inQuotes = false;
+                    }
+                }else if(b == '\n' && i - from > MAX_QUOTED_RECORD_BYTES){
+                    return i + 1;
+                }
+            }else if(b == '\n'){
+                return i + 1;
+            }else if(quoted && fieldStart && b == '"'){
+                inQuotes = true;
+                fieldStart = false;
+            }else{
+                fieldStart = b == delimiter;
+            }
+        }
+        return -1;
+    }
+
+
+    private boolean reachesEnd(){
+        return stream != null ? streamEnded : windowStart + window.limit() >= fileSize;
+    }
+
+
+    private void nextWindow() throws IOException {
+        if(stream != null){
+            // keep the incomplete record, at the beginning of a larger buffer if it fills the whole buffer
+            int kept = window.limit() - position;
+            if(position == 0){
+                streamBuffer = Arrays.copyOf(streamBuffer, (int) Math.min((long) streamBuffer.length * 2, Integer.MAX_VALUE - 8));
+            }else{
+                System.arraycopy(streamBuffer, position, streamBuffer, 0, kept);
+            }
+            window = ByteBuffer.wrap(streamBuffer, 0, kept);
+            position = 0;
+            fill();
+        }else{
+            // the record goes on after the window: map again from the chunk, larger if one record fills a window
+            if(position == 0){
+                windowBytes = (int) Math.min((long) windowBytes * 2, Integer.MAX_VALUE - 8);
+            }
+            mapWindow(windowStart + position);
+        }
+    }
+
+
+    private void mapWindow(long start) throws IOException {
+        windowStart = start;
+        position = 0;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, fileSize - start));
+        if(digest != null){
+            digest.update(start, window);
+        }
+    }
+
+
+    private void fill() throws IOException {
+        int filled = window.limit();
+        while(filled < streamBuffer.length){
+            int n = stream.read(streamBuffer, filled, streamBuffer.length - filled);
+            if(n == -1){
+                streamEnded = true;
+                break;
+            }
+            filled += n;
+        }
+        window = ByteBuffer.wrap(streamBuffer, 0, filled);
+    }
+
+
+    private ByteBuffer slice(int from, int to){
+        if(stream != null){
+            // the stream buffer is reused for the next records
+            return ByteBuffer.wrap(Arrays.copyOfRange(streamBuffer, from, to));
+        }
+        ByteBuffer view = window.duplicate();
+        view.position(from);
+        view.limit(to);
+        return view.slice();
+    }
+
+
+    private void skipByteOrderMark(){
+        if(window.limit() >= 3 && (window.get(0) & 0xFF) == 0xEF && (window.get(1) & 0xFF) == 0xBB && (window.get(2) & 0xFF) == 0xBF){
+            position = 3;
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if(stream != null){
+            stream.close();
+        }else {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits one record of a CSV or TSV file in its fields.
+ * With quoting (CSV, RFC 4180), a field starting with a double quote runs until the matching closing quote and may
+ * contain delimiters and line ends, and two double quotes inside it stand for one. A quote that does not start a
+ * field is an ordinary character, and text after a closing quote is kept, so that sloppy files still read.
+ * Unlike String.split, empty fields at the end of the record are kept.
+ */
+public class CSVTokenizer {
+
+    private final char delimiter;
+
+    private final boolean quoted;
+
+
+    public CSVTokenizer(char delimiter, boolean quoted){
+        this.delimiter = delimiter;
+        this.quoted = quoted;
+    }
+
+
+    public String[] tokenize(String record){
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        int length = record.length();
+        int i = 0;
+        while(true){
+            if(quoted && i < length && record.charAt(i) == '"'){
+                i++;
+                while(i < length){
+                    char c = record.charAt(i);
+                    if(c == '"'){
+                        if(i + 1 < length && record.charAt(i + 1) == '"'){
+                            field.append('"');
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    field.append(c);
+                    i++;
+                }
+            }
+            while(i < length && record.charAt(i) != delimiter){
+                field.append(record.charAt(i));
+                i++;
+            }
+            fields.add(field.toString());
+            field.setLength(0);
+            if(i >= length){
+                return fields.toArray(new String[0]);
+            }
+            // skip the delimiter
+            i++;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reading of molecular files compressed with gzip (.gz), bzip2 (.bz2), xz (.xz) or zip (.zip, first file of the
+ * archive). The file is decompressed on its own thread, which writes into a pipe read by the parser, so that
+ * decompression and parsing overlap and nothing is inflated on disk.
+ * The format of a compressed file is the one of its name without the compression extension, e.g. "np.sdf.gz" is an SDF.
+ */
+public class CompressedInput {
+
+    private static final String[] EXTENSIONS = {".gz", ".bz2", ".xz", ".zip"};
+
+    private static final int PIPE_BYTES = 4 * 1024 * 1024;
+
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+
+    private CompressedInput(){
+    }
+
+
+    public static boolean isCompressed(String fileName){
+        return compressionExtension(fileName) != null;
+    }
+
+
+    /**
+     * The file name without its compression extension, unchanged if it is not compressed
+     */
+    public static String uncompressedName(String fileName){
+        String extension = compressionExtension(fileName);
+        return extension == null ? fileName : fileName.substring(0, fileName.length() - extension.length());
+    }
+
+
+    private static String compressionExtension(String fileName){
+        for(String extension : EXTENSIONS){
+            if(fileName.toLowerCase().endsWith(extension)){
+                return extension;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Content of the file, decompressed on a separate thread if the file is compressed
+     */
+    public static InputStream open(File file) throws IOException {
+        if(!isCompressed(file.getName())){
+            return fileStream(file);
+        }
+
+        InputStream compressed = decompressing(file);
+        PipedInputStream pipe = new PipedInputStream(PIPE_BYTES);
+        PipedOutputStream pipeInput = new PipedOutputStream(pipe);
+        DecompressedStream decompressed = new DecompressedStream(pipe, file.getName());
+
+        Thread decompressor = new Thread(() -> {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            try {
+                int n;
+                while((n = compressed.read(chunk)) != -1){
+                    pipeInput.write(chunk, 0, n);
+                }
+            } catch (IOException e) {
+                // the reader stopped early, or the archive is damaged: reported by the reading side, which must
+                // know it before it sees the end of the pipe
+                decompressed.failure = e;
+            } finally {
+                closeQuietly(compressed);
+                closeQuietly(pipeInput);
+            }
+        }, "decompress-" + file.getName());
+        decompressor.setDaemon(true);
+        decompressor.start();
+
+        return decompressed;
+    }
+
+
+    public static BufferedReader openReader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8));
+    }
+
+
+    private static InputStream decompressing(File file) throws IOException {
+        String extension = compressionExtension(file.getName());
+        InputStream in = new BufferedInputStream(fileStream(file), CHUNK_BYTES);
+        switch (extension) {
+            case ".gz":
+                return new GZIPInputStream(in, CHUNK_BYTES);
+            case ".bz2":
+                return new BZip2CompressorInputStream(in, true);
+            case ".xz":
+                return new XZCompressorInputStream(in, true);
+            default:
+                ZipInputStream zip = new ZipInputStream(in);
+                ZipEntry entry = zip.getNextEntry();
+                while(entry != null && entry.isDirectory()){
+                    entry = zip.getNextEntry();
+                }
+                if(entry == null){
+                    zip.close();
+                    throw new IOException("No file in the archive "+file.getName());
+                }
+                System.out.println("Reading "+entry.getName()+" from "+file.getName());
+                return zip;
+        }
+    }
+
+
+    /**
+     * Raw bytes of the file, hashed on the way if ReadWorker started a FileDigest for it
+     */
+    private static InputStream fileStream(File file) throws FileNotFoundException {
+        InputStream in = new FileInputStream(file);
+        FileDigest digest = FileDigest.of(file);
+        return digest == null ? in : digest.digesting(in);
+    }
+
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to read or write
+        }
+    }
+
+
+    /**
+     * Read end of the pipe; an error of the decompressing thread is thrown when the pipe is exhausted, so that a
+     * damaged archive is not taken for a complete one
+     */
+    private static class DecompressedStream extends FilterInputStream {
+
+        private final String fileName;
+
+        private volatile IOException failure;
+
+
+        private DecompressedStream(PipedInputStream pipe, String fileName){
+            super(pipe);
+            this.fileName = fileName;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b < 0){
+                checkFailure();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n < 0){
+                checkFailure();
+            }
+            return n;
+        }
+
+        private void checkFailure() throws IOException {
+            if(failure != null){
+                throw new IOException("Could not decompress "+fileName, failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 of the raw bytes of an input file, computed while the file is read instead of in a pass of its own.
+ * ReadWorker registers the file with start() before handing it to its reader; the bytes are fed where files are
+ * opened, in CompressedInput and in the memory-mapped windows of the record splitters, so the readers do not know
+ * about it. finish() hashes what the reader did not read, e.g. after an early stop, so the result is always the
+ * hash of the whole file, the same as Files.asByteSource(file).hash(Hashing.sha256()).
+ */
+public class FileDigest {
+
+    private static final int READ_BYTES = 1024 * 1024;
+
+    private static final Map<String, FileDigest> DIGESTS = new ConcurrentHashMap<>();
+
+
+    private final File file;
+
+    private final Hasher hasher = Hashing.sha256().newHasher();
+
+    //number of bytes hashed, from the beginning of the file
+    private long position = 0;
+
+    //bytes were skipped, the file is hashed again by finish()
+    private boolean broken = false;
+
+    private boolean finished = false;
+
+
+    private FileDigest(File file){
+        this.file = file;
+    }
+
+
+    /**
+     * Starts the digest of the file, fed by every later opening of that file until finish()
+     */
+    public static FileDigest start(File file){
+        FileDigest digest = new FileDigest(file);
+        DIGESTS.put(file.getAbsolutePath(), digest);
+        return digest;
+    }
+
+
+    /**
+     * The digest started for the file, null if there is none
+     */
+    static FileDigest of(File file){
+        return DIGESTS.get(file.getAbsolutePath());
+    }
+
+
+    /**
+     * Bytes of the file starting at filePosition; the part already hashed is ignored
+     */
+    synchronized void update(long filePosition, ByteBuffer bytes){
+        if(finished || broken){
+            return;
+        }
+        if(filePosition > position){
+            broken = true;
+            return;
+        }
+        long end = filePosition + bytes.remaining();
+        if(end > position){
+            ByteBuffer view = bytes.duplicate();
+            view.position(view.position() + (int) (position - filePosition));
+            hasher.putBytes(view);
+            position = end;
+        }
+    }
+
+
+    /**
+     * Stream of the file from its beginning, hashing what is read through it
+     */
+    InputStream digesting(InputStream fileStream){
+        return new FilterInputStream(fileStream) {
+
+            private long streamPosition = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if(n > 0){
+                    update(streamPosition, ByteBuffer.wrap(b, off, n));
+                    streamPosition += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // skipped bytes are read, they are part of the digest
+                byte[] skipped = new byte[(int) Math.min(n, READ_BYTES)];
+                int read = read(skipped, 0, skipped.length);
+                return Math.max(read, 0);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * Hex SHA-256 of the whole file; the digest is no longer fed afterwards
+     */
+    public synchronized String finish() throws IOException {
+        cancel();
+        if(broken){
+            return Files.asByteSource(file).hash(Hashing.sha256()).toString();
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            channel.position(position);
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+            while(channel.read(buffer) != -1){
+                buffer.flip();
+                hasher.putBytes(buffer);
+                buffer.clear();
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+
+    /**
+     * Stops the digest without a result, e.g. when the file could not be read
+     */
+    public synchronized void cancel(){
+        finished = true;
+        DIGESTS.remove(file.getAbsolutePath(), this);
+    }
+}
@@ -2,17 +2,16 @@ package de.unijena.cheminf.npopensourcecollector.readers;
 
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.misc.DatabaseTypeChecker;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
 import de.unijena.cheminf.npopensourcecollector.misc.MoleculeChecker;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
-import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
 import de.unijena.cheminf.npopensourcecollector.services.AtomContainerToSourceNaturalProductService;
-import net.sf.jniinchi.INCHI_OPTION;
 import net.sf.jniinchi.INCHI_RET;
 import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.inchi.*;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.smiles.SmiFlavor;
 import org.openscience.cdk.smiles.SmilesGenerator;
 
@@ -21,25 +20,38 @@ import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InChiReader  implements Reader {
 
 
     File file;
+    String fileName;
     ArrayList<IAtomContainer> listOfMolecules;
-    private LineNumberReader inchiReader;
-    SourceNaturalProductRepository sourceNaturalProductRepository;
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+    SourceNaturalProductWriter.Buffer writeBuffer;
     AtomContainerToSourceNaturalProductService ac2snp;
     MoleculeChecker moleculeChecker;
+    InChICache inchiCache;
+    IngestionMetrics ingestionMetrics;
     DatabaseTypeChecker databaseTypeChecker;
+    IngestionScheduler ingestionScheduler;
     String source;
 
+    private SmilesGenerator smilesGenerator;
+    private SmilesGenerator absoluteSmilesGenerator;
+
+    private int recordsPerTask = 200;
+
     public InChiReader(){
         this.listOfMolecules = new ArrayList<IAtomContainer>();
-        sourceNaturalProductRepository = BeanUtil.getBean(SourceNaturalProductRepository.class);
+        sourceNaturalProductWriter = BeanUtil.getBean(SourceNaturalProductWriter.class);
         ac2snp = BeanUtil.getBean(AtomContainerToSourceNaturalProductService.class);
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
+        inchiCache = BeanUtil.getBean(InChICache.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
         databaseTypeChecker = BeanUtil.getBean(DatabaseTypeChecker.class);
+        ingestionScheduler = BeanUtil.getBean(IngestionScheduler.class);
 
     }
 
@@ -53,188 +65,184 @@ public class InChiReader  implements Reader {
     @Override
     public void readFile(File file) {
 
-        SmilesGenerator smilesGenerator = new SmilesGenerator(SmiFlavor.Unique );
-        SmilesGenerator absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
+        this.smilesGenerator = new SmilesGenerator(SmiFlavor.Unique );
+        this.absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
 
 
         this.file = file;
+        this.fileName = CompressedInput.uncompressedName(file.getName());
         int count = 1;
         String line;
 
-        this.source = file.getName().toLowerCase().replace(".inchi", "");
+        this.source = fileName.toLowerCase().replace(".inchi", "");
 
-        try{
+        // lines are read here and converted, curated and saved on the shared ingestion pool
+        this.writeBuffer = sourceNaturalProductWriter.newBuffer(source);
+        IngestionScheduler.TaskGroup tasks = ingestionScheduler.newTaskGroup();
+        AtomicInteger processed = new AtomicInteger();
 
-            inchiReader = new LineNumberReader(new InputStreamReader(new FileInputStream(file)));
-            System.out.println("InChi reader creation and inserting in MongoDB for "+source);
+        try(LineNumberReader inchiReader = new LineNumberReader(CompressedInput.openReader(file))){
 
-            InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
-
-
-            while ((line = inchiReader.readLine()) != null  && count <= 600000) {
+            System.out.println("InChi reader creation and inserting in MongoDB for "+source);
 
-                String inchis = line;
+            List<String> lines = new ArrayList<>();
+            int firstRecordNumber = count;
+            while ((line = inchiReader.readLine()) != null ) {
 
                 if(!line.contains("inchi")) {
-                    try {
-                        String[] splitted = inchis.split("\\s+"); //splitting "my" inchi format copied on the SMILES one: InChi \s mol name
-
-                        // READING InCHIs
-                        InChIToStructure intostruct = factory.getInChIToStructure(splitted[0], DefaultChemObjectBuilder.getInstance());
-                        INCHI_RET ret = intostruct.getReturnStatus();
+                    lines.add(line);
+                    count++;
 
+                    if(lines.size() == recordsPerTask){
+                        submitLines(tasks, lines, firstRecordNumber, processed);
+                        lines = new ArrayList<>();
+                        firstRecordNumber = count;
+                    }
+                }
+            }
+            if(!lines.isEmpty()){
+                submitLines(tasks, lines, firstRecordNumber, processed);
+            }
 
-                        if (ret == INCHI_RET.WARNING) {
-                            // Structure generated, but with warning message
-                            System.out.println("InChI warning: " + intostruct.getMessage());
-                        } else if (ret != INCHI_RET.OKAY) {
-                            // Structure generation failed
-                            throw new CDKException("Structure generation failed failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
-                        }
+        } catch (IOException ex) {
+            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
+            ex.printStackTrace();
+            System.exit(0);
+        }
 
-                        IAtomContainer molecule = intostruct.getAtomContainer();
+        tasks.awaitCompletion();
+        writeBuffer.flush();
 
+    }
 
 
+    private void submitLines(IngestionScheduler.TaskGroup tasks, List<String> lines, int firstRecordNumber, AtomicInteger processed){
+        tasks.submit(() -> {
+            for(int l = 0; l < lines.size(); l++){
+                String recordHash = SourceNaturalProductWriter.recordHash(lines.get(l));
+                if(writeBuffer.isNewRecord(recordHash)) {
+                    readLine(lines.get(l), firstRecordNumber + l, recordHash);
+                }
 
+                ingestionMetrics.recordRead(source);
+                if(processed.incrementAndGet()%50000==0){
+                    System.out.println("Molecules read: "+processed.get());
+                }
+            }
+        });
+    }
 
-                        molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
-                        molecule.setProperty("ID", splitted[1]);
-                        molecule.setID(splitted[1]);
 
-                        molecule.setProperty("FILE_ORIGIN", file.getName().replace(".smi", ""));
+    private void readLine(String inchis, int count, String recordHash){
+        long parseStart = System.nanoTime();
+        try {
+            InChIGeneratorFactory factory = InChIGeneratorFactory.getInstance();
 
-                        molecule.setProperty("SOURCE", source);
+            String[] splitted = inchis.split("\\s+"); //splitting "my" inchi format copied on the SMILES one: InChi \s mol name
 
-                        molecule.setProperty("ORIGINAL_INCHI", splitted[0]);
-                        molecule.setProperty("ORIGINAL_INCHIKEY", "");
-                        molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.create(molecule));
+            // READING InCHIs
+            InChIToStructure intostruct = factory.getInChIToStructure(splitted[0], DefaultChemObjectBuilder.getInstance());
+            INCHI_RET ret = intostruct.getReturnStatus();
 
 
-                        molecule = moleculeChecker.checkMolecule(molecule);
+            if (ret == INCHI_RET.WARNING) {
+                // Structure generated, but with warning message
+                System.out.println("InChI warning: " + intostruct.getMessage());
+            } else if (ret != INCHI_RET.OKAY) {
+                // Structure generation failed
+                ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
+                System.out.println("Structure generation failed: " + ret.toString() + " [" + intostruct.getMessage() + "]");
+                return;
+            }
 
-                        if (molecule != null){
-                            try {
-                                List options = new ArrayList();
-                                options.add(INCHI_OPTION.SNon);
-                                options.add(INCHI_OPTION.ChiralFlagOFF);
-                                options.add(INCHI_OPTION.AuxNone);
-                                InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
+            IAtomContainer molecule = intostruct.getAtomContainer();
 
-                                molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
 
 
-                            } catch (CDKException e) {
-                                Integer totalBonds = molecule.getBondCount();
-                                Integer ib = 0;
-                                while (ib < totalBonds) {
 
-                                    IBond b = molecule.getBond(ib);
-                                    if (b.getOrder() == IBond.Order.UNSET) {
-                                        b.setOrder(IBond.Order.SINGLE);
 
-                                    }
-                                    ib++;
-                                }
-                                List options = new ArrayList();
-                                options.add(INCHI_OPTION.SNon);
-                                options.add(INCHI_OPTION.ChiralFlagOFF);
-                                options.add(INCHI_OPTION.AuxNone);
-                                InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
+            molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
+            molecule.setProperty("ID", splitted[1]);
+            molecule.setID(splitted[1]);
 
-                                molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
+            molecule.setProperty("FILE_ORIGIN", fileName.replace(".smi", ""));
 
-                            }
+            molecule.setProperty("SOURCE", source);
 
-                            String simpleSmiles = smilesGenerator.create(molecule);
-                            String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
-                            molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
-                            if(!absoluteSmiles.equals(simpleSmiles)  && absoluteSmiles.contains("@")) {
-                                molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
-                            }
+            molecule.setProperty("ORIGINAL_INCHI", splitted[0]);
+            molecule.setProperty("ORIGINAL_INCHIKEY", "");
+            molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.create(molecule));
 
 
-                            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
-                            LocalDate localDate = LocalDate.now();
+            ingestionMetrics.record(source, IngestionMetrics.Stage.PARSE, parseStart);
+            long curationStart = System.nanoTime();
+            molecule = moleculeChecker.checkMolecule(molecule);
+            ingestionMetrics.record(source, IngestionMetrics.Stage.CURATION, curationStart);
 
-                            molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
+            if (molecule != null){
+                inchiCache.addSimpleInchi(molecule);
 
-                            SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
+                String simpleSmiles = smilesGenerator.create(molecule);
+                String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
+                molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
+                if(!absoluteSmiles.equals(simpleSmiles)  && absoluteSmiles.contains("@")) {
+                    molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
+                }
 
-                            sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
 
-                            String taxa = databaseTypeChecker.checkKingdom(this.source);
-                            if(taxa.equals("mixed")){
-                                //do things db by db
-                                if(source.equals("nubbedb")){
-                                    //there is a p at the beginning of each id for plants
-                                    if(molecule.getID().startsWith("p.")){
-                                        taxa = "plants";
-                                    }else{
-                                        taxa="animals";
-                                    }
-                                }
-                                else if(source.equals("npatlas")){
-                                    if(molecule.getID().startsWith("b")){
-                                        taxa = "bacteria";
-                                    }else{
-                                        taxa="fungi";
-                                    }
-                                }
-                                else{
-                                    taxa="notax";
-                                }
-                            }
-                            sourceNaturalProduct.setOrganismText(new ArrayList<String>());
-                            sourceNaturalProduct.organismText.add(taxa);
+                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+                LocalDate localDate = LocalDate.now();
 
-                            if(!moleculeChecker.isForbiddenMolecule(molecule)){
-                                sourceNaturalProductRepository.save(sourceNaturalProduct);
-                            }
+                molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
 
+                SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
+                sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
 
+                String taxa = databaseTypeChecker.checkKingdom(this.source);
+                if(taxa.equals("mixed")){
+                    //do things db by db
+                    if(source.equals("nubbedb")){
+                        //there is a p at the beginning of each id for plants
+                        if(molecule.getID().startsWith("p.")){
+                            taxa = "plants";
+                        }else{
+                            taxa="animals";
                         }
-
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
                     }
-                    count++;
-
-                    if(count%50000==0){
-                        System.out.println("Molecules read: "+count);
+                    else if(source.equals("npatlas")){
+                        if(molecule.getID().startsWith("b")){
+                            taxa = "bacteria";
+                        }else{
+                            taxa="fungi";
+                        }
+                    }
+                    else{
+                        taxa="notax";
                     }
                 }
-
-
-            }
-
-
-
-
-
+                sourceNaturalProduct.setOrganismText(new ArrayList<String>());
+                sourceNaturalProduct.organismText.add(taxa);
+
+                if(!moleculeChecker.isForbiddenMolecule(molecule)){
+                    sourceNaturalProduct.setRecordHash(recordHash);
+                    writeBuffer.add(sourceNaturalProduct);
+                }else{
+                    ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.FORBIDDEN_INCHIKEY);
+                }
 
 
 
-        } catch (IOException ex) {
-            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
-            ex.printStackTrace();
-            System.exit(0);
-        } catch (CDKException e) {
+            }
+        } catch (Exception e) {
+            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
             e.printStackTrace();
         }
-
-
     }
 
 
 
 
-
-
     @Override
     public ArrayList<IAtomContainer> returnCorrectMolecules() {
         return this.listOfMolecules;
@@ -0,0 +1,133 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work-stealing pool shared by all the readers, so that the records of every input file are parsed, curated and
+ * saved on a fixed number of threads, whatever the number of files.
+ * Readers cut their files in small tasks of records and submit them through a TaskGroup; the number of tasks waiting
+ * or running is bounded, so a reader blocks on submit as long as the pool is behind instead of holding a whole
+ * file in memory.
+ * The readers therefore have no limit on the number of records of a file: at any time, at most getMaxTasksInFlight()
+ * tasks of recordsPerTask records each are held by the pool, plus the insert batches of the SourceNaturalProductWriter.
+ */
+@Service
+public class IngestionScheduler {
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    //tasks allowed to wait for a thread, per thread of the pool
+    private int queuedTasksPerThread = 4;
+
+    private ForkJoinPool recordPool;
+
+    private Semaphore slots;
+
+
+
+    private synchronized void start(){
+        if(recordPool == null){
+            recordPool = new ForkJoinPool(parallelism);
+            slots = new Semaphore(getMaxTasksInFlight());
+            System.out.println("Ingestion scheduler started on "+parallelism+" threads, "+getMaxTasksInFlight()+" tasks in flight at most");
+        }
+    }
+
+
+    /**
+     * Tasks of one file (or any unit of work the caller wants to wait for)
+     */
+    public TaskGroup newTaskGroup(){
+        start();
+        return new TaskGroup();
+    }
+
+
+    public class TaskGroup {
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final Object lock = new Object();
+
+
+        /**
+         * Runs the task on the pool; blocks while the pool already has its maximum of waiting tasks
+         */
+        public void submit(Runnable task){
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the ingestion pool", e);
+            }
+            pending.incrementAndGet();
+            recordPool.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    slots.release();
+                    if (pending.decrementAndGet() == 0) {
+                        synchronized (lock) {
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+
+        /**
+         * Waits until every task submitted so far to this group has run
+         */
+        public void awaitCompletion(){
+            synchronized (lock){
+                while(pending.get() > 0){
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * Tasks waiting or running at the same time, over all the files being read
+     */
+    public int getMaxTasksInFlight() {
+        return parallelism * (1 + queuedTasksPerThread);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Takes effect only if set before the first file is read
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if(recordPool != null){
+            System.out.println("Ingestion scheduler already started on "+this.parallelism+" threads");
+            return;
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getQueuedTasksPerThread() {
+        return queuedTasksPerThread;
+    }
+
+    public synchronized void setQueuedTasksPerThread(int queuedTasksPerThread) {
+        this.queuedTasksPerThread = queuedTasksPerThread;
+    }
+}
@@ -2,17 +2,14 @@ package de.unijena.cheminf.npopensourcecollector.readers;
 
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.misc.DatabaseTypeChecker;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
 import de.unijena.cheminf.npopensourcecollector.misc.MoleculeChecker;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
-import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
 import de.unijena.cheminf.npopensourcecollector.services.AtomContainerToSourceNaturalProductService;
-import net.sf.jniinchi.INCHI_OPTION;
 import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.inchi.InChIGenerator;
-import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmiFlavor;
@@ -21,35 +18,49 @@ import org.openscience.cdk.tools.CDKHydrogenAdder;
 import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MOLReader implements Reader {
 
     File file;
+    String fileName;
     ArrayList<IAtomContainer> listOfMolecules;
 
-    private IteratingSDFReader reader = null;
+    SourceNaturalProductWriter sourceNaturalProductWriter;
 
-    SourceNaturalProductRepository sourceNaturalProductRepository;
+    SourceNaturalProductWriter.Buffer writeBuffer;
     AtomContainerToSourceNaturalProductService ac2snp;
 
 
     MoleculeChecker moleculeChecker;
+    InChICache inchiCache;
+    IngestionMetrics ingestionMetrics;
     DatabaseTypeChecker databaseTypeChecker;
 
+    IngestionScheduler ingestionScheduler;
+
     String source;
 
+    private SmilesGenerator smilesGenerator;
+    private SmilesGenerator absoluteSmilesGenerator;
+
+    private int recordsPerTask = 200;
+
     public MOLReader(){
         this.listOfMolecules = new ArrayList<IAtomContainer>();
-        sourceNaturalProductRepository = BeanUtil.getBean(SourceNaturalProductRepository.class);
+        sourceNaturalProductWriter = BeanUtil.getBean(SourceNaturalProductWriter.class);
         ac2snp = BeanUtil.getBean(AtomContainerToSourceNaturalProductService.class);
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
+        inchiCache = BeanUtil.getBean(InChICache.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
         databaseTypeChecker = BeanUtil.getBean(DatabaseTypeChecker.class);
+        ingestionScheduler = BeanUtil.getBean(IngestionScheduler.class);
 
     }
 
@@ -57,190 +68,193 @@ public class MOLReader implements Reader {
     @Override
     public void readFile(File file) {
 
-        SmilesGenerator smilesGenerator = new SmilesGenerator(SmiFlavor.Unique); //Unique - canonical SMILES string, different atom ordering produces the same* SMILES. No isotope or stereochemistry encoded.
-        SmilesGenerator absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
+        this.smilesGenerator = new SmilesGenerator(SmiFlavor.Unique); //Unique - canonical SMILES string, different atom ordering produces the same* SMILES. No isotope or stereochemistry encoded.
+        this.absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
 
 
         this.file = file;
+        this.fileName = CompressedInput.uncompressedName(file.getName());
         int count = 1;
 
-        this.source = file.getName().toLowerCase().replace(".mol", "");
-
+        this.source = fileName.toLowerCase().replace(".mol", "");
 
+        // records are cut from the mapped file here and parsed, curated and saved on the shared ingestion pool
+        this.writeBuffer = sourceNaturalProductWriter.newBuffer(source);
+        IngestionScheduler.TaskGroup tasks = ingestionScheduler.newTaskGroup();
+        AtomicInteger processed = new AtomicInteger();
 
-        try{
+        try(SDFRecordSplitter splitter = new SDFRecordSplitter(file)){
 
-            reader = new IteratingSDFReader(new FileInputStream(file), DefaultChemObjectBuilder.getInstance());
             System.out.println("MOL reader creation and inserting in MongoDB for "+source);
-            reader.setSkip(true);
-
-
-            while (reader.hasNext() && count <= 600000) {
-
-                try{
-                    IAtomContainer molecule = reader.next();
-
-                    molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
-                    molecule.setProperty("FILE_ORIGIN", file.getName().replace(".mol", ""));
-
-                    molecule.setProperty("SOURCE", source);
 
+            List<String> records = new ArrayList<>();
+            int firstRecordNumber = count;
+            String record;
+            while ((record = splitter.nextRecord()) != null) {
+                records.add(record);
+                count++;
 
+                if(records.size() == recordsPerTask){
+                    submitRecords(tasks, records, firstRecordNumber, processed);
+                    records = new ArrayList<>();
+                    firstRecordNumber = count;
+                }
+            }
+            if(!records.isEmpty()){
+                submitRecords(tasks, records, firstRecordNumber, processed);
+            }
 
-                    // Molecule original information
+        } catch (IOException ex) {
+            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
+            ex.printStackTrace();
+            System.exit(0);
+        }
 
-                    boolean foundOriginalSmiles = false;
-                    molecule.setProperty("ORIGINAL_INCHI", "");
-                    molecule.setProperty("ORIGINAL_INCHIKEY", "");
+        tasks.awaitCompletion();
+        writeBuffer.flush();
 
-                    //trick to avoid having a molecule without even implicit hydrogens
-                    AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
-                    CDKHydrogenAdder adder =
-                            CDKHydrogenAdder.getInstance(SilentChemObjectBuilder.getInstance());
-                    adder.addImplicitHydrogens(molecule);
+    }
 
-                    IAtomContainer tmpMolecule = molecule.clone();
-                    for(Object p : molecule.getProperties().keySet()){
 
-                        if(p.toString().toLowerCase().contains("smiles")){
-                            tmpMolecule.setProperty("ORIGINAL_SMILES", molecule.getProperty(p));
-                            foundOriginalSmiles = true;
-                        }
-                        if(p.toString().toLowerCase().contains("inchi") && !(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key")) ){
-                            tmpMolecule.setProperty("ORIGINAL_INCHI", molecule.getProperty(p));
-                        }
-                        if(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key")){
-                            tmpMolecule.setProperty("ORIGINAL_INCHIKEY", molecule.getProperty(p));
+    private void submitRecords(IngestionScheduler.TaskGroup tasks, List<String> records, int firstRecordNumber, AtomicInteger processed){
+        tasks.submit(() -> {
+            for(int r = 0; r < records.size(); r++){
+                String recordHash = SourceNaturalProductWriter.recordHash(records.get(r));
+                if(writeBuffer.isNewRecord(recordHash)) {
+                    long parseStart = System.nanoTime();
+                    try(IteratingSDFReader recordReader = new IteratingSDFReader(new StringReader(records.get(r)), DefaultChemObjectBuilder.getInstance())) {
+                        recordReader.setSkip(true);
+                        if (recordReader.hasNext()) {
+                            IAtomContainer molecule = recordReader.next();
+                            ingestionMetrics.record(source, IngestionMetrics.Stage.PARSE, parseStart);
+                            readMolecule(molecule, firstRecordNumber + r, recordHash);
+                        }else{
+                            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
                         }
+                    } catch (Exception ex) {
+                        ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
+                        //ex.printStackTrace();
                     }
+                }
 
+                ingestionMetrics.recordRead(source);
+                if(processed.incrementAndGet()%50000==0){
+                    System.out.println("Molecules read: "+processed.get());
+                }
+            }
+        });
+    }
 
-                    molecule = tmpMolecule;
 
+    private void readMolecule(IAtomContainer molecule, int count, String recordHash) throws Exception {
 
-                    if(!foundOriginalSmiles) {
-                        molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.create(molecule));
-                    }
+        molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
+        molecule.setProperty("FILE_ORIGIN", fileName.replace(".mol", ""));
 
+        molecule.setProperty("SOURCE", source);
 
 
 
-                    //Molecule curation
-                    molecule = moleculeChecker.checkMolecule(molecule);
+        // Molecule original information
 
+        boolean foundOriginalSmiles = false;
+        molecule.setProperty("ORIGINAL_INCHI", "");
+        molecule.setProperty("ORIGINAL_INCHIKEY", "");
 
-                    if (molecule != null) {
+        //trick to avoid having a molecule without even implicit hydrogens
+        AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
+        CDKHydrogenAdder adder =
+                CDKHydrogenAdder.getInstance(SilentChemObjectBuilder.getInstance());
+        adder.addImplicitHydrogens(molecule);
 
-                        try {
+        IAtomContainer tmpMolecule = molecule.clone();
+        for(Object p : molecule.getProperties().keySet()){
 
-                            List options = new ArrayList();
-                            options.add(INCHI_OPTION.SNon);
-                            options.add(INCHI_OPTION.ChiralFlagOFF);
-                            options.add(INCHI_OPTION.AuxNone);
-                            InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
+            if(p.toString().toLowerCase().contains("smiles")){
+                tmpMolecule.setProperty("ORIGINAL_SMILES", molecule.getProperty(p));
+                foundOriginalSmiles = true;
+            }
+            if(p.toString().toLowerCase().contains("inchi") && !(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key")) ){
+                tmpMolecule.setProperty("ORIGINAL_INCHI", molecule.getProperty(p));
+            }
+            if(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key")){
+                tmpMolecule.setProperty("ORIGINAL_INCHIKEY", molecule.getProperty(p));
+            }
+        }
 
-                            molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                            molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
-                        } catch (CDKException e) {
 
-                            Integer totalBonds = molecule.getBondCount();
-                            Integer ib = 0;
-                            while (ib < totalBonds) {
+        molecule = tmpMolecule;
 
-                                IBond b = molecule.getBond(ib);
-                                if (b.getOrder() == IBond.Order.UNSET) {
-                                    //System.out.println(b.getOrder());
-                                    b.setOrder(IBond.Order.SINGLE);
 
-                                }
-                                ib++;
-                            }
-                            List options = new ArrayList();
-                            options.add(INCHI_OPTION.SNon);
-                            options.add(INCHI_OPTION.ChiralFlagOFF);
-                            options.add(INCHI_OPTION.AuxNone);
-                            InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
+        if(!foundOriginalSmiles) {
+            molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.create(molecule));
+        }
 
-                            molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                            molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
-                        }
 
 
-                        String simpleSmiles = smilesGenerator.create(molecule);
-                        String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
-                        molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
-                        if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
-                            molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
-                        }
 
+        //Molecule curation
+        long curationStart = System.nanoTime();
+        molecule = moleculeChecker.checkMolecule(molecule);
+        ingestionMetrics.record(source, IngestionMetrics.Stage.CURATION, curationStart);
 
-                        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
-                        LocalDate localDate = LocalDate.now();
-
-                        molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
-
-
-                        SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
-
-                        sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
-
-                        String taxa = databaseTypeChecker.checkKingdom(this.source);
-                        if(taxa.equals("mixed")){
-                            //do things db by db
-                            if(source.equals("nubbedb")){
-                                //there is a p at the beginning of each id for plants
-                                if(molecule.getID().startsWith("p.")){
-                                    taxa = "plants";
-                                }else{
-                                    taxa="animals";
-                                }
-                            }
-                            else if(source.equals("npatlas")){
-                                if(molecule.getID().startsWith("b")){
-                                    taxa = "bacteria";
-                                }else{
-                                    taxa="fungi";
-                                }
-                            }
-                            else{
-                                taxa="notax";
-                            }
-                        }
-                        sourceNaturalProduct.setOrganismText(new ArrayList<String>());
-                        sourceNaturalProduct.organismText.add(taxa);
 
+        if (molecule != null) {
 
-                        if(!moleculeChecker.isForbiddenMolecule(molecule)){
-                            sourceNaturalProductRepository.save(sourceNaturalProduct);
-                        }
-                    }
+            inchiCache.addSimpleInchi(molecule);
 
 
+            String simpleSmiles = smilesGenerator.create(molecule);
+            String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
+            molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
+            if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
+                molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
+            }
 
-                } catch (Exception ex) {
-                    //ex.printStackTrace();
-                }
-                count++;
-                //System.out.println(count);
 
-                if(count%50000==0){
-                    System.out.println("Molecules read: "+count);
-                }
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+            LocalDate localDate = LocalDate.now();
 
+            molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
 
 
-            }
+            SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
+            sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
 
+            String taxa = databaseTypeChecker.checkKingdom(this.source);
+            if(taxa.equals("mixed")){
+                //do things db by db
+                if(source.equals("nubbedb")){
+                    //there is a p at the beginning of each id for plants
+                    if(molecule.getID().startsWith("p.")){
+                        taxa = "plants";
+                    }else{
+                        taxa="animals";
+                    }
+                }
+                else if(source.equals("npatlas")){
+                    if(molecule.getID().startsWith("b")){
+                        taxa = "bacteria";
+                    }else{
+                        taxa="fungi";
+                    }
+                }
+                else{
+                    taxa="notax";
+                }
+            }
+            sourceNaturalProduct.setOrganismText(new ArrayList<String>());
+            sourceNaturalProduct.organismText.add(taxa);
 
 
-        } catch (IOException ex) {
-            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
-            ex.printStackTrace();
-            System.exit(0);
+            if(!moleculeChecker.isForbiddenMolecule(molecule)){
+                sourceNaturalProduct.setRecordHash(recordHash);
+                writeBuffer.add(sourceNaturalProduct);
+            }else{
+                ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.FORBIDDEN_INCHIKEY);
+            }
         }
-
-
     }
 
     @Override
@@ -1,8 +1,11 @@
 package de.unijena.cheminf.npopensourcecollector.readers;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.NPDatabase;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.NPDatabaseRepository;
@@ -24,6 +27,9 @@ public class ReadWorker implements Runnable {
 
     private String fileSource;
 
+    //skip the file if it did not change since it was last read
+    private boolean incremental = false;
+
 
     private ArrayList<IAtomContainer> molecules ;
 
@@ -53,7 +59,8 @@ public class ReadWorker implements Runnable {
     }
 
     public boolean acceptFile(String filename) {
-        filename = filename.toLowerCase();
+        // a compressed file has the format of its name without the compression extension
+        filename = CompressedInput.uncompressedName(filename.toLowerCase());
         if (filename.endsWith("sdf") || filename.toLowerCase().contains("sdf".toLowerCase())) {
             this.submittedFileFormat="sdf";
             return true;
@@ -115,8 +122,27 @@ public class ReadWorker implements Runnable {
         //System.out.println("\n\n Working on: "+fileToRead.getName() + "\n\n");
         System.out.println("\n\n Working on: "+fileToRead.getAbsolutePath() + "\n\n");
 
-        NPDatabase newDB = new NPDatabase();
-        newDB.setLocalFileName(fileToRead.getAbsolutePath());
+        NPDatabase newDB = npDatabaseRepository.findByLocalFileName(fileToRead.getAbsolutePath());
+
+        String fileHash = null;
+        if(incremental && newDB != null && Long.valueOf(fileToRead.length()).equals(newDB.getFileSize())){
+            // same size: only the content tells whether the file changed, it has to be hashed before reading it
+            try {
+                fileHash = Files.asByteSource(fileToRead).hash(Hashing.sha256()).toString();
+            } catch (IOException e) {
+                System.out.println("Could not read "+fileToRead.getAbsolutePath());
+                e.printStackTrace();
+                return;
+            }
+            if(fileHash.equals(newDB.getFileHash())){
+                System.out.println("Unchanged since the last ingestion, skipped: "+fileToRead.getAbsolutePath());
+                return;
+            }
+        }
+        if(newDB == null) {
+            newDB = new NPDatabase();
+            newDB.setLocalFileName(fileToRead.getAbsolutePath());
+        }
 
         npDatabaseRepository.save(newDB);
 
@@ -141,7 +167,28 @@ public class ReadWorker implements Runnable {
             reader = new CSVReader();
         }
 
-        this.reader.readFile(this.fileToRead);
+        // otherwise the file is hashed while the reader reads it, not in a pass of its own
+        FileDigest digest = fileHash == null ? FileDigest.start(fileToRead) : null;
+        try {
+            this.reader.readFile(this.fileToRead);
+            if(digest != null){
+                fileHash = digest.finish();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not hash "+fileToRead.getAbsolutePath());
+            e.printStackTrace();
+            return;
+        } finally {
+            if(digest != null){
+                digest.cancel();
+            }
+        }
+
+        // the file counts as ingested only once it has been read completely
+        newDB.setSource(this.reader.returnSource());
+        newDB.setFileHash(fileHash);
+        newDB.setFileSize(fileToRead.length());
+        npDatabaseRepository.save(newDB);
 
     }
 
@@ -149,4 +196,8 @@ public class ReadWorker implements Runnable {
     public void setFileToRead(String fileName){
         this.fileToRead = new File(fileName);
     }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
 }
@@ -1,5 +1,11 @@
 package de.unijena.cheminf.npopensourcecollector.readers;
 
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPDatabase;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPDatabaseRepository;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
@@ -7,6 +13,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -18,8 +27,29 @@ import java.util.stream.Stream;
 @Service
 public class ReaderService {
 
+    @Autowired
+    NPDatabaseRepository npDatabaseRepository;
+
+    @Autowired
+    SourceNaturalProductRepository sourceNaturalProductRepository;
+
+    @Autowired
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+
+    @Autowired
+    InChICache inchiCache;
+
+    @Autowired
+    IngestionMetrics ingestionMetrics;
+
     private List<String> molecularFiles;
 
+    //files read at the same time
+    private int fileReaderThreads = 4;
+
+    //keep the source NPs of the files and records that did not change since the last ingestion
+    private boolean incremental = false;
+
 
     public boolean directoryContainsMolecularFiles(String directory){
         boolean molecularFileFound = false;
@@ -48,11 +78,22 @@ public class ReaderService {
 
         HashSet<String> totalDatabases = new HashSet<String>();
 
-        ExecutorService taskExecutor = Executors.newFixedThreadPool(this.molecularFiles.size());
+        sourceNaturalProductWriter.setIncremental(incremental);
+        if(incremental){
+            deleteRemovedFiles();
+        }
 
-        for(String file : this.molecularFiles){
+        // the files are only cut in records on these threads, the records themselves are processed on the ingestion
+        // scheduler; the largest files start first so that none of them is left alone at the end of the run
+        ExecutorService taskExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(fileReaderThreads, this.molecularFiles.size())));
+
+        List<String> filesBySize = new ArrayList<>(this.molecularFiles);
+        filesBySize.sort(Comparator.comparingLong((String f) -> new File(f).length()).reversed());
+
+        for(String file : filesBySize){
             ReadWorker rw = new ReadWorker();
             rw.setFileToRead(file);
+            rw.setIncremental(incremental);
 
             rw.acceptFileFormat = rw.acceptFile(file);
             boolean start = rw.startWorker();
@@ -72,11 +113,47 @@ public class ReaderService {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        inchiCache.printStatistics();
+        ingestionMetrics.writeSummary(Collections.singletonMap("inchiCache", inchiCache.statistics()));
 
         return totalDatabases;
 
     }
 
+    /**
+     * Deletes the source NPs of the files ingested before that are not in the data directory any more
+     */
+    private void deleteRemovedFiles(){
+        HashSet<String> currentFiles = new HashSet<>();
+        for(String file : this.molecularFiles){
+            currentFiles.add(new File(file).getAbsolutePath());
+        }
+        for(NPDatabase npDatabase : npDatabaseRepository.findAll()){
+            if(!currentFiles.contains(npDatabase.getLocalFileName())){
+                Long deleted = npDatabase.getSource() == null ? 0 : sourceNaturalProductRepository.deleteBySource(npDatabase.getSource());
+                npDatabaseRepository.delete(npDatabase);
+                System.out.println("Removed file "+npDatabase.getLocalFileName()+": "+deleted+" source NPs deleted");
+            }
+        }
+    }
+
+
+    public int getFileReaderThreads() {
+        return fileReaderThreads;
+    }
+
+    public void setFileReaderThreads(int fileReaderThreads) {
+        this.fileReaderThreads = fileReaderThreads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     /*public void readSyntheticMoleculesAndInsertInMongo(String filename){
         //check file extension and if it is not empty
         File smFile = new File(filename);
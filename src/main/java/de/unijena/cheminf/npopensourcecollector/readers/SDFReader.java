@@ -1,20 +1,17 @@
 package de.unijena.cheminf.npopensourcecollector.readers;
 
 import de.unijena.cheminf.npopensourcecollector.misc.DatabaseTypeChecker;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
 import de.unijena.cheminf.npopensourcecollector.services.AtomContainerToSourceNaturalProductService;
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.misc.MoleculeChecker;
-import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
-import net.sf.jniinchi.INCHI_OPTION;
 import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.aromaticity.Kekulization;
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.inchi.InChIGenerator;
-import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.isomorphism.AtomMatcher;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
@@ -25,272 +22,290 @@ import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import org.springframework.context.annotation.Bean;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SDFReader implements Reader{
 
     File file;
+    String fileName;
     ArrayList<IAtomContainer> listOfMolecules;
 
-    private IteratingSDFReader reader = null;
+    //SmilesGenerator instances are not thread safe, each ingestion thread running records of the file has its own
+    private final ThreadLocal<SmilesGenerator> smilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Unique)); //Unique - canonical SMILES string, different atom ordering produces the same* SMILES. No isotope or stereochemistry encoded.
+    private final ThreadLocal<SmilesGenerator> absoluteSmilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Absolute));
 
-    SourceNaturalProductRepository sourceNaturalProductRepository;
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+
+    SourceNaturalProductWriter.Buffer writeBuffer;
     AtomContainerToSourceNaturalProductService ac2snp;
 
 
     MoleculeChecker moleculeChecker;
+    InChICache inchiCache;
+    IngestionMetrics ingestionMetrics;
 
     DatabaseTypeChecker databaseTypeChecker;
 
+    IngestionScheduler ingestionScheduler;
+
     String source;
 
+    private int recordsPerTask = 200;
+
 
 
 
     public SDFReader(){
 
         this.listOfMolecules = new ArrayList<IAtomContainer>();
-        sourceNaturalProductRepository = BeanUtil.getBean(SourceNaturalProductRepository.class);
+        sourceNaturalProductWriter = BeanUtil.getBean(SourceNaturalProductWriter.class);
         ac2snp = BeanUtil.getBean(AtomContainerToSourceNaturalProductService.class);
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
+        inchiCache = BeanUtil.getBean(InChICache.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
         databaseTypeChecker = BeanUtil.getBean(DatabaseTypeChecker.class);
+        ingestionScheduler = BeanUtil.getBean(IngestionScheduler.class);
 
     }
 
     @Override
     public void readFile(File file) {
 
-        SmilesGenerator smilesGenerator = new SmilesGenerator(SmiFlavor.Unique); //Unique - canonical SMILES string, different atom ordering produces the same* SMILES. No isotope or stereochemistry encoded.
-        SmilesGenerator absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
 
 
         this.file = file;
+        this.fileName = CompressedInput.uncompressedName(file.getName());
         int count = 1;
 
-        this.source = file.getName().toLowerCase().replace(".sdf", "");
+        this.source = fileName.toLowerCase().replace(".sdf", "");
 
+        // records are cut from the mapped file here and parsed, curated and saved on the shared ingestion pool
+        this.writeBuffer = sourceNaturalProductWriter.newBuffer(source);
+        IngestionScheduler.TaskGroup tasks = ingestionScheduler.newTaskGroup();
+        AtomicInteger processed = new AtomicInteger();
 
-        try{
+        try(SDFRecordSplitter splitter = new SDFRecordSplitter(file)){
 
-            reader = new IteratingSDFReader(new FileInputStream(file), DefaultChemObjectBuilder.getInstance());
             System.out.println("SDF reader creation and inserting in MongoDB for "+source);
-            reader.setSkip(true);
 
+            List<String> records = new ArrayList<>();
+            int firstRecordNumber = count;
+            String record;
+            while ((record = splitter.nextRecord()) != null) {
+                records.add(record);
+                count++;
 
-            while (reader.hasNext() && count <= 600000) {
-
-                try{
-                    IAtomContainer molecule = reader.next();
+                if(records.size() == recordsPerTask){
+                    submitRecords(tasks, records, firstRecordNumber, processed);
+                    records = new ArrayList<>();
+                    firstRecordNumber = count;
+                }
+            }
+            if(!records.isEmpty()){
+                submitRecords(tasks, records, firstRecordNumber, processed);
+            }
 
-                    molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
-                    molecule.setProperty("FILE_ORIGIN", file.getName().replace(".sdf", ""));
+        } catch (IOException ex) {
+            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
+            ex.printStackTrace();
+            System.exit(0);
+        }
 
-                    molecule.setProperty("SOURCE", source);
+        tasks.awaitCompletion();
+        writeBuffer.flush();
 
+    }
 
 
+    private void submitRecords(IngestionScheduler.TaskGroup tasks, List<String> records, int firstRecordNumber, AtomicInteger processed){
+        tasks.submit(() -> {
+            for(int r = 0; r < records.size(); r++){
+                String recordHash = SourceNaturalProductWriter.recordHash(records.get(r));
+                if(writeBuffer.isNewRecord(recordHash)) {
+                    long parseStart = System.nanoTime();
+                    try(IteratingSDFReader recordReader = new IteratingSDFReader(new StringReader(records.get(r)), DefaultChemObjectBuilder.getInstance())) {
+                        recordReader.setSkip(true);
+                        if (recordReader.hasNext()) {
+                            IAtomContainer molecule = recordReader.next();
+                            ingestionMetrics.record(source, IngestionMetrics.Stage.PARSE, parseStart);
+                            readMolecule(molecule, firstRecordNumber + r, recordHash);
+                        }else{
+                            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
+                        }
+                    } catch (Exception ex) {
+                        ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
+                        ex.printStackTrace();
+                    }
+                }
 
-                    // Molecule original information
+                ingestionMetrics.recordRead(source);
+                if(processed.incrementAndGet()%50000==0){
+                    System.out.println("Molecules read: "+processed.get());
+                }
+            }
+        });
+    }
 
-                    boolean foundOriginalSmiles = false;
-                    molecule.setProperty("ORIGINAL_INCHI", "");
-                    molecule.setProperty("ORIGINAL_INCHIKEY", "");
 
-                    //trick to avoid having a molecule without even implicit hydrogens
-                    try {
-                            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
-                            CDKHydrogenAdder adder = CDKHydrogenAdder.getInstance(SilentChemObjectBuilder.getInstance());
-                            adder.addImplicitHydrogens(molecule);
-                            System.out.println("Problem with adding implicit hydrogens and molecule configuration");
-                            System.out.println(molecule);
+    private void readMolecule(IAtomContainer molecule, int count, String recordHash){
 
-                            Kekulization.kekulize(molecule);
+        try{
+            molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
+            molecule.setProperty("FILE_ORIGIN", fileName.replace(".sdf", ""));
 
-                            System.out.println("Kekulization problem");
-                            System.out.println(molecule);
+            molecule.setProperty("SOURCE", source);
 
-                    }catch(CDKException e){
-                        System.out.println("Problem with molecule in "+ source);
-                        //System.out.println(molecule);
-                    }
 
-                    IAtomContainer tmpMolecule = molecule.clone();
-                    for(Object p : molecule.getProperties().keySet()){
 
-                        if(p.toString().toLowerCase().contains("smiles")){
-                            tmpMolecule.setProperty("ORIGINAL_SMILES", molecule.getProperty(p));
-                            foundOriginalSmiles = true;
-                        }
-                        if(p.toString().toLowerCase().contains("inchi") && !(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key") || p.toString().toLowerCase().contains("inchi key")) ){
-                            tmpMolecule.setProperty("ORIGINAL_INCHI", molecule.getProperty(p));
-                        }
-                        if(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key") || p.toString().toLowerCase().contains("inchi key")){
-                            tmpMolecule.setProperty("ORIGINAL_INCHIKEY", molecule.getProperty(p));
-                        }
-                        if(p.toString().toLowerCase().contains("cas")){
-                            tmpMolecule.setProperty("CAS", molecule.getProperty(p));
-                        }
-                    }
 
-                    molecule = tmpMolecule;
+            // Molecule original information
 
-                    try {
+            boolean foundOriginalSmiles = false;
+            molecule.setProperty("ORIGINAL_INCHI", "");
+            molecule.setProperty("ORIGINAL_INCHIKEY", "");
 
-                        if (!foundOriginalSmiles) {
-                            molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.create(molecule));
-                        }
-                    }catch (CDKException e){
-                        e.printStackTrace();
-                    }
+            //trick to avoid having a molecule without even implicit hydrogens
+            try {
+                    AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
+                    CDKHydrogenAdder adder = CDKHydrogenAdder.getInstance(SilentChemObjectBuilder.getInstance());
+                    adder.addImplicitHydrogens(molecule);
 
+                    Kekulization.kekulize(molecule);
 
+            }catch(CDKException e){
+                System.out.println("Problem with molecule in "+ source);
+                //System.out.println(molecule);
+            }
 
+            IAtomContainer tmpMolecule = molecule.clone();
+            for(Object p : molecule.getProperties().keySet()){
 
+                if(p.toString().toLowerCase().contains("smiles")){
+                    tmpMolecule.setProperty("ORIGINAL_SMILES", molecule.getProperty(p));
+                    foundOriginalSmiles = true;
+                }
+                if(p.toString().toLowerCase().contains("inchi") && !(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key") || p.toString().toLowerCase().contains("inchi key")) ){
+                    tmpMolecule.setProperty("ORIGINAL_INCHI", molecule.getProperty(p));
+                }
+                if(p.toString().toLowerCase().contains("inchikey") || p.toString().toLowerCase().contains("inchi_key") || p.toString().toLowerCase().contains("inchi key")){
+                    tmpMolecule.setProperty("ORIGINAL_INCHIKEY", molecule.getProperty(p));
+                }
+                if(p.toString().toLowerCase().contains("cas")){
+                    tmpMolecule.setProperty("CAS", molecule.getProperty(p));
+                }
+            }
 
+            molecule = tmpMolecule;
 
-                    //Molecule curation
-                    molecule = moleculeChecker.checkMolecule(molecule);
+            try {
 
+                if (!foundOriginalSmiles) {
+                    molecule.setProperty("ORIGINAL_SMILES", smilesGenerator.get().create(molecule));
+                }
+            }catch (CDKException e){
+                e.printStackTrace();
+            }
 
-                    if (molecule != null) {
 
-                        try {
 
-                            List options = new ArrayList();
-                            options.add(INCHI_OPTION.SNon);
-                            options.add(INCHI_OPTION.ChiralFlagOFF);
-                            options.add(INCHI_OPTION.AuxNone);
-                            InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
 
-                            molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                            molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
-                        } catch (CDKException e) {
 
-                            Integer totalBonds = molecule.getBondCount();
-                            Integer ib = 0;
-                            while (ib < totalBonds) {
 
-                                IBond b = molecule.getBond(ib);
-                                if (b.getOrder() == IBond.Order.UNSET) {
-                                    //System.out.println(b.getOrder());
-                                    b.setOrder(IBond.Order.SINGLE);
+            //Molecule curation
+            long curationStart = System.nanoTime();
+            molecule = moleculeChecker.checkMolecule(molecule);
+            ingestionMetrics.record(source, IngestionMetrics.Stage.CURATION, curationStart);
 
-                                }
-                                ib++;
-                            }
-                            List options = new ArrayList();
-                            options.add(INCHI_OPTION.SNon);
-                            options.add(INCHI_OPTION.ChiralFlagOFF);
-                            options.add(INCHI_OPTION.AuxNone);
 
-                            try {
-                                InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options);
+            if (molecule != null) {
 
-                                molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
-                            }catch (CDKException e2){
-                                System.out.println(molecule.getProperty("ORIGINAL_SMILES").toString() + " in "+this.source);
-                            }
-                        }
+                try {
+                    inchiCache.addSimpleInchi(molecule);
+                } catch (CDKException e) {
+                    System.out.println(molecule.getProperty("ORIGINAL_SMILES").toString() + " in "+this.source);
+                }
 
 
-                        String simpleSmiles = smilesGenerator.create(molecule);
+                String simpleSmiles = smilesGenerator.get().create(molecule);
 
-                        IAtomContainer moleculeImplicitHydrogens = AtomContainerManipulator.removeHydrogens(molecule);
-                        String absoluteSmiles = absoluteSmilesGenerator.create(moleculeImplicitHydrogens);
+                IAtomContainer moleculeImplicitHydrogens = AtomContainerManipulator.removeHydrogens(molecule);
+                String absoluteSmiles = absoluteSmilesGenerator.get().create(moleculeImplicitHydrogens);
 
-                        molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
+                molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
 
-                        if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
-                            molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
-                        }
+                if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
+                    molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
+                }
 
 
-                        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
-                        LocalDate localDate = LocalDate.now();
-
-                        molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
-
-                        SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
-
-                        sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
-
-                        String taxa = databaseTypeChecker.checkKingdom(this.source);
-                        if(taxa.equals("mixed")){
-                            //do things db by db
-                            if(source.equals("nubbedb")){
-                                //there is a p at the beginning of each id for plants
-                                if(molecule.getID().startsWith("p.")){
-                                    taxa = "plants";
-                                }else{
-                                    taxa="animals";
-                                }
-                            }
-                            else if(source.equals("npatlas")){
-                                if(molecule.getID().startsWith("b")){
-                                    taxa = "bacteria";
-                                }else{
-                                    taxa="fungi";
-                                }
-                            }
-                            else{
-                                taxa="notax";
-                            }
-                        }
-                        sourceNaturalProduct.setOrganismText(new ArrayList<String>());
-                        sourceNaturalProduct.organismText.add(taxa);
+                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+                LocalDate localDate = LocalDate.now();
 
+                molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
 
-                        Hashtable<String, ArrayList<String>> sdfMetaData = searchMetaData(molecule);
-                        if(sdfMetaData.containsKey("name")){
-                            sourceNaturalProduct.setName(sdfMetaData.get("name").get(0));
-                        }
+                SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
-                        if(sdfMetaData.containsKey("synonyms")){
-                            sourceNaturalProduct.setSynonyms(sdfMetaData.get("synonyms"));
-                        }
+                sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
 
-                        if(sdfMetaData.containsKey("citations")){
-                            sourceNaturalProduct.setCitation(sdfMetaData.get("citations"));
+                String taxa = databaseTypeChecker.checkKingdom(this.source);
+                if(taxa.equals("mixed")){
+                    //do things db by db
+                    if(source.equals("nubbedb")){
+                        //there is a p at the beginning of each id for plants
+                        if(molecule.getID().startsWith("p.")){
+                            taxa = "plants";
+                        }else{
+                            taxa="animals";
                         }
-
-
-                        if(!moleculeChecker.isForbiddenMolecule(molecule)){
-                            sourceNaturalProductRepository.save(sourceNaturalProduct);
+                    }
+                    else if(source.equals("npatlas")){
+                        if(molecule.getID().startsWith("b")){
+                            taxa = "bacteria";
+                        }else{
+                            taxa="fungi";
                         }
                     }
+                    else{
+                        taxa="notax";
+                    }
+                }
+                sourceNaturalProduct.setOrganismText(new ArrayList<String>());
+                sourceNaturalProduct.organismText.add(taxa);
 
 
-
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+                Hashtable<String, ArrayList<String>> sdfMetaData = searchMetaData(molecule);
+                if(sdfMetaData.containsKey("name")){
+                    sourceNaturalProduct.setName(sdfMetaData.get("name").get(0));
                 }
-                count++;
-                //System.out.println(count);
 
-                if(count%50000==0){
-                    System.out.println("Molecules read: "+count);
+                if(sdfMetaData.containsKey("synonyms")){
+                    sourceNaturalProduct.setSynonyms(sdfMetaData.get("synonyms"));
                 }
 
+                if(sdfMetaData.containsKey("citations")){
+                    sourceNaturalProduct.setCitation(sdfMetaData.get("citations"));
+                }
 
 
+                if(!moleculeChecker.isForbiddenMolecule(molecule)){
+                    sourceNaturalProduct.setRecordHash(recordHash);
+                    writeBuffer.add(sourceNaturalProduct);
+                }else{
+                    ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.FORBIDDEN_INCHIKEY);
+                }
             }
 
 
 
-
-        } catch (IOException ex) {
-            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
+        } catch (Exception ex) {
+            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
             ex.printStackTrace();
-            System.exit(0);
         }
-
-
-
     }
 
     @Override
@@ -0,0 +1,184 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Cuts an SDF file in its records, the text up to and including each "$$$$" line, without parsing them.
+ * The file is memory-mapped by windows that always start at the beginning of a record, so a record is never split
+ * between two windows and files larger than what one mapping can hold are supported.
+ * Compressed files cannot be mapped: their decompressed content is cut line by line instead.
+ */
+public class SDFRecordSplitter implements Closeable {
+
+    private static final int WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private final long fileSize;
+
+    //compressed files only, the mapping fields are not used then
+    private final BufferedReader lines;
+
+    //fed with each window as it is mapped, null if ReadWorker did not start one
+    private final FileDigest digest;
+
+    private MappedByteBuffer window;
+
+    //file position of the first byte of the window
+    private long windowStart = 0;
+
+    //position in the window of the next record
+    private int position = 0;
+
+    private int windowBytes;
+
+
+    public SDFRecordSplitter(File file) throws IOException {
+        this(file, WINDOW_BYTES);
+    }
+
+
+    /**
+     * With the given size of the first window of a mapped file, for the tests of records crossing windows
+     */
+    SDFRecordSplitter(File file, int windowBytes) throws IOException {
+        this.windowBytes = windowBytes;
+        this.digest = FileDigest.of(file);
+        if(CompressedInput.isCompressed(file.getName())){
+            this.channel = null;
+            this.fileSize = 0;
+            this.lines = CompressedInput.openReader(file);
+            return;
+        }
+        this.lines = null;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        mapWindow(0);
+    }
+
+
+    private void mapWindow(long start) throws IOException {
+        windowStart = start;
+        position = 0;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, fileSize - start));
+        if(digest != null){
+            digest.update(start, window);
+        }
+    }
+
+
+    /**
+     * The next record, or null at the end of the file. Text after the last "$$$$" line is returned as a last record
+     * unless it is only blank.
+     */
+    public String nextRecord() throws IOException {
+        if(lines != null){
+            return nextRecordFromLines();
+        }
+        while(true) {
+            int end = findRecordEnd(position);
+            if (end >= 0) {
+                String record = decode(position, end);
+                position = end;
+                return record;
+            }
+
+            boolean windowReachesEndOfFile = windowStart + window.limit() >= fileSize;
+            if (windowReachesEndOfFile) {
+                if (position >= window.limit() || isBlank(position, window.limit())) {
+                    position = window.limit();
+                    return null;
+                }
+                String record = decode(position, window.limit());
+                position = window.limit();
+                return record;
+            }
+
+            // the record goes on after the window: map again from its first byte, larger if one record fills a window
+            if (position == 0) {
+                windowBytes = (int) Math.min((long) windowBytes * 2, Integer.MAX_VALUE - 8);
+            }
+            mapWindow(windowStart + position);
+        }
+    }
+
+
+    private String nextRecordFromLines() throws IOException {
+        StringBuilder record = new StringBuilder();
+        boolean blank = true;
+        String line;
+        while((line = lines.readLine()) != null){
+            record.append(line).append('\n');
+            if(line.startsWith("$$$$")){
+                return record.toString();
+            }
+            blank = blank && line.trim().isEmpty();
+        }
+        return blank ? null : record.toString();
+    }
+
+
+    /**
+     * Position just after the "$$$$" line ending the record starting at from, -1 if the window ends before
+     */
+    private int findRecordEnd(int from){
+        int limit = window.limit();
+        int lineStart = from;
+        while(lineStart < limit){
+            if(lineStart + 4 <= limit && window.get(lineStart) == '$' && window.get(lineStart + 1) == '$'
+                    && window.get(lineStart + 2) == '$' && window.get(lineStart + 3) == '$'){
+                int lineEnd = lineStart + 4;
+                while(lineEnd < limit && window.get(lineEnd) != '\n'){
+                    lineEnd++;
+                }
+                if(lineEnd < limit){
+                    return lineEnd + 1;
+                }
+                // the terminator line is complete only if the file ends there
+                return windowStart + limit >= fileSize ? limit : -1;
+            }
+            while(lineStart < limit && window.get(lineStart) != '\n'){
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+
+    private String decode(int from, int to){
+        byte[] bytes = new byte[to - from];
+        ByteBuffer view = window.duplicate();
+        view.position(from);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    private boolean isBlank(int from, int to){
+        for(int i = from; i < to; i++){
+            if(!Character.isWhitespace(window.get(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if(lines != null){
+            lines.close();
+        }else {
+            channel.close();
+        }
+    }
+}
@@ -2,18 +2,15 @@ package de.unijena.cheminf.npopensourcecollector.readers;
 
 import de.unijena.cheminf.npopensourcecollector.misc.BeanUtil;
 import de.unijena.cheminf.npopensourcecollector.misc.DatabaseTypeChecker;
+import de.unijena.cheminf.npopensourcecollector.misc.InChICache;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
 import de.unijena.cheminf.npopensourcecollector.misc.MoleculeChecker;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
-import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
 import de.unijena.cheminf.npopensourcecollector.services.AtomContainerToSourceNaturalProductService;
-import net.sf.jniinchi.INCHI_OPTION;
 import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
-import org.openscience.cdk.inchi.InChIGenerator;
-import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.smiles.SmiFlavor;
 import org.openscience.cdk.smiles.SmilesGenerator;
 import org.openscience.cdk.smiles.SmilesParser;
@@ -24,26 +21,40 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SMILESReader implements Reader {
 
 
     File file;
+    String fileName;
     ArrayList<IAtomContainer> listOfMolecules;
-    private LineNumberReader smilesReader;
-    SourceNaturalProductRepository sourceNaturalProductRepository;
+    SourceNaturalProductWriter sourceNaturalProductWriter;
+    SourceNaturalProductWriter.Buffer writeBuffer;
     AtomContainerToSourceNaturalProductService ac2snp;
     MoleculeChecker moleculeChecker;
+    InChICache inchiCache;
+    IngestionMetrics ingestionMetrics;
     DatabaseTypeChecker databaseTypeChecker;
+    IngestionScheduler ingestionScheduler;
     String source;
 
+    //SmilesGenerator instances are not thread safe, each ingestion thread running records of the file has its own
+    private final ThreadLocal<SmilesGenerator> smilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Unique));
+    private final ThreadLocal<SmilesGenerator> absoluteSmilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Absolute));
+
+    private int recordsPerTask = 200;
+
 
     public SMILESReader(){
         this.listOfMolecules = new ArrayList<IAtomContainer>();
-        sourceNaturalProductRepository = BeanUtil.getBean(SourceNaturalProductRepository.class);
+        sourceNaturalProductWriter = BeanUtil.getBean(SourceNaturalProductWriter.class);
         ac2snp = BeanUtil.getBean(AtomContainerToSourceNaturalProductService.class);
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
+        inchiCache = BeanUtil.getBean(InChICache.class);
+        ingestionMetrics = BeanUtil.getBean(IngestionMetrics.class);
         databaseTypeChecker = BeanUtil.getBean(DatabaseTypeChecker.class);
+        ingestionScheduler = BeanUtil.getBean(IngestionScheduler.class);
 
     }
 
@@ -52,186 +63,180 @@ public class SMILESReader implements Reader {
 
     @Override
     public void readFile(File file) {
-        SmilesGenerator smilesGenerator = new SmilesGenerator(SmiFlavor.Unique );
-        SmilesGenerator absoluteSmilesGenerator = new SmilesGenerator(SmiFlavor.Absolute );
-
 
         this.file = file;
+        this.fileName = CompressedInput.uncompressedName(file.getName());
         int count = 1;
         String line;
 
-        this.source = file.getName().toLowerCase().replace(".smi", "");
+        this.source = fileName.toLowerCase().replace(".smi", "");
+
+        // lines are read here and parsed, curated and saved on the shared ingestion pool
+        this.writeBuffer = sourceNaturalProductWriter.newBuffer(source);
+        IngestionScheduler.TaskGroup tasks = ingestionScheduler.newTaskGroup();
+        AtomicInteger processed = new AtomicInteger();
 
-        try(BufferedReader smilesReader = new BufferedReader(new FileReader(file))) {
+        try(BufferedReader smilesReader = CompressedInput.openReader(file)) {
             System.out.println("SMILES reader creation and inserting in MongoDB for "+source);
 
+            List<String> lines = new ArrayList<>();
+            int firstRecordNumber = count;
+            while ((line = smilesReader.readLine()) != null ) {
 
-            while ((line = smilesReader.readLine()) != null  && count <= 600000) {
+                if(!line.contains("smiles")) {
+                    lines.add(line);
+                    count++;
 
-                String smiles_names = line;
+                    if(lines.size() == recordsPerTask){
+                        submitLines(tasks, lines, firstRecordNumber, processed);
+                        lines = new ArrayList<>();
+                        firstRecordNumber = count;
+                    }
+                }
+            }
+            if(!lines.isEmpty()){
+                submitLines(tasks, lines, firstRecordNumber, processed);
+            }
 
-                if(!line.contains("smiles")) {
-                        try {
-                        String[] splitted = smiles_names.split("\\s+"); //splitting the canonical smiles format: SMILES \s mol name
-                        SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
-
-                        IAtomContainer molecule = null;
-                        try {
-                            molecule = sp.parseSmiles(splitted[0]);
-
-
-                            molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
-                            if(splitted.length==2) {
-                                molecule.setProperty("ID", splitted[1]);
-                                molecule.setID(splitted[1]);
-                            }else if(splitted.length==1){
-                                //no id
-                                molecule.setProperty("ID", Integer.toString(count));
-                                molecule.setID(Integer.toString(count));
-                            }else if(splitted.length>2){
-                                //join everything after 1
-                                ArrayList<String> splitted2 = new ArrayList<String>(Arrays.asList(splitted));
-
-                                String nid = String.join(" ", splitted2);
-                                molecule.setProperty("ID", nid);
-                                molecule.setID(nid);
-                            }
+        } catch (IOException ex) {
+            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
+            ex.printStackTrace();
+            System.exit(0);
+        }
 
-                            molecule.setProperty("FILE_ORIGIN", file.getName().replace(".smi", ""));
+        tasks.awaitCompletion();
+        writeBuffer.flush();
 
-                            molecule.setProperty("SOURCE", source);
+    }
 
-                            molecule.setProperty("ORIGINAL_INCHI", "");
-                            molecule.setProperty("ORIGINAL_INCHIKEY", "");
-                            molecule.setProperty("ORIGINAL_SMILES", splitted[0]);
 
+    private void submitLines(IngestionScheduler.TaskGroup tasks, List<String> lines, int firstRecordNumber, AtomicInteger processed){
+        tasks.submit(() -> {
+            SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
+            for(int l = 0; l < lines.size(); l++){
+                String recordHash = SourceNaturalProductWriter.recordHash(lines.get(l));
+                if(writeBuffer.isNewRecord(recordHash)) {
+                    readLine(lines.get(l), firstRecordNumber + l, sp, recordHash);
+                }
 
-                            molecule = moleculeChecker.checkMolecule(molecule);
+                ingestionMetrics.recordRead(source);
+                if(processed.incrementAndGet()%50000==0){
+                    System.out.println("Molecules read: "+processed.get());
+                }
+            }
+        });
+    }
 
-                            if (molecule != null){
-                                try {
-                                    List options = new ArrayList();
-                                    options.add(INCHI_OPTION.SNon);
-                                    options.add(INCHI_OPTION.ChiralFlagOFF);
-                                    options.add(INCHI_OPTION.AuxNone);
-                                    InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
 
-                                    molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                    molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
+    private void readLine(String smiles_names, int count, SmilesParser sp, String recordHash){
+        long parseStart = System.nanoTime();
+        try {
+            String[] splitted = smiles_names.split("\\s+"); //splitting the canonical smiles format: SMILES \s mol name
 
+            IAtomContainer molecule = null;
+            try {
+                molecule = sp.parseSmiles(splitted[0]);
 
-                                } catch (CDKException e) {
-                                    Integer totalBonds = molecule.getBondCount();
-                                    Integer ib = 0;
-                                    while (ib < totalBonds) {
 
-                                        IBond b = molecule.getBond(ib);
-                                        if (b.getOrder() == IBond.Order.UNSET) {
-                                            b.setOrder(IBond.Order.SINGLE);
+                molecule.setProperty("MOL_NUMBER_IN_FILE", Integer.toString(count));
+                if(splitted.length==2) {
+                    molecule.setProperty("ID", splitted[1]);
+                    molecule.setID(splitted[1]);
+                }else if(splitted.length==1){
+                    //no id
+                    molecule.setProperty("ID", Integer.toString(count));
+                    molecule.setID(Integer.toString(count));
+                }else if(splitted.length>2){
+                    //join everything after 1
+                    ArrayList<String> splitted2 = new ArrayList<String>(Arrays.asList(splitted));
 
-                                        }
-                                        ib++;
-                                    }
-                                    List options = new ArrayList();
-                                    options.add(INCHI_OPTION.SNon);
-                                    options.add(INCHI_OPTION.ChiralFlagOFF);
-                                    options.add(INCHI_OPTION.AuxNone);
-                                    InChIGenerator gen = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule, options );
+                    String nid = String.join(" ", splitted2);
+                    molecule.setProperty("ID", nid);
+                    molecule.setID(nid);
+                }
 
-                                    molecule.setProperty("SIMPLE_INCHI", gen.getInchi());
-                                    molecule.setProperty("SIMPLE_INCHIKEY", gen.getInchiKey());
+                molecule.setProperty("FILE_ORIGIN", fileName.replace(".smi", ""));
 
-                                }
+                molecule.setProperty("SOURCE", source);
 
-                                String simpleSmiles = smilesGenerator.create(molecule);
-                                String absoluteSmiles = absoluteSmilesGenerator.create(molecule);
-                                molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
-                                if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
-                                    molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
-                                }
+                molecule.setProperty("ORIGINAL_INCHI", "");
+                molecule.setProperty("ORIGINAL_INCHIKEY", "");
+                molecule.setProperty("ORIGINAL_SMILES", splitted[0]);
 
 
-                                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
-                                LocalDate localDate = LocalDate.now();
+                ingestionMetrics.record(source, IngestionMetrics.Stage.PARSE, parseStart);
+                long curationStart = System.nanoTime();
+                molecule = moleculeChecker.checkMolecule(molecule);
+                ingestionMetrics.record(source, IngestionMetrics.Stage.CURATION, curationStart);
 
-                                molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
+                if (molecule != null){
+                    inchiCache.addSimpleInchi(molecule);
 
+                    String simpleSmiles = smilesGenerator.get().create(molecule);
+                    String absoluteSmiles = absoluteSmilesGenerator.get().create(molecule);
+                    molecule.setProperty("SIMPLE_SMILES", simpleSmiles);
+                    if(!absoluteSmiles.equals(simpleSmiles) && absoluteSmiles.contains("@")) {
+                        molecule.setProperty("ABSOLUTE_SMILES", absoluteSmiles);
+                    }
 
-                                SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
-                                sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
+                    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+                    LocalDate localDate = LocalDate.now();
 
-                                String taxa = databaseTypeChecker.checkKingdom(this.source);
-                                if(taxa.equals("mixed")){
-                                    //do things db by db
-                                    if(source.equals("nubbedb")){
-                                        //there is a p at the beginning of each id for plants
-                                        if(molecule.getID().startsWith("p.")){
-                                            taxa = "plants";
-                                        }else{
-                                            taxa="animals";
-                                        }
-                                    }
-                                    else if(source.equals("npatlas")){
-                                        if(molecule.getID().startsWith("b")){
-                                            taxa = "bacteria";
-                                        }else{
-                                            taxa="fungi";
-                                        }
-                                    }
-                                    else{
-                                        taxa="notax";
-                                    }
-                                }
-                                sourceNaturalProduct.setOrganismText(new ArrayList<String>());
-                                sourceNaturalProduct.organismText.add(taxa);
+                    molecule.setProperty("ACQUISITION_DATE", dtf.format(localDate));
 
-                                if(!moleculeChecker.isForbiddenMolecule(molecule)){
-                                    sourceNaturalProductRepository.save(sourceNaturalProduct);
-                                }
 
+                    SourceNaturalProduct sourceNaturalProduct = ac2snp.createSNPlInstance(molecule);
 
+                    sourceNaturalProduct.setContinent(databaseTypeChecker.checkContinent(this.source));
 
+                    String taxa = databaseTypeChecker.checkKingdom(this.source);
+                    if(taxa.equals("mixed")){
+                        //do things db by db
+                        if(source.equals("nubbedb")){
+                            //there is a p at the beginning of each id for plants
+                            if(molecule.getID().startsWith("p.")){
+                                taxa = "plants";
+                            }else{
+                                taxa="animals";
                             }
-
-                        } catch (InvalidSmilesException e) {
-                            //e.printStackTrace();
-                            //System.out.println(line);
-                            //System.out.println(splitted);
-                            //System.out.println(splitted[0]);
-                            smilesReader.skip(count - 1);
                         }
-
-                    } catch (Exception  e) {
-                        e.printStackTrace();
+                        else if(source.equals("npatlas")){
+                            if(molecule.getID().startsWith("b")){
+                                taxa = "bacteria";
+                            }else{
+                                taxa="fungi";
+                            }
+                        }
+                        else{
+                            taxa="notax";
+                        }
                     }
-                    count++;
-
-                    if(count%50000==0){
-                        System.out.println("Molecules read: "+count);
+                    sourceNaturalProduct.setOrganismText(new ArrayList<String>());
+                    sourceNaturalProduct.organismText.add(taxa);
+
+                    if(!moleculeChecker.isForbiddenMolecule(molecule)){
+                        sourceNaturalProduct.setRecordHash(recordHash);
+                        writeBuffer.add(sourceNaturalProduct);
+                    }else{
+                        ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.FORBIDDEN_INCHIKEY);
                     }
-                }
-
-
-            }
-
-
-
-
 
 
 
+                }
 
-        } catch (IOException ex) {
-            System.out.println("Oops ! File not found. Please check if the -in file or -out directory is correct");
-            ex.printStackTrace();
-            System.exit(0);
+            } catch (InvalidSmilesException e) {
+                ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.PARSE_ERROR);
+                //e.printStackTrace();
+                //System.out.println(line);
+                //System.out.println(splitted);
+                //System.out.println(splitted[0]);
+            }
+        } catch (Exception  e) {
+            ingestionMetrics.recordRejection(source, IngestionMetrics.Rejection.ERROR);
+            e.printStackTrace();
         }
-
-
-
-
-
     }
 
     @Override
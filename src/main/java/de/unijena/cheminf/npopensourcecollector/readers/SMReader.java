@@ -8,7 +8,13 @@ import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.qsar.result.IntegerResult;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Reads the ZINC synthetic molecules line by line and inserts them by batches, so that only one batch is held in
+ * memory whatever the size of the file.
+ */
 public class SMReader {
 
     File file;
@@ -17,6 +23,8 @@ public class SMReader {
 
     private LineNumberReader tsvReader;
 
+    private int batchSize = 1000;
+
 
     public SMReader(){
         moleculeChecker = BeanUtil.getBean(MoleculeChecker.class);
@@ -31,14 +39,20 @@ public class SMReader {
         String line;
 
 
+        List<SyntheticMolecule> batch = new ArrayList<>(batchSize);
+
         try{
-            tsvReader = new LineNumberReader(new InputStreamReader(new FileInputStream(file)));
+            tsvReader = new LineNumberReader(CompressedInput.openReader(file));
             System.out.println("Reading and inserting synthetic molecules from ZINC");
 
 
-            while ((line = tsvReader.readLine()) != null  && count <= 600000) {
+            while ((line = tsvReader.readLine()) != null) {
 
                 String[] splitted = line.split("\\s+");
+                if(splitted.length < 18){
+                    System.out.println("Skipping incomplete line "+tsvReader.getLineNumber()+" of "+file.getName());
+                    continue;
+                }
                 //smiles, inchi, inchikey, contains_sugar, total_atom_number, heavy_atom_number, sugar_free_total_atom_number, sugar_free_heavy_atom_number, npl_score, npl_sugar_score, npl_noh_score, molecular_weight, molecular_formula, number_of_carbons, number_of_nitrogens, number_of_oxygens, number_of_rings, number_repeated_fragments
 
                 SyntheticMolecule newSM = new SyntheticMolecule();
@@ -62,9 +76,19 @@ public class SMReader {
                 newSM.setNumber_of_rings(Integer.parseInt(splitted[16]));
                 newSM.setNumber_repeated_fragments(Integer.parseInt(splitted[17]));
 
-                syntheticMoleculeRepository.save(newSM);
+                batch.add(newSM);
+                count++;
+                if(batch.size() == batchSize){
+                    syntheticMoleculeRepository.insert(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
 
             }
+            if(!batch.isEmpty()){
+                syntheticMoleculeRepository.insert(batch);
+            }
+            tsvReader.close();
+            System.out.println("Inserted "+(count-1)+" synthetic molecules");
 
 
 
@@ -0,0 +1,222 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import com.google.common.hash.Hashing;
+import com.mongodb.bulk.BulkWriteResult;
+import de.unijena.cheminf.npopensourcecollector.misc.IngestionMetrics;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProduct;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SourceNaturalProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inserts the SourceNaturalProducts created by the readers in unordered bulk writes instead of one save per molecule.
+ * Each file gets its own Buffer, filled concurrently by the ingestion tasks of that file; a full batch is written by
+ * the task that completed it, while the other tasks keep filling the next one.
+ * In incremental mode, a Buffer also knows the record hashes already stored for its source: unchanged records are
+ * skipped by the readers, and the stored records that were not read again are deleted when the file is flushed.
+ */
+@Service
+public class SourceNaturalProductWriter {
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    SourceNaturalProductRepository sourceNaturalProductRepository;
+
+    @Autowired
+    IngestionMetrics ingestionMetrics;
+
+
+    private int batchSize = 1000;
+
+    private boolean incremental = false;
+
+
+
+    public Buffer newBuffer(String source){
+        if(incremental){
+            Set<String> storedRecordHashes = sourceNaturalProductRepository.findRecordHashesBySource(source);
+            System.out.println("Records of "+source+" already stored: "+storedRecordHashes.size());
+            return new Buffer(source, storedRecordHashes);
+        }
+        return new Buffer(source, null);
+    }
+
+
+    /**
+     * Hash identifying the text of a record, stored with the SourceNaturalProduct made from it
+     */
+    public static String recordHash(String record){
+        return Hashing.murmur3_128().hashString(record, StandardCharsets.UTF_8).toString();
+    }
+
+
+    public class Buffer {
+
+        private final String source;
+
+        private List<SourceNaturalProduct> batch = new ArrayList<>(batchSize);
+
+        private final AtomicLong inserted = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final AtomicLong batches = new AtomicLong();
+
+        private final AtomicLong totalBatchNanos = new AtomicLong();
+
+        private final AtomicLong maxBatchNanos = new AtomicLong();
+
+        //null when not incremental
+        private final Set<String> storedRecordHashes;
+
+        private final Set<String> readRecordHashes = ConcurrentHashMap.newKeySet();
+
+        private final AtomicLong unchanged = new AtomicLong();
+
+
+        private Buffer(String source, Set<String> storedRecordHashes){
+            this.source = source;
+            this.storedRecordHashes = storedRecordHashes;
+        }
+
+
+        /**
+         * False when a record with this hash is already stored for the source, so the reader can skip it
+         */
+        public boolean isNewRecord(String recordHash){
+            if(storedRecordHashes == null){
+                return true;
+            }
+            readRecordHashes.add(recordHash);
+            if(storedRecordHashes.contains(recordHash)){
+                unchanged.incrementAndGet();
+                ingestionMetrics.recordUnchanged(source);
+                return false;
+            }
+            return true;
+        }
+
+
+        public void add(SourceNaturalProduct sourceNaturalProduct){
+            List<SourceNaturalProduct> full = null;
+            synchronized (this){
+                batch.add(sourceNaturalProduct);
+                if(batch.size() >= batchSize){
+                    full = batch;
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if(full != null){
+                write(full);
+            }
+        }
+
+
+        /**
+         * Writes what is left in the buffer, deletes the records that are not in the file any more (incremental mode)
+         * and reports the batches of the file
+         */
+        public void flush(){
+            List<SourceNaturalProduct> rest;
+            synchronized (this){
+                rest = batch;
+                batch = new ArrayList<>(batchSize);
+            }
+            if(!rest.isEmpty()){
+                write(rest);
+            }
+            if(storedRecordHashes != null){
+                deleteRecordsNotRead();
+            }
+            if(batches.get() > 0) {
+                System.out.println("Inserted " + inserted.get() + " source NPs of " + source + " in " + batches.get() + " batches, "
+                        + (totalBatchNanos.get() / batches.get() / 1000000) + " ms per batch on average, " + (maxBatchNanos.get() / 1000000) + " ms at most"
+                        + (failed.get() > 0 ? ", " + failed.get() + " failed" : ""));
+            }
+        }
+
+
+        private void write(List<SourceNaturalProduct> products){
+            long start = System.nanoTime();
+            try {
+                BulkWriteResult result = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SourceNaturalProduct.class)
+                        .insert(products)
+                        .execute();
+                inserted.addAndGet(result.getInsertedCount());
+                ingestionMetrics.recordSaved(source, result.getInsertedCount());
+            } catch (BulkOperationException e) {
+                // unordered: the rest of the batch is written anyway
+                inserted.addAndGet(e.getResult().getInsertedCount());
+                ingestionMetrics.recordSaved(source, e.getResult().getInsertedCount());
+                failed.addAndGet(e.getErrors().size());
+                System.out.println("Could not insert "+e.getErrors().size()+" source NPs of "+source+": "+e.getErrors().get(0).getMessage());
+            } catch (DataAccessException e) {
+                failed.addAndGet(products.size());
+                System.out.println("Could not insert a batch of "+products.size()+" source NPs of "+source+": "+e.getMessage());
+            }
+            long elapsed = System.nanoTime() - start;
+            ingestionMetrics.record(source, IngestionMetrics.Stage.SAVE, start);
+            batches.incrementAndGet();
+            totalBatchNanos.addAndGet(elapsed);
+            maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+        }
+
+
+        private void deleteRecordsNotRead(){
+            long deleted = 0;
+            List<String> stale = new ArrayList<>();
+            for(String recordHash : storedRecordHashes){
+                if(!readRecordHashes.contains(recordHash)){
+                    stale.add(recordHash);
+                }
+                if(stale.size() == 10000){
+                    deleted += sourceNaturalProductRepository.deleteBySourceAndRecordHashIn(source, stale);
+                    stale.clear();
+                }
+            }
+            if(!stale.isEmpty()){
+                deleted += sourceNaturalProductRepository.deleteBySourceAndRecordHashIn(source, stale);
+            }
+            // records stored before the record hashes existed cannot be matched, they are replaced by the new ones
+            deleted += sourceNaturalProductRepository.deleteBySourceAndRecordHashIsNull(source);
+
+            System.out.println("Records of "+source+" unchanged: "+unchanged.get()+", deleted: "+deleted);
+        }
+
+
+        public long getInserted() {
+            return inserted.get();
+        }
+    }
+
+
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+}
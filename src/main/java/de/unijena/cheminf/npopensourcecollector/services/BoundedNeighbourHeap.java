@@ -0,0 +1,121 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+/**
+ * Min-heap of at most k (row, tanimoto) entries keeping the k most similar rows offered to it.
+ * Not thread safe: each thread keeps its own heap and clears it between query rows.
+ */
+public class BoundedNeighbourHeap {
+
+    private final int capacity;
+
+    private final int[] rows;
+
+    private final double[] scores;
+
+    private int size = 0;
+
+
+    public BoundedNeighbourHeap(int capacity){
+        this.capacity = capacity;
+        this.rows = new int[capacity];
+        this.scores = new double[capacity];
+    }
+
+
+    public void clear(){
+        size = 0;
+    }
+
+
+    public boolean isFull(){
+        return size == capacity;
+    }
+
+
+    public int size(){
+        return size;
+    }
+
+
+    /**
+     * Lowest score kept, i.e. what a new row has to beat once the heap is full
+     */
+    public double minScore(){
+        return size == 0 ? 0.0 : scores[0];
+    }
+
+
+    public void offer(int row, double score){
+        if(capacity == 0){
+            return;
+        }
+        if(size < capacity){
+            rows[size] = row;
+            scores[size] = score;
+            siftUp(size);
+            size++;
+        }else if(score > scores[0]){
+            rows[0] = row;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+
+    /**
+     * Empties the heap into the given arrays, most similar first, and returns the number of entries
+     */
+    public int drainDescending(int[] outRows, double[] outScores){
+        int n = size;
+        for(int k = n - 1; k >= 0; k--){
+            outRows[k] = rows[0];
+            outScores[k] = scores[0];
+            size--;
+            rows[0] = rows[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return n;
+    }
+
+
+    private void siftUp(int k){
+        while(k > 0){
+            int parent = (k - 1) >>> 1;
+            if(scores[k] >= scores[parent]){
+                break;
+            }
+            swap(k, parent);
+            k = parent;
+        }
+    }
+
+
+    private void siftDown(int k){
+        while(true){
+            int left = 2 * k + 1;
+            if(left >= size){
+                break;
+            }
+            int smallest = left;
+            if(left + 1 < size && scores[left + 1] < scores[left]){
+                smallest = left + 1;
+            }
+            if(scores[k] <= scores[smallest]){
+                break;
+            }
+            swap(k, smallest);
+            k = smallest;
+        }
+    }
+
+
+    private void swap(int a, int b){
+        int r = rows[a];
+        rows[a] = rows[b];
+        rows[b] = r;
+        double s = scores[a];
+        scores[a] = scores[b];
+        scores[b] = s;
+    }
+}
@@ -0,0 +1,125 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Taylor-Butina clustering of the UniqueNaturalProducts on their stored fingerprints.
+ * The similarity graph at the clustering cutoff is built in memory from the fingerprint matrix (in parallel, tile by tile);
+ * then molecules are taken by decreasing number of neighbours, each unassigned one becoming the centroid of a cluster
+ * holding all its still unassigned neighbours.
+ */
+@Service
+public class ClusteringService {
+
+    @Autowired
+    SimilarityComputationService similarityComputationService;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+
+    private double clusteringCutoff = 0.6;
+
+
+
+    public void doWork(int numberOfThreads){
+
+        System.out.println("Start Taylor-Butina clustering at Tanimoto "+clusteringCutoff+" on "+similarityComputationService.getFingerprintType()+" fingerprints");
+
+        PackedFingerprintMatrix matrix = similarityComputationService.loadFingerprintMatrix();
+        matrix.sortByCardinality();
+
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, similarityComputationService.getTileSize(), clusteringCutoff);
+        SimilarityGraph graph = SimilarityGraph.build(engine, matrix.size(), pool);
+        pool.shutdown();
+
+        System.out.println("Similarity graph built with "+graph.numberOfEdges()+" edges");
+
+        int[] clusters = new int[matrix.size()];
+        boolean[] centroids = new boolean[matrix.size()];
+        int numberOfClusters = cluster(graph, clusters, centroids);
+
+        saveClusters(matrix, clusters, centroids);
+
+        long singletons = IntStream.range(0, graph.size()).filter(i -> graph.degree(i) == 0).count();
+        System.out.println("Clusters: "+numberOfClusters+", of which singletons: "+singletons);
+        System.out.println("done");
+    }
+
+
+    /**
+     * Fills the cluster id of every row and flags the centroids; returns the number of clusters.
+     * Ties on the number of neighbours are broken by row, so the result is deterministic for a given matrix.
+     */
+    public int cluster(SimilarityGraph graph, int[] clusters, boolean[] centroids){
+        int size = graph.size();
+        Arrays.fill(clusters, -1);
+
+        int[] order = IntStream.range(0, size).boxed()
+                .sorted((a, b) -> graph.degree(a) != graph.degree(b) ? Integer.compare(graph.degree(b), graph.degree(a)) : Integer.compare(a, b))
+                .mapToInt(Integer::intValue).toArray();
+
+        int clusterId = 0;
+        for(int row : order){
+            if(clusters[row] >= 0){
+                continue;
+            }
+            clusters[row] = clusterId;
+            centroids[row] = true;
+            for(int k = 0; k < graph.degree(row); k++){
+                int neighbour = graph.neighbour(row, k);
+                if(clusters[neighbour] < 0){
+                    clusters[neighbour] = clusterId;
+                }
+            }
+            clusterId++;
+        }
+        return clusterId;
+    }
+
+
+    private void saveClusters(PackedFingerprintMatrix matrix, int[] clusters, boolean[] centroids){
+        System.out.println("Saving cluster ids");
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UniqueNaturalProduct.class);
+        int batch = 0;
+        for(int i = 0; i < matrix.size(); i++){
+            Update update = new Update()
+                    .set("cluster_id", clusters[i])
+                    .set("cluster_centroid", centroids[i]);
+            bulkOps.updateOne(Query.query(Criteria.where("_id").is(matrix.getUniqueNaturalProductId(i))), update);
+            batch++;
+
+            if(batch == 10000){
+                bulkOps.execute();
+                bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UniqueNaturalProduct.class);
+                batch = 0;
+            }
+        }
+        if(batch > 0){
+            bulkOps.execute();
+        }
+    }
+
+
+
+    public double getClusteringCutoff() {
+        return clusteringCutoff;
+    }
+
+    public void setClusteringCutoff(double clusteringCutoff) {
+        this.clusteringCutoff = clusteringCutoff;
+    }
+}
@@ -0,0 +1,284 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of molecule ordinals, laid out like a Roaring bitmap: the ordinals are cut in chunks
+ * of 65536 sharing their 16 high bits, and each chunk keeps its 16 low bits either as a sorted array
+ * (up to 4096 values) or as a 65536-bit bitmap, whichever is smaller.
+ */
+public class CompressedBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+
+    private static final int BITMAP_WORDS = 1024;
+
+    private static final CompressedBitmap EMPTY = new CompressedBitmap(new char[0], new char[0][], new long[0][], new int[0]);
+
+
+    //high 16 bits of the chunks, increasing
+    private final char[] keys;
+
+    //per chunk, either the sorted low bits or the bitmap of the low bits; the other one is null
+    private final char[][] arrays;
+
+    private final long[][] bitmaps;
+
+    private final int[] cardinalities;
+
+    private final int cardinality;
+
+
+
+    private CompressedBitmap(char[] keys, char[][] arrays, long[][] bitmaps, int[] cardinalities){
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.cardinalities = cardinalities;
+        int total = 0;
+        for(int c : cardinalities){
+            total += c;
+        }
+        this.cardinality = total;
+    }
+
+
+    public static CompressedBitmap empty(){
+        return EMPTY;
+    }
+
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty(){
+        return cardinality == 0;
+    }
+
+
+    public boolean contains(int ordinal){
+        int k = Arrays.binarySearch(keys, (char) (ordinal >>> 16));
+        if(k < 0){
+            return false;
+        }
+        char low = (char) ordinal;
+        if(bitmaps[k] != null){
+            return (bitmaps[k][low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch(arrays[k], low) >= 0;
+    }
+
+
+    /**
+     * Ordinals present in both bitmaps
+     */
+    public CompressedBitmap and(CompressedBitmap other){
+        int n = Math.min(keys.length, other.keys.length);
+        char[] newKeys = new char[n];
+        char[][] newArrays = new char[n][];
+        long[][] newBitmaps = new long[n][];
+        int[] newCardinalities = new int[n];
+
+        int size = 0;
+        int a = 0;
+        int b = 0;
+        while(a < keys.length && b < other.keys.length){
+            if(keys[a] < other.keys[b]){
+                a++;
+            }else if(keys[a] > other.keys[b]){
+                b++;
+            }else{
+                int card;
+                if(arrays[a] != null && other.arrays[b] != null){
+                    newArrays[size] = intersect(arrays[a], other.arrays[b]);
+                    card = newArrays[size].length;
+                }else if(arrays[a] != null){
+                    newArrays[size] = filter(arrays[a], other.bitmaps[b]);
+                    card = newArrays[size].length;
+                }else if(other.arrays[b] != null){
+                    newArrays[size] = filter(other.arrays[b], bitmaps[a]);
+                    card = newArrays[size].length;
+                }else{
+                    long[] words = new long[BITMAP_WORDS];
+                    card = 0;
+                    for(int w = 0; w < BITMAP_WORDS; w++){
+                        words[w] = bitmaps[a][w] & other.bitmaps[b][w];
+                        card += Long.bitCount(words[w]);
+                    }
+                    if(card > ARRAY_MAX){
+                        newBitmaps[size] = words;
+                    }else{
+                        newArrays[size] = toArray(words, card);
+                    }
+                }
+                if(card > 0){
+                    newKeys[size] = keys[a];
+                    newCardinalities[size] = card;
+                    size++;
+                }else{
+                    newArrays[size] = null;
+                    newBitmaps[size] = null;
+                }
+                a++;
+                b++;
+            }
+        }
+
+        if(size == 0){
+            return EMPTY;
+        }
+        return new CompressedBitmap(Arrays.copyOf(newKeys, size), Arrays.copyOf(newArrays, size), Arrays.copyOf(newBitmaps, size), Arrays.copyOf(newCardinalities, size));
+    }
+
+
+    /**
+     * The ordinals, increasing
+     */
+    public int[] toArray(){
+        int[] ordinals = new int[cardinality];
+        int position = 0;
+        for(int k = 0; k < keys.length; k++){
+            int high = keys[k] << 16;
+            if(arrays[k] != null){
+                for(char low : arrays[k]){
+                    ordinals[position++] = high | low;
+                }
+            }else{
+                long[] words = bitmaps[k];
+                for(int w = 0; w < BITMAP_WORDS; w++){
+                    long word = words[w];
+                    while(word != 0){
+                        ordinals[position++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return ordinals;
+    }
+
+
+    /**
+     * Approximate heap footprint, to report the size of an index
+     */
+    public long sizeInBytes(){
+        long bytes = 16 + keys.length * 14L;
+        for(int k = 0; k < keys.length; k++){
+            bytes += arrays[k] != null ? 16 + 2L * arrays[k].length : 16 + 8L * BITMAP_WORDS;
+        }
+        return bytes;
+    }
+
+
+    private static char[] intersect(char[] x, char[] y){
+        char[] result = new char[Math.min(x.length, y.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while(i < x.length && j < y.length){
+            if(x[i] < y[j]){
+                i++;
+            }else if(x[i] > y[j]){
+                j++;
+            }else{
+                result[n++] = x[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static char[] filter(char[] values, long[] words){
+        char[] result = new char[values.length];
+        int n = 0;
+        for(char v : values){
+            if((words[v >>> 6] & (1L << v)) != 0){
+                result[n++] = v;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static char[] toArray(long[] words, int cardinality){
+        char[] values = new char[cardinality];
+        int n = 0;
+        for(int w = 0; w < words.length; w++){
+            long word = words[w];
+            while(word != 0){
+                values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+
+
+    /**
+     * Collects ordinals given in increasing order; a chunk is compressed as soon as the next one starts
+     */
+    public static class Builder {
+
+        private char[] keys = new char[4];
+        private char[][] arrays = new char[4][];
+        private long[][] bitmaps = new long[4][];
+        private int[] cardinalities = new int[4];
+        private int size = 0;
+
+        private final long[] current = new long[BITMAP_WORDS];
+        private int currentKey = -1;
+        private int currentCardinality = 0;
+        private int last = -1;
+
+
+        public Builder add(int ordinal){
+            if(ordinal <= last){
+                throw new IllegalArgumentException("Ordinals must be added in increasing order");
+            }
+            last = ordinal;
+            int key = ordinal >>> 16;
+            if(key != currentKey){
+                flush();
+                currentKey = key;
+            }
+            char low = (char) ordinal;
+            current[low >>> 6] |= 1L << low;
+            currentCardinality++;
+            return this;
+        }
+
+
+        private void flush(){
+            if(currentCardinality == 0){
+                return;
+            }
+            if(size == keys.length){
+                keys = Arrays.copyOf(keys, size * 2);
+                arrays = Arrays.copyOf(arrays, size * 2);
+                bitmaps = Arrays.copyOf(bitmaps, size * 2);
+                cardinalities = Arrays.copyOf(cardinalities, size * 2);
+            }
+            keys[size] = (char) currentKey;
+            cardinalities[size] = currentCardinality;
+            if(currentCardinality > ARRAY_MAX){
+                bitmaps[size] = current.clone();
+            }else{
+                arrays[size] = toArray(current, currentCardinality);
+            }
+            size++;
+            Arrays.fill(current, 0L);
+            currentCardinality = 0;
+        }
+
+
+        public CompressedBitmap build(){
+            flush();
+            if(size == 0){
+                return EMPTY;
+            }
+            return new CompressedBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(arrays, size), Arrays.copyOf(bitmaps, size), Arrays.copyOf(cardinalities, size));
+        }
+    }
+}
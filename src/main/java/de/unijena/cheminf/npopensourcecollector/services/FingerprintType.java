@@ -0,0 +1,72 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
+import org.openscience.cdk.fingerprint.*;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.util.List;
+
+/**
+ * The bit fingerprints persisted on UniqueNaturalProduct as lists of set bits, with the field they are stored in
+ * and the CDK fingerprinter that produced them (only needed to fingerprint queries the same way).
+ */
+public enum FingerprintType {
+
+    PUBCHEM("pubchemFingerprint"),
+    CIRCULAR("circularFingerprint"),
+    SUBSTRUCTURE("substructureFingerprint"),
+    EXTENDED("extendedFingerprint");
+
+
+    private final String field;
+
+    FingerprintType(String field){
+        this.field = field;
+    }
+
+
+    public String getField() {
+        return field;
+    }
+
+
+    public List<Integer> storedBits(UniqueNaturalProduct np){
+        switch (this){
+            case PUBCHEM:
+                return np.getPubchemFingerprint();
+            case SUBSTRUCTURE:
+                return np.getSubstructureFingerprint();
+            case EXTENDED:
+                return np.getExtendedFingerprint();
+            default:
+                return np.getCircularFingerprint();
+        }
+    }
+
+
+    public IFingerprinter newFingerprinter(){
+        switch (this){
+            case PUBCHEM:
+                return new PubchemFingerprinter(SilentChemObjectBuilder.getInstance());
+            case SUBSTRUCTURE:
+                return new SubstructureFingerprinter();
+            case EXTENDED:
+                return new ExtendedFingerprinter();
+            default:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
+        }
+    }
+
+
+    public int getLength(){
+        return newFingerprinter().getSize();
+    }
+
+
+    /**
+     * Accepts the names used on the command line, e.g. "circular" or "pubchem"
+     */
+    public static FingerprintType fromName(String name){
+        return FingerprintType.valueOf(name.trim().toUpperCase());
+    }
+}
@@ -20,6 +20,9 @@ public class FingerprintsCountsFiller {
     @Autowired
     PubFingerprintsCountsRepository pubFingerprintsCountsRepository;
 
+    @Autowired
+    SubstructureScreeningService substructureScreeningService;
+
 
     public void doWork(){
 
@@ -58,7 +61,7 @@ public class FingerprintsCountsFiller {
 
         }
 
-
+        substructureScreeningService.refreshBitCounts();
 
 
         System.out.println("done");
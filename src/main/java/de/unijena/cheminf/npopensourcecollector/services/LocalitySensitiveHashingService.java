@@ -1,13 +1,327 @@
 package de.unijena.cheminf.npopensourcecollector.services;
 
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Service;
 
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Banded MinHash index over the fingerprints stored on UniqueNaturalProduct.
+ * Two molecules become a candidate pair when all the rows of at least one band of their MinHash signatures are equal;
+ * with b bands of r rows a pair of Tanimoto (= Jaccard on bit sets) s is found with probability 1-(1-s^r)^b.
+ * Candidates are verified with the exact Tanimoto before being saved to NPSimilarity.
+ */
 @Service
 public class LocalitySensitiveHashingService {
 
+    @Autowired
+    UniqueNaturalProductRepository uniqueNaturalProductRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+
+    //0: the smallest number of bands reaching targetRecall at similarityThreshold
+    private int numberOfBands = 0;
+
+    private int rowsPerBand = 4;
+
+    private double similarityThreshold = 0.5;
+
+    private double targetRecall = 0.95;
+
+    private FingerprintType fingerprintType = FingerprintType.CIRCULAR;
+
+    private long seed = 42;
+
+
+    private PackedFingerprintMatrix matrix;
+
+    //one key per (molecule, band), stored at [molecule * bands + band]
+    private long[] bandKeys;
+
+    //number of bands of the current index
+    private int bands;
+
+
+
+    public void doWork(int numberOfThreads){
+
+        System.out.println("Start LSH similarity search with "+getNumberOfBands()+" bands of "+rowsPerBand+" rows on "+fingerprintType+" fingerprints");
+        System.out.println("Probability to find a pair at Tanimoto "+similarityThreshold+": "+detectionProbability(similarityThreshold));
+
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+
+        buildIndex(pool);
+        computeCandidatePairs(pool);
+
+        pool.shutdown();
+
+        System.out.println("done");
+    }
+
+
+    public void doRecallEvaluation(int numberOfThreads, int sampleSize){
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+
+        buildIndex(pool);
+        measureRecall(sampleSize, pool);
+
+        pool.shutdown();
+    }
+
+
+    public void buildIndex(ForkJoinPool pool){
+        System.out.println("Building MinHash index");
+
+        List<UniqueNaturalProduct> allNP = uniqueNaturalProductRepository.findAllWithFingerprint(fingerprintType.getField());
+
+        bands = getNumberOfBands();
+        int fingerprintLength = fingerprintType.getLength();
+        int numberOfHashes = bands * rowsPerBand;
+
+        // one random permutation value per (hash function, bit): MinHash over a small bit universe is a table lookup
+        Random random = new Random(seed);
+        int[][] permutations = new int[numberOfHashes][fingerprintLength];
+        for(int k = 0; k < numberOfHashes; k++){
+            for(int bit = 0; bit < fingerprintLength; bit++){
+                permutations[k][bit] = random.nextInt();
+            }
+        }
+
+        matrix = new PackedFingerprintMatrix(allNP.size(), fingerprintLength);
+        bandKeys = new long[allNP.size() * bands];
+
+        try {
+            pool.submit(() -> IntStream.range(0, allNP.size()).parallel().forEach(i -> {
+                UniqueNaturalProduct np = allNP.get(i);
+                BitSet fp = PackedFingerprintMatrix.toBitSet(fingerprintType.storedBits(np));
+                matrix.setRow(i, np.getId(), np.coconut_id, fp);
+
+                int[] signature = new int[numberOfHashes];
+                Arrays.fill(signature, Integer.MAX_VALUE);
+                for (int bit = fp.nextSetBit(0); bit >= 0 && bit < fingerprintLength; bit = fp.nextSetBit(bit + 1)) {
+                    for (int k = 0; k < numberOfHashes; k++) {
+                        if (permutations[k][bit] < signature[k]) {
+                            signature[k] = permutations[k][bit];
+                        }
+                    }
+                }
+
+                for (int b = 0; b < bands; b++) {
+                    long key = 1125899906842597L;
+                    for (int r = 0; r < rowsPerBand; r++) {
+                        key = 31 * key + signature[b * rowsPerBand + r];
+                    }
+                    bandKeys[i * bands + b] = key;
+                }
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("MinHash index built for "+matrix.size()+" NPs");
+    }
+
+
+    /**
+     * Each band is bucketed independently; a pair is only verified by the first band in which it collides,
+     * so that no global set of already seen pairs is needed and bands can run in parallel.
+     */
+    public void computeCandidatePairs(ForkJoinPool pool){
+        System.out.println("Generating and verifying candidate pairs");
+
+        AtomicLong candidates = new AtomicLong();
+        AtomicLong savedPairs = new AtomicLong();
+
+        try {
+            pool.submit(() -> IntStream.range(0, bands).parallel().forEach(b -> {
+
+                Integer[] order = IntStream.range(0, matrix.size()).filter(i -> matrix.getCardinality(i) > 0).boxed().toArray(Integer[]::new);
+                Arrays.sort(order, Comparator.comparingLong(i -> bandKeys[i * bands + b]));
+
+                NPSimilaritySavingCollector collector = new NPSimilaritySavingCollector(mongoTemplate, matrix, savedPairs);
+                long bandCandidates = 0;
+                int collected = 0;
 
-    void doWork(){
+                int start = 0;
+                while (start < order.length) {
+                    long key = bandKeys[order[start] * bands + b];
+                    int end = start + 1;
+                    while (end < order.length && bandKeys[order[end] * bands + b] == key) {
+                        end++;
+                    }
 
+                    for (int x = start; x < end; x++) {
+                        for (int y = x + 1; y < end; y++) {
+                            int i = Math.min(order[x], order[y]);
+                            int j = Math.max(order[x], order[y]);
+                            if (collidesInEarlierBand(i, j, b)) {
+                                continue;
+                            }
+                            bandCandidates++;
+                            double tanimoto = matrix.tanimoto(i, j);
+                            if (tanimoto >= similarityThreshold) {
+                                collector.collect(i, j, tanimoto);
+                                collected++;
+                            }
+                        }
+                    }
+
+                    if (collected >= 10000) {
+                        collector.tileFinished(b, start);
+                        collected = 0;
+                    }
+                    start = end;
+                }
+                collector.tileFinished(b, order.length);
+                candidates.addAndGet(bandCandidates);
+
+                System.out.println("Band "+b+" done");
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        long n = matrix.size();
+        System.out.println("Candidate pairs verified: "+candidates.get()+" out of "+(n * (n - 1) / 2)+" possible pairs");
+        System.out.println("Similar pairs saved: "+savedPairs.get());
+    }
+
+
+    private boolean collidesInEarlierBand(int i, int j, int band){
+        for(int b = 0; b < band; b++){
+            if(bandKeys[i * bands + b] == bandKeys[j * bands + b]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private boolean collidesInAnyBand(int i, int j){
+        return collidesInEarlierBand(i, j, bands);
+    }
+
+
+    /**
+     * Compares the LSH candidates of a random sample of molecules with their exact Tanimoto neighbourhood
+     * over the whole collection. Needs buildIndex() to have been run.
+     */
+    public void measureRecall(int sampleSize, ForkJoinPool pool){
+        System.out.println("Measuring LSH recall on a sample of "+sampleSize+" NPs");
+
+        long nonEmpty = IntStream.range(0, matrix.size()).filter(i -> matrix.getCardinality(i) > 0).count();
+        Random random = new Random(seed);
+        int[] sample = random.ints(0, matrix.size()).filter(i -> matrix.getCardinality(i) > 0).distinct().limit(Math.min(sampleSize, nonEmpty)).toArray();
+
+        AtomicLong exactNeighbours = new AtomicLong();
+        AtomicLong foundNeighbours = new AtomicLong();
+        AtomicLong candidates = new AtomicLong();
+
+        try {
+            pool.submit(() -> Arrays.stream(sample).parallel().forEach(s -> {
+                long exact = 0, found = 0, cand = 0;
+                for (int j = 0; j < matrix.size(); j++) {
+                    if (j == s) {
+                        continue;
+                    }
+                    boolean candidate = collidesInAnyBand(s, j);
+                    if (candidate) {
+                        cand++;
+                    }
+                    if (matrix.tanimoto(s, j) >= similarityThreshold) {
+                        exact++;
+                        if (candidate) {
+                            found++;
+                        }
+                    }
+                }
+                exactNeighbours.addAndGet(exact);
+                foundNeighbours.addAndGet(found);
+                candidates.addAndGet(cand);
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        double recall = exactNeighbours.get() == 0 ? 1.0 : (double) foundNeighbours.get() / exactNeighbours.get();
+        double candidateFraction = (double) candidates.get() / ((long) sample.length * (matrix.size() - 1));
+
+        System.out.println("Exact neighbours in sample: "+exactNeighbours.get()+", found by LSH: "+foundNeighbours.get());
+        System.out.println("Recall: "+recall);
+        System.out.println("Fraction of the collection verified per query: "+candidateFraction);
+    }
+
+
+    public double detectionProbability(double tanimoto){
+        return 1.0 - Math.pow(1.0 - Math.pow(tanimoto, rowsPerBand), getNumberOfBands());
+    }
+
+
+    /**
+     * Smallest number of bands of rowsPerBand rows that finds a pair at the given Tanimoto with probability targetRecall
+     */
+    public int bandsFor(double tanimoto){
+        double missedByOneBand = 1.0 - Math.pow(tanimoto, rowsPerBand);
+        if(missedByOneBand <= 0.0){
+            return 1;
+        }
+        if(missedByOneBand >= 1.0){
+            throw new IllegalArgumentException("No number of bands finds pairs at Tanimoto "+tanimoto);
+        }
+        return Math.max(1, (int) Math.ceil(Math.log(1.0 - targetRecall) / Math.log(missedByOneBand) - 1e-9));
+    }
+
+
+
+    public int getNumberOfBands() {
+        return numberOfBands > 0 ? numberOfBands : bandsFor(similarityThreshold);
+    }
+
+    /**
+     * Overrides the number of bands derived from similarityThreshold and targetRecall
+     */
+    public void setNumberOfBands(int numberOfBands) {
+        this.numberOfBands = numberOfBands;
+    }
+
+    public int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    public void setRowsPerBand(int rowsPerBand) {
+        this.rowsPerBand = rowsPerBand;
     }
 
+    public double getSimilarityThreshold() {
+        return similarityThreshold;
+    }
+
+    public void setSimilarityThreshold(double similarityThreshold) {
+        this.similarityThreshold = similarityThreshold;
+    }
+
+    public double getTargetRecall() {
+        return targetRecall;
+    }
+
+    public void setTargetRecall(double targetRecall) {
+        this.targetRecall = targetRecall;
+    }
+
+    public FingerprintType getFingerprintType() {
+        return fingerprintType;
+    }
+
+    public void setFingerprintType(FingerprintType fingerprintType) {
+        this.fingerprintType = fingerprintType;
+    }
 }
@@ -47,6 +47,12 @@ public class MolecularFeaturesComputationService {
     @Autowired
     AtomContainerToSyntheticMoleculeService atomContainerToSyntheticMoleculeService;
 
+    @Autowired
+    SimilaritySearchService similaritySearchService;
+
+    @Autowired
+    SubstructureScreeningService substructureScreeningService;
+
     PubchemFingerprinter pubchemFingerprinter = new PubchemFingerprinter( SilentChemObjectBuilder.getInstance() );
 
     CircularFingerprinter circularFingerprinter = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
@@ -226,6 +232,8 @@ public class MolecularFeaturesComputationService {
 
             uniqueNaturalProductRepository.save(np);
         }
+        similaritySearchService.refreshIndexIfLoaded();
+        substructureScreeningService.refreshIndexIfLoaded();
         System.out.println("done");
     }
 
@@ -0,0 +1,70 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPSimilarity;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the similar pairs of one tile and writes them to NPSimilarity in one unordered bulk when the tile is finished.
+ * The id of a pair is made of the two NP ids in lexicographic order, whatever the order they are found in, and the
+ * pairs are upserted by id, so that a tile computed again after a restart overwrites its pairs.
+ */
+class NPSimilaritySavingCollector implements SimilarityPairCollector {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final PackedFingerprintMatrix matrix;
+
+    private final AtomicLong savedPairs;
+
+    private BulkOperations bulkOps;
+
+    private int pairsInTile = 0;
+
+    private int pairsInLastTile = 0;
+
+    NPSimilaritySavingCollector(MongoTemplate mongoTemplate, PackedFingerprintMatrix matrix, AtomicLong savedPairs){
+        this.mongoTemplate = mongoTemplate;
+        this.matrix = matrix;
+        this.savedPairs = savedPairs;
+    }
+
+    @Override
+    public void collect(int i, int j, double tanimoto) {
+        String a = matrix.getUniqueNaturalProductId(i);
+        String b = matrix.getUniqueNaturalProductId(j);
+        String first = a.compareTo(b) <= 0 ? a : b;
+        String second = first == a ? b : a;
+
+        if(bulkOps == null){
+            bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, NPSimilarity.class);
+        }
+        Update update = new Update()
+                .set("uniqueNaturalProductID1", first)
+                .set("uniqueNaturalProductID2", second)
+                .set("tanimoto", tanimoto);
+        bulkOps.upsert(Query.query(Criteria.where("_id").is(first+"_"+second)), update);
+        pairsInTile++;
+    }
+
+    @Override
+    public void tileFinished(int rowBlock, int colBlock) {
+        pairsInLastTile = pairsInTile;
+        if(bulkOps != null) {
+            bulkOps.execute();
+            savedPairs.addAndGet(pairsInTile);
+            bulkOps = null;
+        }
+        pairsInTile = 0;
+    }
+
+
+    int getPairsInLastTile() {
+        return pairsInLastTile;
+    }
+}
@@ -24,9 +24,12 @@ import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import org.openscience.cdk.tools.manipulator.AtomTypeManipulator;
 import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntBinaryOperator;
 
 @Service
@@ -42,17 +45,28 @@ public class NPUnificationService {
     AtomContainerToUniqueNaturalProductService atomContainerToUniqueNaturalProductService;
 
 
-    PubchemFingerprinter pubchemFingerprinter = new PubchemFingerprinter( SilentChemObjectBuilder.getInstance() );
+    //fingerprinters and SMILES generators are not thread safe, each unification worker has its own
+    ThreadLocal<PubchemFingerprinter> pubchemFingerprinter = ThreadLocal.withInitial(() -> new PubchemFingerprinter( SilentChemObjectBuilder.getInstance() ));
 
-    CircularFingerprinter circularFingerprinter = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
+    ThreadLocal<CircularFingerprinter> circularFingerprinter = ThreadLocal.withInitial(() -> new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4));
 
 
-    SubstructureFingerprinter substructureFingerprinter = new SubstructureFingerprinter();
+    ThreadLocal<SubstructureFingerprinter> substructureFingerprinter = ThreadLocal.withInitial(SubstructureFingerprinter::new);
 
-    ExtendedFingerprinter extendedFingerprinter = new ExtendedFingerprinter();
+    ThreadLocal<ExtendedFingerprinter> extendedFingerprinter = ThreadLocal.withInitial(ExtendedFingerprinter::new);
 
 
-    SmilesGenerator uniqueSmilesGenerator = new SmilesGenerator(SmiFlavor.Unique);
+    ThreadLocal<SmilesGenerator> uniqueSmilesGenerator = ThreadLocal.withInitial(() -> new SmilesGenerator(SmiFlavor.Unique));
+
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    //groups waiting for each worker
+    private int queuedGroupsPerWorker = 100;
+
+
+
+    private static final List<SourceNaturalProduct> END_OF_GROUPS = new ArrayList<>();
 
 
 
@@ -72,216 +86,320 @@ public class NPUnificationService {
 
         System.out.println("SOURCES  "+sourceNames);
 
-        List<String> uniqueInchiKeys = sourceNaturalProductRepository.findUniqueInchiKeys();
+        //one pass over the source NPs sorted by InChIKey: a group is complete when the next key differs, it is then
+        //queued for the worker of its InChIKey prefix, and the reader waits while that worker is behind
+        List<BlockingQueue<List<SourceNaturalProduct>>> queues = new ArrayList<>();
+        List<Future<?>> workerRuns = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        AtomicInteger groupCount = new AtomicInteger();
+        for(int i = 0; i < threads; i++){
+            BlockingQueue<List<SourceNaturalProduct>> queue = new ArrayBlockingQueue<>(queuedGroupsPerWorker);
+            queues.add(queue);
+            workerRuns.add(workers.submit(() -> unifyGroups(queue, groupCount)));
+        }
+        System.out.println("Unification on "+threads+" threads");
 
-        for(String oinchikey: uniqueInchiKeys){
+        try(CloseableIterator<SourceNaturalProduct> snps = sourceNaturalProductRepository.streamAllOrderedBySimpleInchiKey()){
+            String inchikey = null;
+            List<SourceNaturalProduct> snpList = new ArrayList<>();
 
+            while(snps.hasNext()){
+                SourceNaturalProduct snp = snps.next();
+                if(inchikey != null && !inchikey.equals(snp.getSimpleInchiKey())){
+                    queueGroup(queues, workerRuns, inchikey, snpList);
+                    snpList = new ArrayList<>();
+                }
+                inchikey = snp.getSimpleInchiKey();
+                snpList.add(snp);
+            }
+            if(inchikey != null){
+                queueGroup(queues, workerRuns, inchikey, snpList);
+            }
+        } finally {
+            for(int i = 0; i < queues.size(); i++){
+                try {
+                    putGroup(queues.get(i), workerRuns.get(i), END_OF_GROUPS);
+                } catch (IllegalStateException e) {
+                    // that worker already stopped, the others still finish their groups
+                }
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
 
-            String inchikey =  oinchikey.split("\"")[3];  //oinchikey.toString();
-            System.out.println(inchikey);
-            List<SourceNaturalProduct> snpList = sourceNaturalProductRepository.findBySimpleInchiKey(inchikey);
-            //System.out.println(snpList.get(0).simpleInchiKey+" "+snpList.get(0).source);
+        System.out.println("Done unifying "+groupCount.get()+" natural products");
 
-            //create a new UniqueNatural product
+    }
 
-            UniqueNaturalProduct unp = new UniqueNaturalProduct();
 
-            unp.setInchikey(inchikey);
-            unp.setInchi(snpList.get(0).simpleInchi);
-            unp.setSmiles(snpList.get(0).simpleSmiles);
-            unp.setTotal_atom_number(snpList.get(0).getTotalAtomNumber());
-            unp.setHeavy_atom_number(snpList.get(0).getHeavyAtomNumber());
 
-            unp = uniqueNaturalProductRepository.save(unp);
+    /**
+     * The groups of a same InChIKey connectivity block (its first 14 characters) go to the same worker; the blocks
+     * are hashes, so the groups are spread evenly over the workers
+     */
+    private void queueGroup(List<BlockingQueue<List<SourceNaturalProduct>>> queues, List<Future<?>> workerRuns, String inchikey, List<SourceNaturalProduct> snpList){
+        String prefix = inchikey.length() > 14 ? inchikey.substring(0, 14) : inchikey;
+        int worker = Math.floorMod(prefix.hashCode(), queues.size());
+        putGroup(queues.get(worker), workerRuns.get(worker), snpList);
+    }
 
 
-            unp.name = "";
+    /**
+     * Waits for room in the queue of the worker; if the worker stopped, its queue would never empty and the run
+     * fails instead of waiting forever
+     */
+    private void putGroup(BlockingQueue<List<SourceNaturalProduct>> queue, Future<?> workerRun, List<SourceNaturalProduct> snpList){
+        try {
+            while(!queue.offer(snpList, 1, TimeUnit.SECONDS)){
+                if(workerRun.isDone()){
+                    throw new IllegalStateException("A unification worker stopped, "+queue.size()+" groups left in its queue");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the unification workers", e);
+        }
+    }
 
-            unp.synonyms = new HashSet<>();
-            unp.textTaxa = new HashSet<>();
-            unp.taxid = new HashSet<>();
-            unp.geoLocation = new HashSet<>();
-            unp.citationDOI = new HashSet<>();
-            unp.found_in_databases = new HashSet<>();
-            unp.xrefs = new HashSet<>();
-            unp.absolute_smiles = new Hashtable<>();
 
-            //associate the UniqueNaturalProduct entry to each of the sources
-            for(SourceNaturalProduct snp : snpList){
-                snp.setUniqueNaturalProduct(unp);
-                sourceNaturalProductRepository.save(snp);
+    /**
+     * Loop of one worker, until END_OF_GROUPS; a group that fails, even with an Error, is reported and skipped
+     */
+    private void unifyGroups(BlockingQueue<List<SourceNaturalProduct>> queue, AtomicInteger groupCount){
+        while(true){
+            List<SourceNaturalProduct> snpList;
+            try {
+                snpList = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(snpList == END_OF_GROUPS){
+                return;
+            }
+            try {
+                unify(snpList.get(0).getSimpleInchiKey(), snpList);
+                int count = groupCount.incrementAndGet();
+                if(count % 10000 == 0){
+                    System.out.println("Unified "+count+" InChI-keys");
+                }
+            } catch (Throwable e) {
+                // CDK can also fail with errors, e.g. a StackOverflowError on a large ring system
+                System.out.println("Could not unify "+snpList.get(0).getSimpleInchiKey());
+                e.printStackTrace();
+            }
+        }
+    }
 
-                //add annotations from SourceNaturalProducts
 
-                //name
-                //checking if name doesn't contain DB name
-               boolean nameIsReal = true;
-                for(String dbname: this.sourceNames){
-                    if(snp.getName() != null && (snp.getName().toLowerCase().contains(dbname) || snp.getName().startsWith("MLS") || snp.getName().startsWith("SMR") || snp.getName().contains("MLSMR"))){
-                        nameIsReal=false;
-                    }
-                }
 
+    /**
+     * Creates the UniqueNaturalProduct of one InChIKey from all its source NPs
+     */
+    private void unify(String inchikey, List<SourceNaturalProduct> snpList){
 
-                if(nameIsReal && snp.getName() != null && ((unp.getName() == null || unp.getName() =="") &&  snp.getName().length()>3)){
+        //create a new UniqueNatural product
 
+        UniqueNaturalProduct unp = new UniqueNaturalProduct();
 
-                        String name = snp.getName().trim();
+        unp.setInchikey(inchikey);
+        unp.setInchi(snpList.get(0).simpleInchi);
+        unp.setSmiles(snpList.get(0).simpleSmiles);
+        unp.setTotal_atom_number(snpList.get(0).getTotalAtomNumber());
+        unp.setHeavy_atom_number(snpList.get(0).getHeavyAtomNumber());
 
-                        String[] names = name.split("\\\n");
+        unp.name = "";
 
+        unp.synonyms = new HashSet<>();
+        unp.textTaxa = new HashSet<>();
+        unp.taxid = new HashSet<>();
+        unp.geoLocation = new HashSet<>();
+        unp.citationDOI = new HashSet<>();
+        unp.found_in_databases = new HashSet<>();
+        unp.xrefs = new HashSet<>();
+        unp.absolute_smiles = new Hashtable<>();
 
-                        unp.setName(names[0]);
-                        if (names.length > 1) {
-                            for (int i = 1; i < names.length; i++) {
-                                unp.synonyms.add(names[i]);
-                            }
-                        }
+        //associate the UniqueNaturalProduct entry to each of the sources
+        for(SourceNaturalProduct snp : snpList){
 
+            //add annotations from SourceNaturalProducts
 
+            //name
+            //checking if name doesn't contain DB name
+           boolean nameIsReal = true;
+            for(String dbname: this.sourceNames){
+                if(snp.getName() != null && (snp.getName().toLowerCase().contains(dbname) || snp.getName().startsWith("MLS") || snp.getName().startsWith("SMR") || snp.getName().contains("MLSMR"))){
+                    nameIsReal=false;
                 }
-                else if( unp.getName() != null && unp.getName() != "" && snp.getName() != null){
-                    if(snp.getSource().toLowerCase().contains("piellabdata")){
-                        //replace name by ChebiName
-                        unp.synonyms.add(unp.name);
-                        unp.name = snp.getName().trim();
+            }
 
-                        unp.nameTrustLevel=3;
-                    }
-                    else if(snp.getSource().toLowerCase().contains("chebi") && unp.nameTrustLevel<=2){
 
-                        //replace name by ChebiName
-                        unp.synonyms.add(unp.name);
-                        unp.name = snp.getName().trim();
+            if(nameIsReal && snp.getName() != null && ((unp.getName() == null || unp.getName() =="") &&  snp.getName().length()>3)){
 
-                        unp.nameTrustLevel=2;
-                    }
-                    else {
-                        unp.synonyms.add(snp.getName().trim());
-                    }
-                }
 
-                //synonyms
-                if(snp.getSynonyms() != null){
+                    String name = snp.getName().trim();
 
-                    String[] synonyms;
+                    String[] names = name.split("\\\n");
 
-                    for(String sy : snp.getSynonyms()){
 
-                        String[] names = sy.split("\\\n");
-                        for (int i = 0; i < names.length; i++) {
-                            unp.synonyms.add(names[i].trim());
+                    unp.setName(names[0]);
+                    if (names.length > 1) {
+                        for (int i = 1; i < names.length; i++) {
+                            unp.synonyms.add(names[i]);
                         }
                     }
 
-                }
-
 
-                //species
-                if(snp.organismText != null ){
+            }
+            else if( unp.getName() != null && unp.getName() != "" && snp.getName() != null){
+                if(snp.getSource().toLowerCase().contains("piellabdata")){
+                    //replace name by ChebiName
+                    unp.synonyms.add(unp.name);
+                    unp.name = snp.getName().trim();
 
-                    unp.textTaxa.addAll(snp.organismText);
-                }
-                if(snp.taxid != null){
-                    unp.taxid.addAll(snp.taxid);
-                }
-                if(unp.textTaxa.size()>1 && unp.textTaxa.contains("notax")){
-                    unp.textTaxa.remove("notax");
+                    unp.nameTrustLevel=3;
                 }
+                else if(snp.getSource().toLowerCase().contains("chebi") && unp.nameTrustLevel<=2){
 
+                    //replace name by ChebiName
+                    unp.synonyms.add(unp.name);
+                    unp.name = snp.getName().trim();
 
-                //geo
-                if(snp.getGeographicLocation() != null){
-                    unp.geoLocation.addAll(snp.getGeographicLocation());
+                    unp.nameTrustLevel=2;
                 }
-                if(snp.getContinent() != null){
-                    unp.geoLocation.add(snp.getContinent());
-                }
-                if(unp.geoLocation.size()>1 && unp.geoLocation.contains("nogeo")){
-                    unp.geoLocation.remove("nogeo");
+                else {
+                    unp.synonyms.add(snp.getName().trim());
                 }
+            }
 
+            //synonyms
+            if(snp.getSynonyms() != null){
 
-                //refs
-                if(snp.getCitation() != null){
-                    for(String cit : snp.getCitation()){
-                        unp.citationDOI.add(cit.trim());
-                    }
+                String[] synonyms;
+
+                for(String sy : snp.getSynonyms()){
 
+                    String[] names = sy.split("\\\n");
+                    for (int i = 0; i < names.length; i++) {
+                        unp.synonyms.add(names[i].trim());
+                    }
                 }
 
-                //cas
-                if(snp.getCas() != null && snp.getCas() != ""){
-                    unp.setCas(snp.getCas() );
+            }
+
+
+            //species
+            if(snp.organismText != null ){
+
+                unp.textTaxa.addAll(snp.organismText);
+            }
+            if(snp.taxid != null){
+                unp.taxid.addAll(snp.taxid);
+            }
+            if(unp.textTaxa.size()>1 && unp.textTaxa.contains("notax")){
+                unp.textTaxa.remove("notax");
+            }
+
+
+            //geo
+            if(snp.getGeographicLocation() != null){
+                unp.geoLocation.addAll(snp.getGeographicLocation());
+            }
+            if(snp.getContinent() != null){
+                unp.geoLocation.add(snp.getContinent());
+            }
+            if(unp.geoLocation.size()>1 && unp.geoLocation.contains("nogeo")){
+                unp.geoLocation.remove("nogeo");
+            }
+
+
+            //refs
+            if(snp.getCitation() != null){
+                for(String cit : snp.getCitation()){
+                    unp.citationDOI.add(cit.trim());
                 }
 
-                //database
-                if(snp.getSource() != null){
-                    unp.found_in_databases.add(snp.getSource());
+            }
+
+            //cas
+            if(snp.getCas() != null && snp.getCas() != ""){
+                unp.setCas(snp.getCas() );
+            }
 
+            //database
+            if(snp.getSource() != null){
+                unp.found_in_databases.add(snp.getSource());
 
 
-                    if(sourceURLs.containsKey(snp.getSource())) {
-                        ArrayList<String> miniXref = new ArrayList<String>();
-                        miniXref.add(snp.getSource());
-                        miniXref.add(snp.idInSource);
-                        miniXref.add(sourceURLs.get(snp.getSource()));
-                        unp.xrefs.add(miniXref);
-                    }
 
+                if(sourceURLs.containsKey(snp.getSource())) {
+                    ArrayList<String> miniXref = new ArrayList<String>();
+                    miniXref.add(snp.getSource());
+                    miniXref.add(snp.idInSource);
+                    miniXref.add(sourceURLs.get(snp.getSource()));
+                    unp.xrefs.add(miniXref);
                 }
 
-                //Absolute smiles (with stereochemistry)
-                if(snp.getAbsoluteSmiles() != null && !snp.getAbsoluteSmiles().equals("")) {
-                    if (unp.absolute_smiles.containsKey(snp.getAbsoluteSmiles())) {
-                        unp.absolute_smiles.get(snp.getAbsoluteSmiles()).add(snp.getSource());
+            }
 
-                    } else {
-                        HashSet newSourceList = new HashSet();
-                        newSourceList.add(snp.getSource());
-                        unp.absolute_smiles.put(snp.getAbsoluteSmiles(), newSourceList);
-                    }
+            //Absolute smiles (with stereochemistry)
+            if(snp.getAbsoluteSmiles() != null && !snp.getAbsoluteSmiles().equals("")) {
+                if (unp.absolute_smiles.containsKey(snp.getAbsoluteSmiles())) {
+                    unp.absolute_smiles.get(snp.getAbsoluteSmiles()).add(snp.getSource());
+
+                } else {
+                    HashSet newSourceList = new HashSet();
+                    newSourceList.add(snp.getSource());
+                    unp.absolute_smiles.put(snp.getAbsoluteSmiles(), newSourceList);
+                }
+            }
+            else{
+                if(unp.absolute_smiles.containsKey("nostereo")) {
+                    unp.absolute_smiles.get("nostereo").add(snp.getSource());
                 }
                 else{
-                    if(unp.absolute_smiles.containsKey("nostereo")) {
-                        unp.absolute_smiles.get("nostereo").add(snp.getSource());
-                    }
-                    else{
-                        HashSet newSourceList = new HashSet();
-                        newSourceList.add(snp.getSource());
-                        unp.absolute_smiles.put("nostereo", newSourceList);
-                    }
+                    HashSet newSourceList = new HashSet();
+                    newSourceList.add(snp.getSource());
+                    unp.absolute_smiles.put("nostereo", newSourceList);
                 }
-
             }
 
+        }
 
-            // Generate nice unique smiles without hydrogens
-            SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
 
-            IAtomContainer moleculeNoHydrogens = null;
-            try {
-                moleculeNoHydrogens = sp.parseSmiles(unp.smiles);
+        // Generate nice unique smiles without hydrogens
+        SmilesParser sp = new SmilesParser(DefaultChemObjectBuilder.getInstance());
 
-                moleculeNoHydrogens = AtomContainerManipulator.suppressHydrogens(moleculeNoHydrogens); // removing explicit hydrogens
+        IAtomContainer moleculeNoHydrogens = null;
+        try {
+            moleculeNoHydrogens = sp.parseSmiles(unp.smiles);
 
-                unp.unique_smiles = uniqueSmilesGenerator.create(moleculeNoHydrogens);
+            moleculeNoHydrogens = AtomContainerManipulator.suppressHydrogens(moleculeNoHydrogens); // removing explicit hydrogens
 
+            unp.unique_smiles = uniqueSmilesGenerator.get().create(moleculeNoHydrogens);
 
-            } catch (CDKException e) {
-                e.printStackTrace();
-            }
 
-            unp = uniqueNaturalProductRepository.save(unp);
+        } catch (CDKException e) {
+            e.printStackTrace();
+        }
 
-            //compute molecular parameters for the UniqueNaturalProduct
-            unp = computeFingerprints(unp);
-            unp = computeAdditionalMolecularFeatures(unp);
-            uniqueNaturalProductRepository.save(unp);
+        unp = uniqueNaturalProductRepository.save(unp);
 
+        //associate the UniqueNaturalProduct entry to each of the sources, in one update
+        List<String> snpIds = new ArrayList<>();
+        for(SourceNaturalProduct snp : snpList){
+            snpIds.add(snp.getId());
         }
+        sourceNaturalProductRepository.setUniqueNaturalProduct(snpIds, unp);
 
-
+        //compute molecular parameters for the UniqueNaturalProduct
+        unp = computeFingerprints(unp);
+        unp = computeAdditionalMolecularFeatures(unp);
+        uniqueNaturalProductRepository.save(unp);
 
     }
 
@@ -401,7 +519,7 @@ public class NPUnificationService {
 
         try {
 
-            String s = pubchemFingerprinter.getBitFingerprint(ac).asBitSet().toString();
+            String s = pubchemFingerprinter.get().getBitFingerprint(ac).asBitSet().toString();
             ArrayList<Integer> pcl = new ArrayList<>();
             s = s.replace(" ", "");s = s.replace("\"", "");s = s.replace("{", "");s = s.replace("}", "");
             String [] sl = s.split(",");
@@ -416,7 +534,7 @@ public class NPUnificationService {
             //np.pubfp.put(new Integer(pcl.size()), pcl);
 
 
-            s = circularFingerprinter.getBitFingerprint(ac).asBitSet().toString();
+            s = circularFingerprinter.get().getBitFingerprint(ac).asBitSet().toString();
             pcl = new ArrayList<>();
             s = s.replace(" ", "");s = s.replace("\"", "");s = s.replace("{", "");s = s.replace("}", "");
             sl = s.split(",");
@@ -427,7 +545,7 @@ public class NPUnificationService {
             }
             np.setCircularFingerprint(pcl);
 
-            s = extendedFingerprinter.getBitFingerprint(ac).asBitSet().toString();
+            s = extendedFingerprinter.get().getBitFingerprint(ac).asBitSet().toString();
             pcl = new ArrayList<>();
             s = s.replace(" ", "");s = s.replace("\"", "");s = s.replace("{", "");s = s.replace("}", "");
             sl = s.split(",");
@@ -445,7 +563,7 @@ public class NPUnificationService {
             try {
                 //for PubChem
 
-                BitSet bitsOn = pubchemFingerprinter.getBitFingerprint(ac).asBitSet();
+                BitSet bitsOn = pubchemFingerprinter.get().getBitFingerprint(ac).asBitSet();
                 String pubchemBitString = "";
 
                 for (int i = 0; i <= bitsOn.length(); i++) {
@@ -589,4 +707,19 @@ public class NPUnificationService {
 
 
 
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getQueuedGroupsPerWorker() {
+        return queuedGroupsPerWorker;
+    }
+
+    public void setQueuedGroupsPerWorker(int queuedGroupsPerWorker) {
+        this.queuedGroupsPerWorker = queuedGroupsPerWorker;
+    }
 }
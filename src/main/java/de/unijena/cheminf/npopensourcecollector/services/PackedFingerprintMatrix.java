@@ -0,0 +1,247 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * All fingerprints of a set of molecules packed row by row in one contiguous long[],
+ * so that Tanimoto can be computed with Long.bitCount without touching any object.
+ * Row i holds the fingerprint of the molecule with ordinal i.
+ */
+public class PackedFingerprintMatrix {
+
+    private long[] words;
+
+    private int[] cardinalities;
+
+    private final int wordsPerFingerprint;
+
+    private final int size;
+
+    private String[] uniqueNaturalProductIds;
+
+    private String[] coconutIds;
+
+    //only set once the rows are sorted by cardinality: bucketStarts[c] is the first row with at least c bits set
+    private int[] bucketStarts;
+
+
+    public PackedFingerprintMatrix(int size, int fingerprintLength){
+        this.size = size;
+        this.wordsPerFingerprint = (fingerprintLength + 63) >>> 6;
+        this.words = new long[size * wordsPerFingerprint];
+        this.cardinalities = new int[size];
+        this.uniqueNaturalProductIds = new String[size];
+        this.coconutIds = new String[size];
+    }
+
+
+    public void setRow(int row, String uniqueNaturalProductId, String coconutId, BitSet fingerprint){
+        uniqueNaturalProductIds[row] = uniqueNaturalProductId;
+        coconutIds[row] = coconutId;
+
+        int offset = row * wordsPerFingerprint;
+        if(fingerprint != null) {
+            long[] fp = fingerprint.toLongArray();
+            System.arraycopy(fp, 0, words, offset, Math.min(fp.length, wordsPerFingerprint));
+        }
+
+        int card = 0;
+        for(int w = offset; w < offset + wordsPerFingerprint; w++){
+            card += Long.bitCount(words[w]);
+        }
+        cardinalities[row] = card;
+    }
+
+
+    /**
+     * Converts a fingerprint stored as the list of its set bits (as in UniqueNaturalProduct) to a BitSet
+     */
+    public static BitSet toBitSet(List<Integer> setBits){
+        BitSet bitSet = new BitSet();
+        if(setBits != null) {
+            for (Integer bit : setBits) {
+                if (bit != null && bit >= 0) {
+                    bitSet.set(bit);
+                }
+            }
+        }
+        return bitSet;
+    }
+
+
+    public double tanimoto(int i, int j){
+        int a = cardinalities[i];
+        int b = cardinalities[j];
+        if(a == 0 && b == 0){
+            return 0.0;
+        }
+        int oi = i * wordsPerFingerprint;
+        int oj = j * wordsPerFingerprint;
+        int common = 0;
+        for(int w = 0; w < wordsPerFingerprint; w++){
+            common += Long.bitCount(words[oi + w] & words[oj + w]);
+        }
+        return (double) common / (a + b - common);
+    }
+
+
+    /**
+     * Tanimoto between an external, already packed query and row j
+     */
+    public double tanimoto(long[] query, int queryCardinality, int j){
+        int b = cardinalities[j];
+        if(queryCardinality == 0 && b == 0){
+            return 0.0;
+        }
+        int oj = j * wordsPerFingerprint;
+        int n = Math.min(query.length, wordsPerFingerprint);
+        int common = 0;
+        for(int w = 0; w < n; w++){
+            common += Long.bitCount(query[w] & words[oj + w]);
+        }
+        return (double) common / (queryCardinality + b - common);
+    }
+
+
+    /**
+     * Reorders the rows by ascending number of set bits, so that all molecules with the same popcount
+     * form one contiguous bucket of rows
+     */
+    public void sortByCardinality(){
+        Integer[] order = IntStream.range(0, size).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingInt(i -> cardinalities[i]));
+
+        long[] sortedWords = new long[words.length];
+        int[] sortedCardinalities = new int[size];
+        String[] sortedUniqueNaturalProductIds = new String[size];
+        String[] sortedCoconutIds = new String[size];
+
+        for(int row = 0; row < size; row++){
+            int old = order[row];
+            System.arraycopy(words, old * wordsPerFingerprint, sortedWords, row * wordsPerFingerprint, wordsPerFingerprint);
+            sortedCardinalities[row] = cardinalities[old];
+            sortedUniqueNaturalProductIds[row] = uniqueNaturalProductIds[old];
+            sortedCoconutIds[row] = coconutIds[old];
+        }
+
+        words = sortedWords;
+        cardinalities = sortedCardinalities;
+        uniqueNaturalProductIds = sortedUniqueNaturalProductIds;
+        coconutIds = sortedCoconutIds;
+
+        int maxCardinality = size == 0 ? 0 : cardinalities[size - 1];
+        bucketStarts = new int[maxCardinality + 2];
+        int row = 0;
+        for(int c = 0; c < bucketStarts.length; c++){
+            while(row < size && cardinalities[row] < c){
+                row++;
+            }
+            bucketStarts[c] = row;
+        }
+    }
+
+
+    public boolean isSortedByCardinality(){
+        return bucketStarts != null;
+    }
+
+
+    /**
+     * First row whose cardinality is at least the given one (size if there is none).
+     * Only valid once the matrix is sorted by cardinality.
+     */
+    public int firstRowWithCardinality(int cardinality){
+        if(cardinality <= 0){
+            return 0;
+        }
+        if(cardinality >= bucketStarts.length){
+            return size;
+        }
+        return bucketStarts[cardinality];
+    }
+
+
+    /**
+     * Swamidass-Baldi bound: T(a,b) <= min(a,b)/max(a,b), so with a query of popcount a only molecules
+     * with popcount in [threshold*a, a/threshold] can reach the threshold.
+     */
+    public static int minimalCardinality(int cardinality, double threshold){
+        return (int) Math.ceil(threshold * cardinality - 1e-9);
+    }
+
+    public static int maximalCardinality(int cardinality, double threshold){
+        if(threshold <= 0){
+            return Integer.MAX_VALUE - 1;
+        }
+        return (int) Math.min(Math.floor(cardinality / threshold + 1e-9), Integer.MAX_VALUE - 1);
+    }
+
+
+    /**
+     * SHA-256 of the rows in their current order (ids and fingerprint words), as hex: two matrices with the same
+     * hash give the same tiles, whatever changed in the collection in between
+     */
+    public String contentHash(){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer rowWords = ByteBuffer.allocate(wordsPerFingerprint * 8);
+        for(int row = 0; row < size; row++){
+            digest.update(String.valueOf(uniqueNaturalProductIds[row]).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            rowWords.clear();
+            rowWords.asLongBuffer().put(words, row * wordsPerFingerprint, wordsPerFingerprint);
+            digest.update(rowWords.array());
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+    public long[] getRow(int row){
+        return Arrays.copyOfRange(words, row * wordsPerFingerprint, (row + 1) * wordsPerFingerprint);
+    }
+
+
+    public long[] pack(BitSet fingerprint){
+        long[] packed = new long[wordsPerFingerprint];
+        long[] fp = fingerprint.toLongArray();
+        System.arraycopy(fp, 0, packed, 0, Math.min(fp.length, wordsPerFingerprint));
+        return packed;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+    public int getWordsPerFingerprint() {
+        return wordsPerFingerprint;
+    }
+
+    public int getCardinality(int row){
+        return cardinalities[row];
+    }
+
+    public String getUniqueNaturalProductId(int row){
+        return uniqueNaturalProductIds[row];
+    }
+
+    public String getCoconutId(int row){
+        return coconutIds[row];
+    }
+}
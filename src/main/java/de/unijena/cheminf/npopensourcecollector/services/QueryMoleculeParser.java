@@ -0,0 +1,39 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.openscience.cdk.atomtype.CDKAtomTypeMatcher;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IAtomType;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+import org.openscience.cdk.tools.manipulator.AtomTypeManipulator;
+
+/**
+ * Parses search queries given as SMILES with the same perception as the fingerprints stored at unification time
+ * (atom typing, implicit hydrogens, non chiral hydrogens removed), so that query and stored bits are comparable.
+ * The substructure screening only keeps the bits that do not depend on these hydrogens, see
+ * SubstructureScreeningService.screeningBits.
+ */
+public class QueryMoleculeParser {
+
+    public static IAtomContainer parse(String smiles) throws CDKException {
+        SmilesParser sp = new SmilesParser(SilentChemObjectBuilder.getInstance());
+        IAtomContainer ac = sp.parseSmiles(smiles);
+
+        CDKAtomTypeMatcher matcher = CDKAtomTypeMatcher.getInstance(ac.getBuilder());
+        CDKHydrogenAdder adder = CDKHydrogenAdder.getInstance(ac.getBuilder());
+        for (IAtom atom : ac.atoms()) {
+            IAtomType type = matcher.findMatchingAtomType(ac, atom);
+            if (type != null) {
+                AtomTypeManipulator.configure(atom, type);
+            }
+        }
+        adder.addImplicitHydrogens(ac);
+        AtomContainerManipulator.removeNonChiralHydrogens(ac);
+
+        return ac;
+    }
+}
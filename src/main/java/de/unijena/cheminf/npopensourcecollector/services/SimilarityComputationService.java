@@ -2,8 +2,12 @@ package de.unijena.cheminf.npopensourcecollector.services;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPNeighbours;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.NPNeighboursRepository;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.NPSimilarity;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.NPSimilarityRepository;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SimilarityTile;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SimilarityTileRepository;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProductRepository;
 import org.checkerframework.common.aliasing.qual.Unique;
@@ -14,10 +18,18 @@ import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.similarity.DistanceMoment;
 import org.openscience.cdk.similarity.Tanimoto;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class SimilarityComputationService {
@@ -28,6 +40,15 @@ public class SimilarityComputationService {
     @Autowired
     NPSimilarityRepository npSimilarityRepository;
 
+    @Autowired
+    NPNeighboursRepository npNeighboursRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    SimilarityTileRepository similarityTileRepository;
+
     @Autowired
     AtomContainerToUniqueNaturalProductService atomContainerToUniqueNaturalProductService;
 
@@ -40,6 +61,21 @@ public class SimilarityComputationService {
     List<Future<?>> futures = new ArrayList<Future<?>>();
 
 
+    private double similarityThreshold = 0.5;
+
+    private int tileSize = 256;
+
+    private FingerprintType fingerprintType = FingerprintType.CIRCULAR;
+
+    //forget the finished tiles of the job instead of resuming it
+    private boolean restartFromScratch = false;
+
+    private int numberOfNeighbours = 20;
+
+    //a neighbour list keeps the k most similar NPs above this value, 0 so that no NP is left without neighbours
+    private double neighbourMinimumSimilarity = 0.0;
+
+
     /*
 
     public void computeSimilarities(){
@@ -141,6 +177,7 @@ public class SimilarityComputationService {
                 }
 
                 task.setNpPairsToCompute(pairBatch);
+                task.setFingerprintType(fingerprintType);
                 taskcount++;
 
                 System.out.println("Task "+taskcount+" created");
@@ -188,4 +225,328 @@ public class SimilarityComputationService {
         System.out.println("Finished parallel computation of Tanimoto");
         return allFuturesDone;
     }
+
+
+    /**
+     * Packs the fingerprint of the selected type stored on every UniqueNaturalProduct in one matrix;
+     * nothing is parsed or fingerprinted again
+     */
+    public PackedFingerprintMatrix loadFingerprintMatrix(){
+        return loadFingerprintMatrix(false);
+    }
+
+
+    /**
+     * With withCoconutIdOnly, the NPs that have no coconut_id yet are left out of the matrix
+     */
+    public PackedFingerprintMatrix loadFingerprintMatrix(boolean withCoconutIdOnly){
+        System.out.println("Loading "+fingerprintType+" fingerprints of all NPs in memory");
+
+        List<UniqueNaturalProduct> allNP = uniqueNaturalProductRepository.findAllWithFingerprint(fingerprintType.getField());
+        if(withCoconutIdOnly){
+            allNP.removeIf(np -> np.coconut_id == null);
+        }
+        allNP.sort(Comparator.comparing(UniqueNaturalProduct::getId));
+
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(allNP.size(), fingerprintType.getLength());
+
+        int missing = 0;
+        for(int i = 0; i < allNP.size(); i++){
+            UniqueNaturalProduct np = allNP.get(i);
+            List<Integer> bits = fingerprintType.storedBits(np);
+            if(bits == null){
+                missing++;
+            }
+            matrix.setRow(i, np.getId(), np.coconut_id, PackedFingerprintMatrix.toBitSet(bits));
+        }
+
+        if(missing > 0){
+            System.out.println("NPs without stored "+fingerprintType+" fingerprint: "+missing);
+        }
+        System.out.println("Fingerprints loaded: "+matrix.size());
+        return matrix;
+    }
+
+
+    /**
+     * All-vs-all Tanimoto in memory: no pair list, no database read per pair and each fingerprint loaded once.
+     * Every finished tile is journaled in SimilarityTile, so that a run started again with the same parameters
+     * only computes the tiles that are not finished yet. At most two tiles per thread are queued at any time.
+     */
+    public void computeAllPairsInMemory(int numberOfThreads){
+
+        System.out.println("Start in-memory computation of Tanimoto with threshold "+similarityThreshold);
+
+        PackedFingerprintMatrix matrix = loadFingerprintMatrix();
+        matrix.sortByCardinality();
+
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, tileSize, similarityThreshold);
+        int nbBlocks = engine.getNumberOfBlocks();
+
+        String jobId = getJobId(matrix);
+
+        if(restartFromScratch){
+            similarityTileRepository.deleteByJobId(jobId);
+        }
+        Set<String> finishedTiles = new HashSet<>();
+        for(SimilarityTile tile : similarityTileRepository.findByJobIdAndStatus(jobId, SimilarityWorkQueueService.DONE)){
+            finishedTiles.add(tile.getId());
+        }
+        System.out.println("Job "+jobId+": "+finishedTiles.size()+" tiles already finished");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        Semaphore inFlight = new Semaphore(2 * numberOfThreads);
+
+        AtomicLong savedPairs = new AtomicLong();
+        AtomicLong computedTiles = new AtomicLong();
+        long prunedTiles = 0;
+
+        try {
+            for (int r = 0; r < nbBlocks; r++) {
+                for (int c = r; c < nbBlocks; c++) {
+                    if (!engine.canReachThreshold(r, c)) {
+                        prunedTiles += nbBlocks - c;
+                        break;
+                    }
+                    String tileId = jobId + ":" + r + ":" + c;
+                    if (finishedTiles.contains(tileId)) {
+                        continue;
+                    }
+
+                    inFlight.acquire();
+                    int rowBlock = r;
+                    int colBlock = c;
+                    executor.execute(() -> {
+                        try {
+                            NPSimilaritySavingCollector collector = new NPSimilaritySavingCollector(mongoTemplate, matrix, savedPairs);
+                            engine.computeTile(rowBlock, colBlock, collector);
+
+                            SimilarityTile tile = new SimilarityTile();
+                            tile.setId(tileId);
+                            tile.setJobId(jobId);
+                            tile.setRowBlock(rowBlock);
+                            tile.setColBlock(colBlock);
+                            tile.setSimilarPairs(collector.getPairsInLastTile());
+                            tile.setStatus(SimilarityWorkQueueService.DONE);
+                            tile.setFinished(new Date());
+                            similarityTileRepository.save(tile);
+
+                            long done = computedTiles.incrementAndGet();
+                            if (done % 10000 == 0) {
+                                System.out.println("Tiles computed: " + done);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted submission of similarity tiles, the run can be resumed");
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted exectuion of the molecular similarity calculation! The run can be resumed");
+        }
+
+        System.out.println("Tiles computed in this run: "+computedTiles.get()+", tiles pruned by popcount bounds: "+prunedTiles+" out of "+((long) nbBlocks * (nbBlocks + 1) / 2));
+        System.out.println("Similar pairs saved: "+savedPairs.get());
+        System.out.println("Finished in-memory computation of Tanimoto");
+    }
+
+
+    /**
+     * All-vs-all Tanimoto written to a memory-mappable CSR file (see SimilarityGraphFile) instead of the NPSimilarity collection
+     */
+    public void computeAllPairsToGraphFile(int numberOfThreads, String fileName, int scoreBits){
+
+        System.out.println("Start in-memory computation of Tanimoto with threshold "+similarityThreshold+" to "+fileName);
+
+        PackedFingerprintMatrix matrix = loadFingerprintMatrix();
+        matrix.sortByCardinality();
+
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, tileSize, similarityThreshold);
+        SimilarityGraph graph = SimilarityGraph.build(engine, matrix.size(), pool);
+        pool.shutdown();
+
+        try {
+            SimilarityGraphFile.write(graph, matrix, Paths.get(fileName), scoreBits);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        System.out.println("Similar pairs written: "+graph.numberOfEdges());
+        System.out.println("Finished in-memory computation of Tanimoto");
+    }
+
+
+    /**
+     * Rows are ordered by NP id then (stably) by popcount, so the tiles of a job are the same at every restart
+     * and in every worker process loading the same collection with the same parameters. The content hash of the
+     * matrix is part of the id: when NPs were added or removed or the fingerprints recomputed, the row blocks hold
+     * other molecules and the tiles finished before must not be reused.
+     */
+    public String getJobId(PackedFingerprintMatrix matrix){
+        return fingerprintType+"_"+similarityThreshold+"_"+tileSize+"_"+matrix.size()+"_"+matrix.contentHash().substring(0, 16);
+    }
+
+
+    /**
+     * Single-query mode: similarities of one NP against the whole collection, saved to NPSimilarity like the all-pairs mode
+     */
+    public void computeSimilaritiesFor(String coconutId){
+
+        System.out.println("Computing similarities of "+coconutId+" with threshold "+similarityThreshold);
+
+        PackedFingerprintMatrix matrix = loadFingerprintMatrix();
+        matrix.sortByCardinality();
+
+        int queryRow = -1;
+        for(int row = 0; row < matrix.size(); row++){
+            if(coconutId.equals(matrix.getCoconutId(row))){
+                queryRow = row;
+                break;
+            }
+        }
+        if(queryRow < 0){
+            System.out.println("Could not find "+coconutId);
+            return;
+        }
+
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, tileSize, similarityThreshold);
+
+        AtomicLong savedPairs = new AtomicLong();
+        NPSimilaritySavingCollector collector = new NPSimilaritySavingCollector(mongoTemplate, matrix, savedPairs);
+
+        long[] query = matrix.getRow(queryRow);
+        int queryCardinality = matrix.getCardinality(queryRow);
+        int finalQueryRow = queryRow;
+        engine.search(query, queryCardinality, (row, tanimoto) -> {
+            if(row != finalQueryRow) {
+                collector.collect(finalQueryRow, row, tanimoto);
+            }
+        });
+        collector.tileFinished(0, 0);
+
+        System.out.println("Similar pairs saved: "+savedPairs.get());
+    }
+
+
+    /**
+     * k-nearest-neighbour graph: the k most similar NPs of every NP, stored as one NPNeighbours document per coconut_id
+     */
+    public void computeNearestNeighbours(int numberOfThreads){
+
+        System.out.println("Start computation of the "+numberOfNeighbours+" nearest neighbours of each NP");
+
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+
+        // the neighbours are stored by coconut_id, an NP without one can be neither a query nor a neighbour
+        PackedFingerprintMatrix matrix = loadFingerprintMatrix(true);
+        matrix.sortByCardinality();
+
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, tileSize, neighbourMinimumSimilarity);
+
+        ThreadLocal<BoundedNeighbourHeap> heaps = ThreadLocal.withInitial(() -> new BoundedNeighbourHeap(numberOfNeighbours));
+
+        AtomicLong savedLists = new AtomicLong();
+        int batchSize = 1000;
+        int nbBatches = (matrix.size() + batchSize - 1) / batchSize;
+
+        try {
+            pool.submit(() -> java.util.stream.IntStream.range(0, nbBatches).parallel().forEach(batch -> {
+                BoundedNeighbourHeap heap = heaps.get();
+                int[] rows = new int[numberOfNeighbours];
+                double[] scores = new double[numberOfNeighbours];
+                // one unordered bulk of upserts by coconut_id per batch, a run computed again overwrites the lists
+                BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, NPNeighbours.class);
+                int batchEnd = Math.min((batch + 1) * batchSize, matrix.size());
+
+                for (int row = batch * batchSize; row < batchEnd; row++) {
+                    engine.nearestNeighbours(row, heap);
+                    int n = heap.drainDescending(rows, scores);
+
+                    List<String> neighbourCoconutIds = new ArrayList<>(n);
+                    List<Double> tanimotos = new ArrayList<>(n);
+                    for (int k = 0; k < n; k++) {
+                        neighbourCoconutIds.add(matrix.getCoconutId(rows[k]));
+                        tanimotos.add(scores[k]);
+                    }
+                    Update update = new Update()
+                            .set("uniqueNaturalProductID", matrix.getUniqueNaturalProductId(row))
+                            .set("neighbour_coconut_ids", neighbourCoconutIds)
+                            .set("tanimotos", tanimotos);
+                    bulkOps.upsert(Query.query(Criteria.where("_id").is(matrix.getCoconutId(row))), update);
+                }
+
+                if (batchEnd > batch * batchSize) {
+                    bulkOps.execute();
+                    savedLists.addAndGet(batchEnd - batch * batchSize);
+                }
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        pool.shutdown();
+
+        System.out.println("Neighbour lists saved: "+savedLists.get());
+        System.out.println("Finished computation of nearest neighbours");
+    }
+
+
+    public double getSimilarityThreshold() {
+        return similarityThreshold;
+    }
+
+    public void setSimilarityThreshold(double similarityThreshold) {
+        this.similarityThreshold = similarityThreshold;
+    }
+
+    public int getNumberOfNeighbours() {
+        return numberOfNeighbours;
+    }
+
+    public void setNumberOfNeighbours(int numberOfNeighbours) {
+        this.numberOfNeighbours = numberOfNeighbours;
+    }
+
+    public double getNeighbourMinimumSimilarity() {
+        return neighbourMinimumSimilarity;
+    }
+
+    public void setNeighbourMinimumSimilarity(double neighbourMinimumSimilarity) {
+        this.neighbourMinimumSimilarity = neighbourMinimumSimilarity;
+    }
+
+    public FingerprintType getFingerprintType() {
+        return fingerprintType;
+    }
+
+    public void setFingerprintType(FingerprintType fingerprintType) {
+        this.fingerprintType = fingerprintType;
+    }
+
+    public boolean isRestartFromScratch() {
+        return restartFromScratch;
+    }
+
+    public void setRestartFromScratch(boolean restartFromScratch) {
+        this.restartFromScratch = restartFromScratch;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
 }
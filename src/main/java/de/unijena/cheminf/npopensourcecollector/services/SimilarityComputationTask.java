@@ -6,11 +6,6 @@ import de.unijena.cheminf.npopensourcecollector.mongocollections.NPSimilarity;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.NPSimilarityRepository;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
 import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProductRepository;
-import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.fingerprint.Fingerprinter;
-import org.openscience.cdk.fingerprint.IBitFingerprint;
-import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.similarity.Tanimoto;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.annotation.Transient;
 import org.springframework.stereotype.Service;
@@ -18,6 +13,7 @@ import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 
@@ -44,6 +40,8 @@ public class SimilarityComputationTask implements Runnable {
 
     Integer taskid;
 
+    FingerprintType fingerprintType = FingerprintType.CIRCULAR;
+
     @Override
     public void run() {
 
@@ -51,7 +49,6 @@ public class SimilarityComputationTask implements Runnable {
         this.atomContainerToUniqueNaturalProductService = BeanUtil.getBean(AtomContainerToUniqueNaturalProductService.class);
         this.uniqueNaturalProductRepository = BeanUtil.getBean(UniqueNaturalProductRepository.class);
 
-        Fingerprinter fingerprinter = new Fingerprinter();
         System.out.println("Computing similarities for task "+taskid);
 
         for(List spair : npInchikeyPairsToCompute){
@@ -59,30 +56,30 @@ public class SimilarityComputationTask implements Runnable {
             UniqueNaturalProduct unp1 = uniqueNaturalProductRepository.findByInchikey(pair.get(0)).get(0);
             UniqueNaturalProduct unp2 = uniqueNaturalProductRepository.findByInchikey(pair.get(1)).get(0);
 
+            //fingerprints as stored by the feature computation, no perception or fingerprinting here
+            BitSet fingerprint1 = PackedFingerprintMatrix.toBitSet(fingerprintType.storedBits(unp1));
+            BitSet fingerprint2 = PackedFingerprintMatrix.toBitSet(fingerprintType.storedBits(unp2));
 
-            IAtomContainer mol1 = atomContainerToUniqueNaturalProductService.createAtomContainer(unp1);
-            IAtomContainer mol2 = atomContainerToUniqueNaturalProductService.createAtomContainer(unp2);
-
-            IBitFingerprint fingerprint1 = null;
-            IBitFingerprint fingerprint2 = null;
-            try {
-                fingerprint1 = fingerprinter.getBitFingerprint(mol1);
-                fingerprint2 = fingerprinter.getBitFingerprint(mol2);
-                double tanimoto_coefficient = Tanimoto.calculate(fingerprint1, fingerprint2);
+            //Swamidass-Baldi bound: the Tanimoto can not exceed min/max of the popcounts
+            long card1 = fingerprint1.cardinality();
+            long card2 = fingerprint2.cardinality();
+            if (Math.max(card1, card2) == 0 || (double) Math.min(card1, card2) / Math.max(card1, card2) < 0.5){
+                continue;
+            }
 
-                if (tanimoto_coefficient>=0.5){
+            BitSet common = (BitSet) fingerprint1.clone();
+            common.and(fingerprint2);
+            double tanimoto_coefficient = (double) common.cardinality() / (card1 + card2 - common.cardinality());
 
-                    NPSimilarity newSimilarity = new NPSimilarity();
-                    newSimilarity.setUniqueNaturalProductID1(unp1.getId());
-                    newSimilarity.setUniqueNaturalProductID2(unp2.getId());
-                    newSimilarity.setTanimoto(tanimoto_coefficient);
-                    //newSimilarity.setDistanceMoment(distance_moment);
+            if (tanimoto_coefficient>=0.5){
 
-                    npSimilarityRepository.save(newSimilarity);
-                }
+                NPSimilarity newSimilarity = new NPSimilarity();
+                newSimilarity.setUniqueNaturalProductID1(unp1.getId());
+                newSimilarity.setUniqueNaturalProductID2(unp2.getId());
+                newSimilarity.setTanimoto(tanimoto_coefficient);
+                //newSimilarity.setDistanceMoment(distance_moment);
 
-            } catch (CDKException e) {
-                e.printStackTrace();
+                npSimilarityRepository.save(newSimilarity);
             }
 
         }
@@ -95,5 +92,9 @@ public class SimilarityComputationTask implements Runnable {
         this.npInchikeyPairsToCompute = npInchikeyPairsToCompute;
     }
 
+    public void setFingerprintType(FingerprintType fingerprintType) {
+        this.fingerprintType = fingerprintType;
+    }
+
 
 }
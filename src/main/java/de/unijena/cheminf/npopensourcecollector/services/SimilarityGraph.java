@@ -0,0 +1,139 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Undirected similarity graph over the rows of a PackedFingerprintMatrix in compressed sparse row form:
+ * the neighbours of row i are neighbours[offsets[i] .. offsets[i+1]), with their Tanimoto quantised on 16 bits.
+ * Each edge is stored in both directions.
+ */
+public class SimilarityGraph {
+
+    private final int[] offsets;
+
+    private final int[] neighbours;
+
+    private final short[] scores;
+
+
+    public SimilarityGraph(int[] offsets, int[] neighbours, short[] scores){
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.scores = scores;
+    }
+
+
+    /**
+     * Two passes over the tiles of the engine: the first counts the edges of every row, the second fills them in,
+     * so that only the final arrays are ever allocated
+     */
+    public static SimilarityGraph build(TanimotoTileEngine engine, int size, ForkJoinPool pool){
+
+        AtomicIntegerArray degrees = new AtomicIntegerArray(size);
+        forEachTile(engine, pool, () -> new SimilarityPairCollector() {
+            @Override
+            public void collect(int i, int j, double tanimoto) {
+                degrees.incrementAndGet(i);
+                degrees.incrementAndGet(j);
+            }
+
+            @Override
+            public void tileFinished(int rowBlock, int colBlock) {
+            }
+        });
+
+        int[] offsets = new int[size + 1];
+        long total = 0;
+        for(int i = 0; i < size; i++){
+            offsets[i] = (int) total;
+            total += degrees.get(i);
+            if(total > Integer.MAX_VALUE){
+                throw new IllegalStateException("Too many similar pairs for an in-memory graph, use a higher cutoff");
+            }
+        }
+        offsets[size] = (int) total;
+
+        int[] neighbours = new int[(int) total];
+        short[] scores = new short[(int) total];
+        AtomicIntegerArray cursors = new AtomicIntegerArray(offsets);
+
+        forEachTile(engine, pool, () -> new SimilarityPairCollector() {
+            @Override
+            public void collect(int i, int j, double tanimoto) {
+                short q = quantise(tanimoto);
+                int pi = cursors.getAndIncrement(i);
+                neighbours[pi] = j;
+                scores[pi] = q;
+                int pj = cursors.getAndIncrement(j);
+                neighbours[pj] = i;
+                scores[pj] = q;
+            }
+
+            @Override
+            public void tileFinished(int rowBlock, int colBlock) {
+            }
+        });
+
+        return new SimilarityGraph(offsets, neighbours, scores);
+    }
+
+
+    private static void forEachTile(TanimotoTileEngine engine, ForkJoinPool pool, Supplier<SimilarityPairCollector> collectorSupplier){
+        int nbBlocks = engine.getNumberOfBlocks();
+        try {
+            pool.submit(() -> IntStream.range(0, nbBlocks).parallel().forEach(r -> {
+                for (int c = r; c < nbBlocks && engine.canReachThreshold(r, c); c++) {
+                    engine.computeTile(r, c, collectorSupplier.get());
+                }
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Similarity graph computation failed", e);
+        }
+    }
+
+
+    public static short quantise(double tanimoto){
+        return (short) Math.round(tanimoto * 65535);
+    }
+
+    public static double dequantise(short score){
+        return (score & 0xFFFF) / 65535.0;
+    }
+
+
+    public int size(){
+        return offsets.length - 1;
+    }
+
+    public long numberOfEdges(){
+        return offsets[offsets.length - 1] / 2;
+    }
+
+    public int degree(int row){
+        return offsets[row + 1] - offsets[row];
+    }
+
+    public int neighbour(int row, int k){
+        return neighbours[offsets[row] + k];
+    }
+
+    public double tanimoto(int row, int k){
+        return dequantise(scores[offsets[row] + k]);
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getNeighbours() {
+        return neighbours;
+    }
+
+    public short[] getScores() {
+        return scores;
+    }
+}
@@ -0,0 +1,292 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Similarity graph stored as a compressed sparse row file, read through memory mapping without copying it on the heap.
+ *
+ * Layout (big endian):
+ * header: magic, version, score bits (8 or 16), number of nodes (ints), number of directed edges, number of id bytes (longs);
+ * offsets: long[nodes + 1]; neighbours: int[edges], sorted by node id within each node;
+ * scores: byte[edges] or short[edges], the tanimoto quantised on the score bits, padded to 8 bytes;
+ * coconut_id lookup table: int[nodes + 1] offsets into the UTF-8 bytes of the ids.
+ */
+public class SimilarityGraphFile {
+
+    public static final int MAGIC = 0x434E5047;
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+
+    //mapped chunks are a multiple of 8 bytes, so that no value is split between two chunks
+    private static final int CHUNK_BYTES = 1 << 30;
+
+
+    private final int scoreBits;
+
+    private final int numberOfNodes;
+
+    private final long numberOfEdges;
+
+    private final MappedByteBuffer[] offsets;
+
+    private final MappedByteBuffer[] neighbours;
+
+    private final MappedByteBuffer[] scores;
+
+    private final MappedByteBuffer[] idOffsets;
+
+    private final MappedByteBuffer[] idBytes;
+
+    private volatile Map<String, Integer> nodesByCoconutId;
+
+
+
+    private SimilarityGraphFile(FileChannel channel) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if(header.getInt() != MAGIC){
+            throw new IOException("Not a similarity graph file");
+        }
+        int version = header.getInt();
+        if(version != VERSION){
+            throw new IOException("Unsupported similarity graph file version "+version);
+        }
+        scoreBits = header.getInt();
+        numberOfNodes = header.getInt();
+        numberOfEdges = header.getLong();
+        long numberOfIdBytes = header.getLong();
+
+        long position = HEADER_BYTES;
+        offsets = map(channel, position, 8L * (numberOfNodes + 1));
+        position += 8L * (numberOfNodes + 1);
+        neighbours = map(channel, position, 4L * numberOfEdges);
+        position += 4L * numberOfEdges;
+        scores = map(channel, position, scoreBits / 8 * numberOfEdges);
+        position += pad(scoreBits / 8 * numberOfEdges);
+        idOffsets = map(channel, position, 4L * (numberOfNodes + 1));
+        position += pad(4L * (numberOfNodes + 1));
+        idBytes = map(channel, position, numberOfIdBytes);
+    }
+
+
+    /**
+     * Maps the file read-only; the mapping stays valid after the channel is closed
+     */
+    public static SimilarityGraphFile open(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            return new SimilarityGraphFile(channel);
+        }
+    }
+
+
+    /**
+     * Writes the graph with the coconut_id of each matrix row; the node ids of the file are the rows of the matrix
+     */
+    public static void write(SimilarityGraph graph, PackedFingerprintMatrix matrix, Path file, int scoreBits) throws IOException {
+        if(scoreBits != 8 && scoreBits != 16){
+            throw new IllegalArgumentException("Scores can only be quantised on 8 or 16 bits");
+        }
+        int size = graph.size();
+
+        byte[][] ids = new byte[size][];
+        long numberOfIdBytes = 0;
+        for(int i = 0; i < size; i++){
+            String coconutId = matrix.getCoconutId(i);
+            ids[i] = coconutId == null ? new byte[0] : coconutId.getBytes(StandardCharsets.UTF_8);
+            numberOfIdBytes += ids[i].length;
+        }
+        if(numberOfIdBytes > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Too many coconut_id bytes for the lookup table");
+        }
+
+        long numberOfEdges = graph.getOffsets()[size];
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 20))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(scoreBits);
+            out.writeInt(size);
+            out.writeLong(numberOfEdges);
+            out.writeLong(numberOfIdBytes);
+
+            for(int i = 0; i <= size; i++){
+                out.writeLong(graph.getOffsets()[i]);
+            }
+
+            // the graph is filled in parallel, the neighbours of each node are written in node order
+            int[][] orders = new int[size][];
+            for(int i = 0; i < size; i++){
+                orders[i] = sortedNeighbourPositions(graph, i);
+                for(int k : orders[i]){
+                    out.writeInt(graph.neighbour(i, k));
+                }
+            }
+
+            for(int i = 0; i < size; i++){
+                for(int k : orders[i]){
+                    if(scoreBits == 8){
+                        out.writeByte((int) Math.round(graph.tanimoto(i, k) * 255));
+                    }else{
+                        out.writeShort(graph.getScores()[graph.getOffsets()[i] + k]);
+                    }
+                }
+            }
+            writePadding(out, scoreBits / 8 * numberOfEdges);
+
+            int idOffset = 0;
+            for(int i = 0; i < size; i++){
+                out.writeInt(idOffset);
+                idOffset += ids[i].length;
+            }
+            out.writeInt(idOffset);
+            writePadding(out, 4L * (size + 1));
+
+            for(byte[] id : ids){
+                out.write(id);
+            }
+        }
+    }
+
+
+    private static int[] sortedNeighbourPositions(SimilarityGraph graph, int node){
+        int degree = graph.degree(node);
+        long[] keys = new long[degree];
+        for(int k = 0; k < degree; k++){
+            keys[k] = ((long) graph.neighbour(node, k) << 32) | k;
+        }
+        Arrays.sort(keys);
+        int[] positions = new int[degree];
+        for(int k = 0; k < degree; k++){
+            positions[k] = (int) keys[k];
+        }
+        return positions;
+    }
+
+
+    private static void writePadding(DataOutputStream out, long sectionBytes) throws IOException {
+        for(long b = sectionBytes; b < pad(sectionBytes); b++){
+            out.writeByte(0);
+        }
+    }
+
+    private static long pad(long bytes){
+        return (bytes + 7) & ~7L;
+    }
+
+
+    private static MappedByteBuffer[] map(FileChannel channel, long position, long length) throws IOException {
+        int nbChunks = (int) ((length + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[Math.max(nbChunks, 1)];
+        if(nbChunks == 0){
+            chunks[0] = channel.map(FileChannel.MapMode.READ_ONLY, position, 0);
+        }
+        for(int c = 0; c < nbChunks; c++){
+            long start = (long) c * CHUNK_BYTES;
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, Math.min(CHUNK_BYTES, length - start));
+        }
+        return chunks;
+    }
+
+    private static long getLong(MappedByteBuffer[] chunks, long index){
+        long byteIndex = index * 8;
+        return chunks[(int) (byteIndex / CHUNK_BYTES)].getLong((int) (byteIndex % CHUNK_BYTES));
+    }
+
+    private static int getInt(MappedByteBuffer[] chunks, long index){
+        long byteIndex = index * 4;
+        return chunks[(int) (byteIndex / CHUNK_BYTES)].getInt((int) (byteIndex % CHUNK_BYTES));
+    }
+
+
+
+    public int size(){
+        return numberOfNodes;
+    }
+
+    public long numberOfEdges(){
+        return numberOfEdges / 2;
+    }
+
+    public int getScoreBits() {
+        return scoreBits;
+    }
+
+    public int degree(int node){
+        return (int) (getLong(offsets, node + 1) - getLong(offsets, node));
+    }
+
+    public int neighbour(int node, int k){
+        return getInt(neighbours, getLong(offsets, node) + k);
+    }
+
+    public double tanimoto(int node, int k){
+        long edge = getLong(offsets, node) + k;
+        if(scoreBits == 8){
+            long byteIndex = edge;
+            return (scores[(int) (byteIndex / CHUNK_BYTES)].get((int) (byteIndex % CHUNK_BYTES)) & 0xFF) / 255.0;
+        }
+        long byteIndex = edge * 2;
+        return SimilarityGraph.dequantise(scores[(int) (byteIndex / CHUNK_BYTES)].getShort((int) (byteIndex % CHUNK_BYTES)));
+    }
+
+
+    /**
+     * Tanimoto between two nodes, 0 when they are not connected (binary search in the sorted neighbours of the first)
+     */
+    public double tanimotoBetween(int node, int other){
+        int low = 0;
+        int high = degree(node) - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int n = neighbour(node, mid);
+            if(n < other){
+                low = mid + 1;
+            }else if(n > other){
+                high = mid - 1;
+            }else{
+                return tanimoto(node, mid);
+            }
+        }
+        return 0.0;
+    }
+
+
+    public String getCoconutId(int node){
+        int start = getInt(idOffsets, node);
+        int end = getInt(idOffsets, node + 1);
+        byte[] id = new byte[end - start];
+        for(int b = 0; b < id.length; b++){
+            long byteIndex = (long) start + b;
+            id[b] = idBytes[(int) (byteIndex / CHUNK_BYTES)].get((int) (byteIndex % CHUNK_BYTES));
+        }
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Node of a coconut_id, -1 if it is not in the graph. The reverse lookup table is built on first use.
+     */
+    public int getNode(String coconutId){
+        Map<String, Integer> lookup = nodesByCoconutId;
+        if(lookup == null){
+            lookup = new HashMap<>(numberOfNodes * 2);
+            for(int node = 0; node < numberOfNodes; node++){
+                lookup.put(getCoconutId(node), node);
+            }
+            nodesByCoconutId = lookup;
+        }
+        return lookup.getOrDefault(coconutId, -1);
+    }
+}
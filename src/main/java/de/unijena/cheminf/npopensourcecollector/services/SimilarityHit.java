@@ -0,0 +1,22 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+public class SimilarityHit {
+
+    private final String coconut_id;
+
+    private final double tanimoto;
+
+
+    public SimilarityHit(String coconut_id, double tanimoto) {
+        this.coconut_id = coconut_id;
+        this.tanimoto = tanimoto;
+    }
+
+    public String getCoconut_id() {
+        return coconut_id;
+    }
+
+    public double getTanimoto() {
+        return tanimoto;
+    }
+}
@@ -0,0 +1,9 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+/**
+ * Receives the rows of a PackedFingerprintMatrix that are similar to a single query
+ */
+public interface SimilarityHitConsumer {
+
+    void accept(int row, double tanimoto);
+}
@@ -0,0 +1,12 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+/**
+ * Receives the pairs found in one tile of the all-vs-all Tanimoto computation.
+ * One collector is created per tile and is only used by the thread computing that tile.
+ */
+public interface SimilarityPairCollector {
+
+    void collect(int i, int j, double tanimoto);
+
+    void tileFinished(int rowBlock, int colBlock);
+}
@@ -0,0 +1,169 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProductRepository;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.IFingerprinter;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-process similarity search: a SMILES query is fingerprinted once and compared in parallel with an in-memory
+ * index of the fingerprints stored on every UniqueNaturalProduct.
+ * The index is loaded on first use and replaced atomically by buildIndex(), so queries never see a half built index.
+ */
+@Service
+public class SimilaritySearchService {
+
+    @Autowired
+    UniqueNaturalProductRepository uniqueNaturalProductRepository;
+
+
+    private volatile SearchIndex index;
+
+    private final ForkJoinPool searchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private FingerprintType fingerprintType = FingerprintType.CIRCULAR;
+
+    private final ThreadLocal<Map<FingerprintType, IFingerprinter>> fingerprinters = ThreadLocal.withInitial(() -> new EnumMap<>(FingerprintType.class));
+
+    private final int chunkSize = 16384;
+
+
+
+    public synchronized void buildIndex(){
+        System.out.println("Building similarity search index");
+
+        FingerprintType type = fingerprintType;
+        List<UniqueNaturalProduct> allNP = uniqueNaturalProductRepository.findAllWithFingerprint(type.getField());
+
+        PackedFingerprintMatrix newIndex = new PackedFingerprintMatrix(allNP.size(), type.getLength());
+        for(int i = 0; i < allNP.size(); i++){
+            UniqueNaturalProduct np = allNP.get(i);
+            newIndex.setRow(i, np.getId(), np.coconut_id, PackedFingerprintMatrix.toBitSet(type.storedBits(np)));
+        }
+        newIndex.sortByCardinality();
+
+        this.index = new SearchIndex(newIndex, type);
+
+        System.out.println("Similarity search index built for "+newIndex.size()+" NPs");
+    }
+
+
+    /**
+     * To call when a stage recomputing the stored fingerprints is finished; does nothing if no search was made yet
+     */
+    public void refreshIndexIfLoaded(){
+        if(index != null){
+            buildIndex();
+        }
+    }
+
+
+    /**
+     * The topN most similar NPs of the molecule given as SMILES, most similar first
+     */
+    public List<SimilarityHit> search(String smiles, int topN){
+
+        SearchIndex currentIndex = index;
+        if(currentIndex == null){
+            buildIndex();
+            currentIndex = index;
+        }
+
+        BitSet fingerprint = fingerprint(smiles, currentIndex.fingerprintType);
+        if(fingerprint == null || topN <= 0){
+            return new ArrayList<>();
+        }
+
+        PackedFingerprintMatrix searchedIndex = currentIndex.matrix;
+        long[] query = searchedIndex.pack(fingerprint);
+        int queryCardinality = fingerprint.cardinality();
+
+        int nbChunks = (searchedIndex.size() + chunkSize - 1) / chunkSize;
+
+        List<SimilarityHit> hits = new ArrayList<>();
+        try {
+            // each chunk keeps its own bounded heap, the chunk results are merged afterwards
+            hits = searchPool.submit(() -> IntStream.range(0, nbChunks).parallel().mapToObj(chunk -> {
+                BoundedNeighbourHeap heap = new BoundedNeighbourHeap(topN);
+                int end = Math.min((chunk + 1) * chunkSize, searchedIndex.size());
+                for (int j = chunk * chunkSize; j < end; j++) {
+                    if (heap.isFull()) {
+                        // rows are sorted by popcount: once the bound can not beat the heap, no further row of the chunk can
+                        int c = searchedIndex.getCardinality(j);
+                        if (c > queryCardinality && (double) queryCardinality / c <= heap.minScore()) {
+                            break;
+                        }
+                        if (c < queryCardinality && (double) c / queryCardinality <= heap.minScore()) {
+                            continue;
+                        }
+                    }
+                    heap.offer(j, searchedIndex.tanimoto(query, queryCardinality, j));
+                }
+                int[] rows = new int[topN];
+                double[] scores = new double[topN];
+                int n = heap.drainDescending(rows, scores);
+                List<SimilarityHit> chunkHits = new ArrayList<>(n);
+                for (int k = 0; k < n; k++) {
+                    chunkHits.add(new SimilarityHit(searchedIndex.getCoconutId(rows[k]), scores[k]));
+                }
+                return chunkHits;
+            }).flatMap(List::stream).collect(Collectors.toList())).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        hits.sort((a, b) -> Double.compare(b.getTanimoto(), a.getTanimoto()));
+        return hits.size() > topN ? new ArrayList<>(hits.subList(0, topN)) : hits;
+    }
+
+
+    private BitSet fingerprint(String smiles, FingerprintType type){
+        try {
+            IAtomContainer ac = QueryMoleculeParser.parse(smiles);
+            return fingerprinters.get().computeIfAbsent(type, FingerprintType::newFingerprinter).getBitFingerprint(ac).asBitSet();
+
+        } catch (CDKException | IllegalArgumentException e) {
+            System.out.println("Could not fingerprint query "+smiles+": "+e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * The fingerprints and their type are published together, a query never mixes the type of one index with
+     * the fingerprints of another
+     */
+    private static final class SearchIndex {
+
+        private final PackedFingerprintMatrix matrix;
+
+        //the queries are fingerprinted with the same fingerprinter
+        private final FingerprintType fingerprintType;
+
+        private SearchIndex(PackedFingerprintMatrix matrix, FingerprintType fingerprintType){
+            this.matrix = matrix;
+            this.fingerprintType = fingerprintType;
+        }
+    }
+
+
+    public FingerprintType getFingerprintType() {
+        return fingerprintType;
+    }
+
+    /**
+     * Takes effect at the next buildIndex()
+     */
+    public void setFingerprintType(FingerprintType fingerprintType) {
+        this.fingerprintType = fingerprintType;
+    }
+}
@@ -0,0 +1,241 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import com.mongodb.bulk.BulkWriteResult;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SimilarityTile;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.SimilarityTileRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the tiles of an all-vs-all similarity job between several COCONUT processes, on one or several hosts.
+ * The tiles are queued in the similarityTile collection; each worker thread claims one tile at a time with an
+ * atomic find-and-modify that sets a lease, computes it and marks it done. Tiles of a dead worker are claimed
+ * again once their lease has expired. Every process loads the same deterministic matrix, so a tile id means the
+ * same pairs everywhere, and the pairs are saved with deterministic ids so a tile computed twice is harmless.
+ */
+@Service
+public class SimilarityWorkQueueService {
+
+    public static final String PENDING = "pending";
+    public static final String CLAIMED = "claimed";
+    public static final String DONE = "done";
+
+    private static final long MIN_ERROR_WAIT_SECONDS = 5;
+
+    private static final long MAX_ERROR_WAIT_SECONDS = 300;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    SimilarityTileRepository similarityTileRepository;
+
+    @Autowired
+    SimilarityComputationService similarityComputationService;
+
+
+    private long leaseMinutes = 10;
+
+    private long idleWaitSeconds = 30;
+
+
+
+    public void runWorker(int numberOfThreads){
+
+        String owner = ManagementFactory.getRuntimeMXBean().getName();
+        System.out.println("Starting similarity worker "+owner+" with "+numberOfThreads+" threads");
+
+        PackedFingerprintMatrix matrix = similarityComputationService.loadFingerprintMatrix();
+        matrix.sortByCardinality();
+
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, similarityComputationService.getTileSize(), similarityComputationService.getSimilarityThreshold());
+        String jobId = similarityComputationService.getJobId(matrix);
+
+        seedQueue(engine, jobId);
+
+        AtomicLong computedTiles = new AtomicLong();
+        AtomicLong savedPairs = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        for(int t = 0; t < numberOfThreads; t++){
+            String threadOwner = owner + "#" + t;
+            executor.execute(() -> workLoop(engine, matrix, jobId, threadOwner, computedTiles, savedPairs));
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted similarity worker, its claimed tiles will be taken over when their lease expires");
+        }
+
+        System.out.println("Worker "+owner+" computed "+computedTiles.get()+" tiles and saved "+savedPairs.get()+" similar pairs");
+    }
+
+
+    /**
+     * Inserts a pending entry for every tile that can reach the threshold. Entries that already exist, whatever
+     * their status, are left untouched, so every worker can seed the job when it starts.
+     */
+    public void seedQueue(TanimotoTileEngine engine, String jobId){
+
+        int nbBlocks = engine.getNumberOfBlocks();
+
+        long reachableTiles = 0;
+        for(int r = 0; r < nbBlocks; r++){
+            for(int c = r; c < nbBlocks && engine.canReachThreshold(r, c); c++){
+                reachableTiles++;
+            }
+        }
+        if(similarityTileRepository.countByJobId(jobId) >= reachableTiles){
+            System.out.println("Work queue of job "+jobId+" already seeded");
+            return;
+        }
+
+        System.out.println("Seeding work queue of job "+jobId+" with "+reachableTiles+" tiles");
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimilarityTile.class);
+        int batch = 0;
+        long inserted = 0;
+        for(int r = 0; r < nbBlocks; r++){
+            for(int c = r; c < nbBlocks && engine.canReachThreshold(r, c); c++){
+                String tileId = jobId + ":" + r + ":" + c;
+                Update update = new Update()
+                        .setOnInsert("jobId", jobId)
+                        .setOnInsert("rowBlock", r)
+                        .setOnInsert("colBlock", c)
+                        .setOnInsert("status", PENDING);
+                bulkOps.upsert(Query.query(Criteria.where("_id").is(tileId)), update);
+                batch++;
+
+                if(batch == 10000){
+                    inserted += bulkOps.execute().getUpserts().size();
+                    bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimilarityTile.class);
+                    batch = 0;
+                }
+            }
+        }
+        if(batch > 0){
+            BulkWriteResult result = bulkOps.execute();
+            inserted += result.getUpserts().size();
+        }
+
+        System.out.println("New tiles queued: "+inserted);
+    }
+
+
+    /**
+     * Claims and computes tiles until none is left in the job. An error on a tile (e.g. Mongo unreachable for a
+     * moment) is reported and the thread waits before claiming again, longer after each error in a row; a tile it
+     * could not complete is leased to it, and is claimed again by any worker once the lease expires.
+     */
+    private void workLoop(TanimotoTileEngine engine, PackedFingerprintMatrix matrix, String jobId, String owner, AtomicLong computedTiles, AtomicLong savedPairs){
+        long errorWaitSeconds = MIN_ERROR_WAIT_SECONDS;
+        while (true) {
+            try {
+                SimilarityTile tile = claimTile(jobId, owner);
+
+                if (tile == null) {
+                    if (similarityTileRepository.countByJobIdAndStatusNot(jobId, DONE) == 0) {
+                        return;
+                    }
+                    // the remaining tiles are leased by other workers, they come back if a worker dies
+                    TimeUnit.SECONDS.sleep(idleWaitSeconds);
+                    continue;
+                }
+
+                NPSimilaritySavingCollector collector = new NPSimilaritySavingCollector(mongoTemplate, matrix, savedPairs);
+                engine.computeTile(tile.getRowBlock(), tile.getColBlock(), collector);
+                completeTile(tile, owner, collector.getPairsInLastTile());
+                errorWaitSeconds = MIN_ERROR_WAIT_SECONDS;
+
+                long done = computedTiles.incrementAndGet();
+                if (done % 10000 == 0) {
+                    System.out.println("Tiles computed by this worker: " + done);
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Worker thread "+owner+" interrupted");
+                return;
+            } catch (Exception e) {
+                System.out.println("Error in worker thread "+owner+", retrying in "+errorWaitSeconds+" s: "+e.getMessage());
+                e.printStackTrace();
+                try {
+                    TimeUnit.SECONDS.sleep(errorWaitSeconds);
+                } catch (InterruptedException interrupted) {
+                    System.out.println("Worker thread "+owner+" interrupted");
+                    return;
+                }
+                errorWaitSeconds = Math.min(errorWaitSeconds * 2, MAX_ERROR_WAIT_SECONDS);
+            }
+        }
+    }
+
+
+    /**
+     * Atomically takes a pending tile, or a claimed tile whose lease has expired, and leases it to the owner
+     */
+    public SimilarityTile claimTile(String jobId, String owner){
+        Date now = new Date();
+
+        Query query = Query.query(Criteria.where("jobId").is(jobId).orOperator(
+                Criteria.where("status").is(PENDING),
+                Criteria.where("status").is(CLAIMED).and("leaseExpires").lt(now)));
+        query.with(Sort.by(Sort.Direction.ASC, "rowBlock", "colBlock"));
+
+        Update update = new Update()
+                .set("status", CLAIMED)
+                .set("owner", owner)
+                .set("leaseExpires", new Date(now.getTime() + TimeUnit.MINUTES.toMillis(leaseMinutes)));
+
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), SimilarityTile.class);
+    }
+
+
+    /**
+     * Marks the tile done if the owner still holds it; if its lease expired and another worker took it over,
+     * that worker saves the same pairs and completes it
+     */
+    public void completeTile(SimilarityTile tile, String owner, int similarPairs){
+        Query query = Query.query(Criteria.where("_id").is(tile.getId()).and("owner").is(owner).and("status").is(CLAIMED));
+
+        Update update = new Update()
+                .set("status", DONE)
+                .set("similarPairs", similarPairs)
+                .set("finished", new Date())
+                .unset("leaseExpires");
+
+        mongoTemplate.updateFirst(query, update, SimilarityTile.class);
+    }
+
+
+
+    public long getLeaseMinutes() {
+        return leaseMinutes;
+    }
+
+    public void setLeaseMinutes(long leaseMinutes) {
+        this.leaseMinutes = leaseMinutes;
+    }
+
+    public long getIdleWaitSeconds() {
+        return idleWaitSeconds;
+    }
+
+    public void setIdleWaitSeconds(long idleWaitSeconds) {
+        this.idleWaitSeconds = idleWaitSeconds;
+    }
+}
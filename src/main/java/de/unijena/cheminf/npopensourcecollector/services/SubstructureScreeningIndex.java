@@ -0,0 +1,154 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Inverted index of a fingerprint: for every bit, the compressed set of the ordinals of the molecules having it.
+ * A molecule can only contain a substructure whose fingerprint bits are all set in its own fingerprint,
+ * so the AND of the sets of the query bits is the candidate set of a substructure search.
+ */
+public class SubstructureScreeningIndex {
+
+    //the queries are screened with fingerprints of the same type
+    private final FingerprintType fingerprintType;
+
+    private final CompressedBitmap[] bitIndex;
+
+    private final CompressedBitmap allMolecules;
+
+    private final String[] uniqueNaturalProductIds;
+
+    private final String[] coconutIds;
+
+    //unique SMILES of the molecules, to verify the candidates
+    private final String[] structures;
+
+
+    /**
+     * The ordinal of a molecule is its position in the lists, the bits of each molecule are the stored set bits
+     */
+    public SubstructureScreeningIndex(FingerprintType fingerprintType, List<String> uniqueNaturalProductIds, List<String> coconutIds, List<String> structures, List<List<Integer>> storedBits){
+        this.fingerprintType = fingerprintType;
+        int fingerprintLength = fingerprintType.getLength();
+        int size = uniqueNaturalProductIds.size();
+        this.uniqueNaturalProductIds = uniqueNaturalProductIds.toArray(new String[0]);
+        this.coconutIds = coconutIds.toArray(new String[0]);
+        this.structures = structures.toArray(new String[0]);
+
+        CompressedBitmap.Builder[] builders = new CompressedBitmap.Builder[fingerprintLength];
+        for(int bit = 0; bit < fingerprintLength; bit++){
+            builders[bit] = new CompressedBitmap.Builder();
+        }
+        CompressedBitmap.Builder all = new CompressedBitmap.Builder();
+
+        for(int ordinal = 0; ordinal < size; ordinal++){
+            List<Integer> bits = storedBits.get(ordinal);
+            if(bits == null){
+                // without a fingerprint a molecule can not be screened, it never becomes a candidate
+                continue;
+            }
+            all.add(ordinal);
+            // the stored bits are not guaranteed to be sorted or unique
+            BitSet fingerprint = PackedFingerprintMatrix.toBitSet(bits);
+            for(int bit = fingerprint.nextSetBit(0); bit >= 0 && bit < fingerprintLength; bit = fingerprint.nextSetBit(bit + 1)){
+                builders[bit].add(ordinal);
+            }
+        }
+
+        bitIndex = new CompressedBitmap[fingerprintLength];
+        for(int bit = 0; bit < fingerprintLength; bit++){
+            bitIndex[bit] = builders[bit].build();
+        }
+        allMolecules = all.build();
+    }
+
+
+    /**
+     * Ordinals of the molecules having all the bits of the query fingerprint
+     */
+    public CompressedBitmap screen(BitSet queryBits){
+        return screen(queryBits, getBitFrequencies(), 0);
+    }
+
+
+    /**
+     * Intersects the sets of the query bits from the rarest bit to the most frequent one, according to the given
+     * number of molecules having each bit, and stops as soon as no candidate is left or at most verifyDirectlyBelow
+     * are: the remaining bits would then cost more than verifying these few candidates. The result is then a superset
+     * of the molecules having all the query bits.
+     */
+    public CompressedBitmap screen(BitSet queryBits, int[] bitFrequencies, int verifyDirectlyBelow){
+        int[] bits = queryBits.stream().toArray();
+        if(bits.length > 0 && bits[bits.length - 1] >= bitIndex.length){
+            return CompressedBitmap.empty();
+        }
+
+        long[] order = new long[bits.length];
+        for(int k = 0; k < bits.length; k++){
+            int frequency = bits[k] < bitFrequencies.length ? bitFrequencies[bits[k]] : 0;
+            order[k] = ((long) frequency << 32) | bits[k];
+        }
+        Arrays.sort(order);
+
+        CompressedBitmap candidates = allMolecules;
+        for(long key : order){
+            int bit = (int) key;
+            candidates = candidates == allMolecules ? bitIndex[bit] : candidates.and(bitIndex[bit]);
+            if(candidates.getCardinality() <= verifyDirectlyBelow){
+                break;
+            }
+        }
+        return candidates;
+    }
+
+
+    /**
+     * Number of molecules having each bit, in this index
+     */
+    public int[] getBitFrequencies(){
+        int[] frequencies = new int[bitIndex.length];
+        for(int bit = 0; bit < bitIndex.length; bit++){
+            frequencies[bit] = bitIndex[bit].getCardinality();
+        }
+        return frequencies;
+    }
+
+
+    public int size(){
+        return uniqueNaturalProductIds.length;
+    }
+
+    public FingerprintType getFingerprintType(){
+        return fingerprintType;
+    }
+
+    public int getFingerprintLength(){
+        return bitIndex.length;
+    }
+
+    public CompressedBitmap getMoleculesWithBit(int bit){
+        return bitIndex[bit];
+    }
+
+    public String getUniqueNaturalProductId(int ordinal){
+        return uniqueNaturalProductIds[ordinal];
+    }
+
+    public String getCoconutId(int ordinal){
+        return coconutIds[ordinal];
+    }
+
+    public String getStructure(int ordinal){
+        return structures[ordinal];
+    }
+
+    public long sizeInBytes(){
+        long bytes = allMolecules.sizeInBytes();
+        for(CompressedBitmap bitmap : bitIndex){
+            bytes += bitmap.sizeInBytes();
+        }
+        return bytes;
+    }
+}
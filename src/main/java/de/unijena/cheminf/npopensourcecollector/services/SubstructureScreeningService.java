@@ -0,0 +1,253 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import de.unijena.cheminf.npopensourcecollector.mongocollections.PubFingerprintsCounts;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.PubFingerprintsCountsRepository;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProduct;
+import de.unijena.cheminf.npopensourcecollector.mongocollections.UniqueNaturalProductRepository;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.IFingerprinter;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Substructure screening in memory, in place of the $bitsAllSet query of findAllPubchemBitsSet that makes Mongo
+ * read the pubchemBits of every document: the query is fingerprinted once and its bits are intersected
+ * in a SubstructureScreeningIndex of the stored fingerprints.
+ * Like the similarity search index, it is loaded on first use and replaced atomically by buildIndex().
+ */
+@Service
+public class SubstructureScreeningService {
+
+    @Autowired
+    UniqueNaturalProductRepository uniqueNaturalProductRepository;
+
+    @Autowired
+    PubFingerprintsCountsRepository pubFingerprintsCountsRepository;
+
+
+    private volatile SubstructureScreeningIndex index;
+
+    private FingerprintType fingerprintType = FingerprintType.PUBCHEM;
+
+    //number of NPs having each PubChem bit, from PubFingerprintsCounts; empty when the counts were never computed
+    private volatile int[] pubchemBitCounts;
+
+    //screening stops intersecting bits when at most that many candidates are left, they are verified directly
+    private int verifyDirectlyBelow = 200;
+
+    private final ThreadLocal<Map<FingerprintType, IFingerprinter>> fingerprinters = ThreadLocal.withInitial(() -> new EnumMap<>(FingerprintType.class));
+
+
+
+    public synchronized void buildIndex(){
+        System.out.println("Building substructure screening index");
+        long start = System.nanoTime();
+
+        FingerprintType type = fingerprintType;
+        List<UniqueNaturalProduct> allNP = uniqueNaturalProductRepository.findAllWithFingerprintAndStructure(type.getField());
+
+        List<String> ids = new ArrayList<>(allNP.size());
+        List<String> coconutIds = new ArrayList<>(allNP.size());
+        List<String> structures = new ArrayList<>(allNP.size());
+        List<List<Integer>> bits = new ArrayList<>(allNP.size());
+        for(UniqueNaturalProduct np : allNP){
+            ids.add(np.getId());
+            coconutIds.add(np.coconut_id);
+            structures.add(np.unique_smiles);
+            bits.add(type.storedBits(np));
+        }
+
+        SubstructureScreeningIndex newIndex = new SubstructureScreeningIndex(type, ids, coconutIds, structures, bits);
+
+        this.index = newIndex;
+        if(type == FingerprintType.PUBCHEM){
+            refreshBitCounts();
+        }
+
+        System.out.println("Substructure screening index built for "+newIndex.size()+" NPs in "+(System.nanoTime()-start)/1000000+" ms, "+newIndex.sizeInBytes()/1024+" kB");
+    }
+
+
+    /**
+     * To call when a stage recomputing the stored fingerprints is finished; does nothing if no screening was made yet
+     */
+    public void refreshIndexIfLoaded(){
+        if(index != null){
+            buildIndex();
+        }
+    }
+
+
+    public SubstructureScreeningIndex getIndex(){
+        SubstructureScreeningIndex currentIndex = index;
+        if(currentIndex == null){
+            buildIndex();
+            currentIndex = index;
+        }
+        return currentIndex;
+    }
+
+
+    /**
+     * Loads the PubChem bit counts computed by the FingerprintsCountsFiller; to call after each recount
+     */
+    public void refreshBitCounts(){
+        int[] counts = new int[FingerprintType.PUBCHEM.getLength()];
+        boolean any = false;
+        for(PubFingerprintsCounts bitCount : pubFingerprintsCountsRepository.findAll()){
+            if(bitCount.id != null && bitCount.count != null && bitCount.id >= 0 && bitCount.id < counts.length){
+                counts[bitCount.id] = bitCount.count;
+                any = true;
+            }
+        }
+        pubchemBitCounts = any ? counts : new int[0];
+    }
+
+
+    /**
+     * Frequencies used to order the query bits: the PubFingerprintsCounts for PubChem fingerprints when they exist,
+     * otherwise the sizes of the bit sets of the index
+     */
+    private int[] bitFrequencies(SubstructureScreeningIndex screenedIndex){
+        if(screenedIndex.getFingerprintType() == FingerprintType.PUBCHEM){
+            if(pubchemBitCounts == null){
+                refreshBitCounts();
+            }
+            if(pubchemBitCounts.length > 0){
+                return pubchemBitCounts;
+            }
+        }
+        return screenedIndex.getBitFrequencies();
+    }
+
+
+    /**
+     * Ordinals, in the given index, of the NPs that may contain the query; null if the query can not be fingerprinted.
+     * The result can hold a few NPs missing some query bits, they have to be verified anyway.
+     */
+    public CompressedBitmap screen(IAtomContainer query, SubstructureScreeningIndex screenedIndex){
+        BitSet queryBits = screeningBits(query, screenedIndex.getFingerprintType());
+        if(queryBits == null){
+            return null;
+        }
+        return screenedIndex.screen(queryBits, bitFrequencies(screenedIndex), verifyDirectlyBelow);
+    }
+
+
+    /**
+     * coconut_ids of the NPs whose fingerprint has all the bits of the query given as SMILES
+     */
+    public List<String> screenCoconutIds(String smiles){
+        SubstructureScreeningIndex screenedIndex = getIndex();
+
+        List<String> coconutIds = new ArrayList<>();
+        try {
+            BitSet queryBits = screeningBits(QueryMoleculeParser.parse(smiles), screenedIndex.getFingerprintType());
+            if(queryBits != null) {
+                for (int ordinal : screenedIndex.screen(queryBits, bitFrequencies(screenedIndex), 0).toArray()) {
+                    coconutIds.add(screenedIndex.getCoconutId(ordinal));
+                }
+            }
+        } catch (CDKException | IllegalArgumentException e) {
+            System.out.println("Could not parse query "+smiles+": "+e.getMessage());
+        }
+        return coconutIds;
+    }
+
+
+    /**
+     * Same result as uniqueNaturalProductRepository.findAllPubchemBitsSet, without its scan of the pubchemBits of
+     * every document: the query bits are intersected in memory rarest first, only the remaining candidates are read
+     * from Mongo and the bits the screening did not get to are checked on them
+     */
+    public List<UniqueNaturalProduct> findAllPubchemBitsSet(byte[] querybits){
+        SubstructureScreeningIndex screenedIndex = getIndex();
+        if(screenedIndex.getFingerprintType() != FingerprintType.PUBCHEM){
+            return uniqueNaturalProductRepository.findAllPubchemBitsSet(querybits);
+        }
+
+        // same bit numbering as the pubchemBits, which are stored with BitSet.toByteArray()
+        BitSet queryBits = BitSet.valueOf(querybits);
+
+        List<String> ids = new ArrayList<>();
+        for(int ordinal : screenedIndex.screen(queryBits, bitFrequencies(screenedIndex), verifyDirectlyBelow).toArray()){
+            ids.add(screenedIndex.getUniqueNaturalProductId(ordinal));
+        }
+
+        List<UniqueNaturalProduct> result = new ArrayList<>();
+        for(UniqueNaturalProduct np : uniqueNaturalProductRepository.findAllById(ids)){
+            BitSet missing = (BitSet) queryBits.clone();
+            missing.andNot(PackedFingerprintMatrix.toBitSet(np.getPubchemFingerprint()));
+            if(missing.isEmpty()){
+                result.add(np);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Bits of the query that every molecule containing it has too. The fingerprints count the hydrogens (e.g. the
+     * PubChem keys ">= 4 H" or "C(~C)(~H)"), but a molecule containing the query can have substituents in place
+     * of them, as hexachlorobenzene has for benzene: only the bits also set for the heavy-atom graph of the query,
+     * without any hydrogen, are kept. Null if the query can not be fingerprinted.
+     */
+    BitSet screeningBits(IAtomContainer query, FingerprintType type){
+        BitSet bits = fingerprint(query, type);
+        if(bits == null){
+            return null;
+        }
+
+        IAtomContainer heavyAtoms;
+        try {
+            heavyAtoms = AtomContainerManipulator.suppressHydrogens(query.clone());
+        } catch (CloneNotSupportedException e) {
+            return new BitSet();
+        }
+        for(IAtom atom : heavyAtoms.atoms()){
+            atom.setImplicitHydrogenCount(0);
+        }
+        BitSet heavyAtomBits = fingerprint(heavyAtoms, type);
+        if(heavyAtomBits == null){
+            // no bit can be trusted, every molecule is a candidate
+            return new BitSet();
+        }
+        bits.and(heavyAtomBits);
+        return bits;
+    }
+
+
+    private BitSet fingerprint(IAtomContainer query, FingerprintType type){
+        try {
+            return fingerprinters.get().computeIfAbsent(type, FingerprintType::newFingerprinter).getBitFingerprint(query).asBitSet();
+        } catch (CDKException | IllegalArgumentException | UnsupportedOperationException e) {
+            System.out.println("Could not fingerprint query: "+e.getMessage());
+            return null;
+        }
+    }
+
+
+    public FingerprintType getFingerprintType() {
+        return fingerprintType;
+    }
+
+    /**
+     * Takes effect at the next buildIndex()
+     */
+    public void setFingerprintType(FingerprintType fingerprintType) {
+        this.fingerprintType = fingerprintType;
+    }
+
+    public int getVerifyDirectlyBelow() {
+        return verifyDirectlyBelow;
+    }
+
+    public void setVerifyDirectlyBelow(int verifyDirectlyBelow) {
+        this.verifyDirectlyBelow = verifyDirectlyBelow;
+    }
+}
@@ -0,0 +1,270 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.isomorphism.DfPattern;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Exact substructure search: the candidates of the SubstructureScreeningService are verified with a CDK DfPattern,
+ * in parallel. The query is parsed and perceived once; each worker thread compiles its own pattern from it.
+ * Candidate molecules are parsed from their unique SMILES once and kept in a cache with soft values, so repeated
+ * searches verify pre-parsed molecules. The search stops as soon as the hit limit or the time budget is reached,
+ * and the hits are handed to the caller as they are found.
+ */
+@Service
+public class SubstructureSearchService {
+
+    @Autowired
+    SubstructureScreeningService substructureScreeningService;
+
+
+    private static final Aromaticity AROMATICITY = new Aromaticity(ElectronDonation.daylight(), Cycles.or(Cycles.all(), Cycles.all(6)));
+
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    //created on first use, with the numberOfThreads configured by then
+    private ExecutorService verificationPool;
+
+    private int maxHits = 1000;
+
+    private long timeBudgetMillis = 30000;
+
+    //parsed candidates of the current screening index, by ordinal
+    private volatile SubstructureScreeningIndex cachedIndex;
+
+    private volatile Cache<Integer, IAtomContainer> molecules;
+
+    private long maxCachedMolecules = 500000;
+
+
+
+    /**
+     * Calls hitConsumer with the coconut_id of each NP containing the query given as SMILES, from the verification
+     * threads but never concurrently; returns the number of hits
+     */
+    public int search(String smiles, Consumer<String> hitConsumer){
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+
+        IAtomContainer query;
+        try {
+            query = QueryMoleculeParser.parse(smiles);
+        } catch (CDKException | IllegalArgumentException e) {
+            System.out.println("Could not parse query "+smiles+": "+e.getMessage());
+            return 0;
+        }
+
+        SubstructureScreeningIndex index = substructureScreeningService.getIndex();
+        Cache<Integer, IAtomContainer> parsedMolecules = moleculesOf(index);
+
+        CompressedBitmap screened;
+        try {
+            // the fingerprinter perceives the query, the pattern is compiled from an untouched copy
+            screened = substructureScreeningService.screen(query.clone(), index);
+        } catch (CloneNotSupportedException e) {
+            screened = null;
+        }
+        if(screened == null){
+            return 0;
+        }
+        int[] candidates = screened.toArray();
+
+        try {
+            Cycles.markRingAtomsAndBonds(query);
+            AROMATICITY.apply(query);
+        } catch (CDKException e) {
+            System.out.println("Could not perceive aromaticity of query "+smiles+": "+e.getMessage());
+            return 0;
+        }
+        IAtomContainer compiledQuery = query;
+
+        AtomicInteger cursor = new AtomicInteger();
+        AtomicInteger hits = new AtomicInteger();
+        AtomicInteger verified = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Object consumerLock = new Object();
+
+        // workers pull small slices of candidates, so that a thread stuck on large molecules does not hold the others back
+        int sliceSize = 64;
+        List<Callable<Void>> workers = new ArrayList<>();
+        for(int t = 0; t < numberOfThreads; t++){
+            workers.add(() -> {
+                DfPattern pattern = DfPattern.findSubstructure(compiledQuery);
+                SmilesParser parser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+                while(!stop.get()){
+                    int from = cursor.getAndAdd(sliceSize);
+                    if(from >= candidates.length){
+                        break;
+                    }
+                    for(int c = from; c < Math.min(from + sliceSize, candidates.length) && !stop.get(); c++){
+                        if(System.nanoTime() > deadline){
+                            stop.set(true);
+                            break;
+                        }
+                        IAtomContainer molecule = molecule(index, parsedMolecules, candidates[c], parser);
+                        verified.incrementAndGet();
+                        if(molecule == null || !pattern.matches(molecule)){
+                            continue;
+                        }
+                        if(hits.incrementAndGet() > maxHits){
+                            stop.set(true);
+                            break;
+                        }
+                        synchronized (consumerLock){
+                            hitConsumer.accept(index.getCoconutId(candidates[c]));
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        try {
+            verificationPool().invokeAll(workers);
+        } catch (InterruptedException e) {
+            stop.set(true);
+            System.out.println("Interrupted substructure search");
+        }
+
+        int found = Math.min(hits.get(), maxHits);
+        System.out.println("Substructure search: "+candidates.length+" candidates after screening, "+verified.get()+" verified, "+found+" hits in "+(System.nanoTime()-start)/1000000+" ms"+(stop.get() ? " (stopped at the hit limit or time budget)" : ""));
+        return found;
+    }
+
+
+    /**
+     * Collects the hits of search() in a list, in the order they were found
+     */
+    public List<String> search(String smiles){
+        List<String> hits = new ArrayList<>();
+        search(smiles, hits::add);
+        return hits;
+    }
+
+
+    /**
+     * Parses every molecule of the screening index in advance, so that the first searches do not pay for it
+     */
+    public void preparseAll(){
+        SubstructureScreeningIndex index = substructureScreeningService.getIndex();
+        Cache<Integer, IAtomContainer> parsedMolecules = moleculesOf(index);
+        List<Callable<Void>> workers = new ArrayList<>();
+        AtomicInteger cursor = new AtomicInteger();
+        for(int t = 0; t < numberOfThreads; t++){
+            workers.add(() -> {
+                SmilesParser parser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+                for(int ordinal = cursor.getAndIncrement(); ordinal < index.size(); ordinal = cursor.getAndIncrement()){
+                    molecule(index, parsedMolecules, ordinal, parser);
+                }
+                return null;
+            });
+        }
+        try {
+            verificationPool().invokeAll(workers);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted parsing of the NPs for substructure search");
+        }
+        System.out.println("NPs parsed for substructure search: "+parsedMolecules.size());
+    }
+
+
+    private synchronized ExecutorService verificationPool(){
+        if(verificationPool == null){
+            verificationPool = Executors.newFixedThreadPool(numberOfThreads);
+        }
+        return verificationPool;
+    }
+
+
+    @PreDestroy
+    public synchronized void shutdown(){
+        if(verificationPool != null){
+            verificationPool.shutdownNow();
+        }
+    }
+
+
+    private synchronized Cache<Integer, IAtomContainer> moleculesOf(SubstructureScreeningIndex index){
+        if(cachedIndex != index){
+            // ordinals change meaning with a new index
+            molecules = CacheBuilder.newBuilder().softValues().maximumSize(maxCachedMolecules).build();
+            cachedIndex = index;
+        }
+        return molecules;
+    }
+
+
+    private IAtomContainer molecule(SubstructureScreeningIndex index, Cache<Integer, IAtomContainer> parsedMolecules, int ordinal, SmilesParser parser){
+        IAtomContainer molecule = parsedMolecules.getIfPresent(ordinal);
+        if(molecule == null && index.getStructure(ordinal) != null){
+            try {
+                molecule = parser.parseSmiles(index.getStructure(ordinal));
+                // ring and aromaticity flags are set once here, cached molecules are only read by the patterns
+                Cycles.markRingAtomsAndBonds(molecule);
+                AROMATICITY.apply(molecule);
+                parsedMolecules.put(ordinal, molecule);
+            } catch (CDKException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return molecule;
+    }
+
+
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Takes effect if set before the first search
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public int getMaxHits() {
+        return maxHits;
+    }
+
+    public void setMaxHits(int maxHits) {
+        this.maxHits = maxHits;
+    }
+
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public long getMaxCachedMolecules() {
+        return maxCachedMolecules;
+    }
+
+    /**
+     * Takes effect when the screening index is next replaced
+     */
+    public void setMaxCachedMolecules(long maxCachedMolecules) {
+        this.maxCachedMolecules = maxCachedMolecules;
+    }
+}
@@ -0,0 +1,140 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+/**
+ * All-vs-all Tanimoto over a PackedFingerprintMatrix.
+ * The upper triangle of the pair space is cut in (row block, column block) tiles of blockSize x blockSize
+ * molecules, so that both blocks of a tile stay in cache while they are compared.
+ * Tiles are independent and deterministic for a given matrix; only pairs with tanimoto >= threshold are emitted.
+ */
+public class TanimotoTileEngine {
+
+    private final PackedFingerprintMatrix matrix;
+
+    private final int blockSize;
+
+    private final double threshold;
+
+
+    public TanimotoTileEngine(PackedFingerprintMatrix matrix, int blockSize, double threshold){
+        this.matrix = matrix;
+        this.blockSize = blockSize;
+        this.threshold = threshold;
+    }
+
+
+    public int getNumberOfBlocks(){
+        return (matrix.size() + blockSize - 1) / blockSize;
+    }
+
+
+    /**
+     * Whether any pair of the tile can reach the threshold. Tiles are visited row block by row block,
+     * with colBlock >= rowBlock; when the matrix is sorted by cardinality the columns further right only have
+     * more bits set, so the first unreachable tile of a row block ends that row block.
+     */
+    public boolean canReachThreshold(int rowBlock, int colBlock){
+        if(!matrix.isSortedByCardinality()){
+            return true;
+        }
+        int lastRow = Math.min((rowBlock + 1) * blockSize, matrix.size()) - 1;
+        int firstCol = colBlock * blockSize;
+        return matrix.getCardinality(firstCol) <= PackedFingerprintMatrix.maximalCardinality(matrix.getCardinality(lastRow), threshold);
+    }
+
+
+    public void computeTile(int rowBlock, int colBlock, SimilarityPairCollector collector){
+        int rowStart = rowBlock * blockSize;
+        int rowEnd = Math.min(rowStart + blockSize, matrix.size());
+        int colStart = colBlock * blockSize;
+        int colEnd = Math.min(colStart + blockSize, matrix.size());
+
+        for(int i = rowStart; i < rowEnd; i++){
+            // on the diagonal tile only the pairs i < j are computed
+            int jStart = (rowBlock == colBlock) ? i + 1 : colStart;
+            int jEnd = colEnd;
+            if(matrix.isSortedByCardinality()){
+                if(matrix.getCardinality(i) == 0){
+                    continue;
+                }
+                // columns have at least as many bits as row i, only the upper popcount bound can prune them
+                jEnd = Math.min(colEnd, matrix.firstRowWithCardinality(PackedFingerprintMatrix.maximalCardinality(matrix.getCardinality(i), threshold) + 1));
+            }
+            for(int j = jStart; j < jEnd; j++){
+                double tanimoto = matrix.tanimoto(i, j);
+                if(tanimoto >= threshold){
+                    collector.collect(i, j, tanimoto);
+                }
+            }
+        }
+        collector.tileFinished(rowBlock, colBlock);
+    }
+
+
+    /**
+     * Compares one query fingerprint, packed like the rows of the matrix, with the whole matrix.
+     * When the matrix is sorted by cardinality only the popcount buckets that can reach the threshold are scanned.
+     */
+    public void search(long[] query, int queryCardinality, SimilarityHitConsumer consumer){
+        int from = 0;
+        int to = matrix.size();
+        if(matrix.isSortedByCardinality()){
+            from = matrix.firstRowWithCardinality(PackedFingerprintMatrix.minimalCardinality(queryCardinality, threshold));
+            to = matrix.firstRowWithCardinality(PackedFingerprintMatrix.maximalCardinality(queryCardinality, threshold) + 1);
+        }
+        for(int j = from; j < to; j++){
+            double tanimoto = matrix.tanimoto(query, queryCardinality, j);
+            if(tanimoto >= threshold){
+                consumer.accept(j, tanimoto);
+            }
+        }
+    }
+
+
+    /**
+     * Fills the heap with the most similar rows of a row of the matrix (the row itself excluded).
+     * Rows are visited from the query's own popcount bucket outward, in decreasing order of their popcount bound,
+     * so the scan stops as soon as the bound of the next row can not beat the current k-th neighbour.
+     * Needs the matrix sorted by cardinality.
+     */
+    public void nearestNeighbours(int row, BoundedNeighbourHeap heap){
+        heap.clear();
+        int a = matrix.getCardinality(row);
+        if(a == 0){
+            return;
+        }
+
+        int down = row - 1;
+        int up = row + 1;
+        while(down >= 0 || up < matrix.size()){
+            double boundDown = down >= 0 ? popcountBound(a, matrix.getCardinality(down)) : -1.0;
+            double boundUp = up < matrix.size() ? popcountBound(a, matrix.getCardinality(up)) : -1.0;
+
+            int j;
+            double bound;
+            if(boundUp >= boundDown){
+                j = up++;
+                bound = boundUp;
+            }else{
+                j = down--;
+                bound = boundDown;
+            }
+
+            if(bound < threshold || (heap.isFull() && bound <= heap.minScore())){
+                break;
+            }
+
+            double tanimoto = matrix.tanimoto(row, j);
+            if(tanimoto >= threshold){
+                heap.offer(j, tanimoto);
+            }
+        }
+    }
+
+
+    private static double popcountBound(int a, int b){
+        if(a == 0 || b == 0){
+            return 0.0;
+        }
+        return a < b ? (double) a / b : (double) b / a;
+    }
+}
@@ -0,0 +1,147 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class CSVRecordSplitterTest {
+
+    private File write(String suffix, byte[] content) throws IOException {
+        File file = File.createTempFile("splitter", suffix);
+        file.deleteOnExit();
+        try(OutputStream out = suffix.endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)){
+            out.write(content);
+        }
+        return file;
+    }
+
+    private File write(String content) throws IOException {
+        return write(".csv", content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> records(CSVRecordSplitter splitter, int maxRecords) throws IOException {
+        List<String> records = new ArrayList<>();
+        try {
+            for(CSVRecordSplitter.Chunk chunk = splitter.nextChunk(maxRecords); chunk != null; chunk = splitter.nextChunk(maxRecords)){
+                assertTrue(chunk.size() <= maxRecords);
+                for(int i = 0; i < chunk.size(); i++){
+                    records.add(chunk.record(i));
+                }
+            }
+        } finally {
+            splitter.close();
+        }
+        return records;
+    }
+
+    private List<String> records(File file, boolean quoted, int windowBytes) throws IOException {
+        return records(new CSVRecordSplitter(file, ',', quoted, windowBytes), 200);
+    }
+
+
+    @Test
+    public void recordsEndAtLineEnds() throws IOException {
+        File file = write("id,smiles\r\nCNP1,CCO\nCNP2,CCN\n");
+        assertEquals(Arrays.asList("id,smiles", "CNP1,CCO", "CNP2,CCN"), records(new CSVRecordSplitter(file, ',', true), 200));
+    }
+
+
+    @Test
+    public void chunksHoldAtMostMaxRecords() throws IOException {
+        File file = write("a\nb\nc\nd\ne\n");
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), records(new CSVRecordSplitter(file, ',', true), 2));
+    }
+
+
+    @Test
+    public void quotedLineEndDoesNotEndTheRecord() throws IOException {
+        File file = write("1,\"two\nlines\",x\n2,y\n");
+        assertEquals(Arrays.asList("1,\"two\nlines\",x", "2,y"), records(new CSVRecordSplitter(file, ',', true), 200));
+        // without quoting, every line end ends a record
+        assertEquals(Arrays.asList("1,\"two", "lines\",x", "2,y"), records(new CSVRecordSplitter(file, ',', false), 200));
+    }
+
+
+    @Test
+    public void doubledQuoteDoesNotCloseTheField() throws IOException {
+        File file = write("\"a\"\"\nb\",c\nd\n");
+        assertEquals(Arrays.asList("\"a\"\"\nb\",c", "d"), records(new CSVRecordSplitter(file, ',', true), 200));
+    }
+
+
+    @Test
+    public void quoteAtTheEndOfAWindow() throws IOException {
+        // the first window is 8 bytes and ends with the first quote of "", which must not be taken as the closing one
+        String first = "abc,\"de\"\"\nf\",g";
+        File file = write(first + "\nh\n");
+        assertEquals('"', first.charAt(7));
+        assertEquals('"', first.charAt(8));
+
+        List<String> records = records(file, true, 8);
+        assertEquals(Arrays.asList(first, "h"), records);
+        assertArrayEquals(new String[]{"abc", "de\"\nf", "g"}, new CSVTokenizer(',', true).tokenize(records.get(0)));
+    }
+
+
+    @Test
+    public void recordsCrossingSmallWindows() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < 50; i++){
+            String record = i % 3 == 0 ? "CNP" + i + ",\"x\ny\"\"" + i + "\",z" : "CNP" + i + ",C" + i;
+            expected.add(record);
+            content.append(record).append('\n');
+        }
+        File file = write(content.toString());
+        for(int windowBytes : new int[]{1, 5, 7, 16, 64}){
+            assertEquals("window of " + windowBytes + " bytes", expected, records(file, true, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void byteOrderMarkIsSkipped() throws IOException {
+        File file = write("\uFEFFid,smiles\nCNP1,CCO\n");
+        assertEquals(Arrays.asList("id,smiles", "CNP1,CCO"), records(new CSVRecordSplitter(file, ',', true), 200));
+    }
+
+
+    @Test
+    public void lastRecordWithoutLineEnd() throws IOException {
+        File file = write("a,b\nc,d");
+        assertEquals(Arrays.asList("a,b", "c,d"), records(new CSVRecordSplitter(file, ',', true), 200));
+        assertEquals(Arrays.asList("a,b", "c,d"), records(file, true, 3));
+    }
+
+
+    @Test
+    public void shortRowIsARecordOfItsOwn() throws IOException {
+        File file = write("id,smiles,name\nCNP1\nCNP2,CCO,ethanol\n");
+        List<String> records = records(new CSVRecordSplitter(file, ',', true), 200);
+        assertEquals(Arrays.asList("id,smiles,name", "CNP1", "CNP2,CCO,ethanol"), records);
+        assertEquals(1, new CSVTokenizer(',', true).tokenize(records.get(1)).length);
+    }
+
+
+    @Test
+    public void emptyFile() throws IOException {
+        assertEquals(new ArrayList<String>(), records(new CSVRecordSplitter(write(""), ',', true), 200));
+    }
+
+
+    @Test
+    public void compressedFile() throws IOException {
+        File file = write(".csv.gz", "\uFEFFid,name\n1,\"a\nb\"\n2,c".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("id,name", "1,\"a\nb\"", "2,c"), records(new CSVRecordSplitter(file, ',', true), 200));
+    }
+}
@@ -0,0 +1,68 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CSVTokenizerTest {
+
+    private final CSVTokenizer csv = new CSVTokenizer(',', true);
+
+    private final CSVTokenizer tsv = new CSVTokenizer('\t', false);
+
+
+    @Test
+    public void plainFields(){
+        assertArrayEquals(new String[]{"CNP1", "c1ccccc1", "benzene"}, csv.tokenize("CNP1,c1ccccc1,benzene"));
+        assertArrayEquals(new String[]{"CNP1", "C(=O)O", "acid, formic"}, tsv.tokenize("CNP1\tC(=O)O\tacid, formic"));
+    }
+
+
+    @Test
+    public void quotedFieldKeepsDelimitersAndLineEnds(){
+        assertArrayEquals(new String[]{"1", "a, b\nc", "d"}, csv.tokenize("1,\"a, b\nc\",d"));
+    }
+
+
+    @Test
+    public void doubledQuotesStandForOne(){
+        assertArrayEquals(new String[]{"say \"hi\"", ""}, csv.tokenize("\"say \"\"hi\"\"\","));
+        assertArrayEquals(new String[]{"\""}, csv.tokenize("\"\"\"\""));
+    }
+
+
+    @Test
+    public void quoteInsideAFieldIsAnOrdinaryCharacter(){
+        assertArrayEquals(new String[]{"5\" tall", "x"}, csv.tokenize("5\" tall,x"));
+        // without quoting, quotes are never special
+        assertArrayEquals(new String[]{"\"a", "b\""}, tsv.tokenize("\"a\tb\""));
+    }
+
+
+    @Test
+    public void textAfterAClosingQuoteIsKept(){
+        assertArrayEquals(new String[]{"ab c", "d"}, csv.tokenize("\"ab\" c,d"));
+    }
+
+
+    @Test
+    public void emptyFieldsAreKept(){
+        assertArrayEquals(new String[]{"a", "", "", ""}, csv.tokenize("a,,,"));
+        assertArrayEquals(new String[]{""}, csv.tokenize(""));
+        assertArrayEquals(new String[]{"", ""}, csv.tokenize("\"\","));
+    }
+
+
+    @Test
+    public void shortRowHasFewerFields(){
+        // the header has three columns, the reader has to check the length before reading a column
+        assertEquals(3, csv.tokenize("id,smiles,name").length);
+        assertArrayEquals(new String[]{"CNP1"}, csv.tokenize("CNP1"));
+    }
+
+
+    @Test
+    public void unclosedQuoteRunsToTheEndOfTheRecord(){
+        assertArrayEquals(new String[]{"a", "b,c"}, csv.tokenize("a,\"b,c"));
+    }
+}
@@ -0,0 +1,193 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FileDigestTest {
+
+    private File write(String suffix, String content) throws IOException {
+        File file = File.createTempFile("digest", suffix);
+        file.deleteOnExit();
+        try(OutputStream out = suffix.endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)){
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private String expected(File file) throws IOException {
+        return Files.asByteSource(file).hash(Hashing.sha256()).toString();
+    }
+
+    private String csv(Random random, int records){
+        StringBuilder content = new StringBuilder("id,smiles,name\n");
+        for(int i = 0; i < records; i++){
+            content.append("CNP").append(i).append(",C").append(Integer.toString(random.nextInt(1 << 20), 36))
+                    .append(",\"name\n").append(random.nextInt()).append("\"\n");
+        }
+        return content.toString();
+    }
+
+    private String sdf(Random random, int records){
+        StringBuilder content = new StringBuilder();
+        for(int i = 0; i < records; i++){
+            content.append("CNP").append(i).append("\n  CDK\n\nM  END\n");
+            // some records fill several windows, so that the window is doubled
+            int comments = i % 7 == 0 ? 40 : 1;
+            for(int c = 0; c < comments; c++){
+                content.append("> <comment>\n").append(random.nextLong()).append("\n\n");
+            }
+            content.append("$$$$\n");
+        }
+        return content.toString();
+    }
+
+
+    @Test
+    public void csvFileReadThroughOverlappingWindows() throws IOException {
+        File file = write(".csv", csv(new Random(1), 500));
+        for(int windowBytes : new int[]{16, 100, 1000}){
+            FileDigest digest = FileDigest.start(file);
+            try(CSVRecordSplitter splitter = new CSVRecordSplitter(file, ',', true, windowBytes)){
+                while(splitter.nextChunk(7) != null){
+                    // every window is mapped again from the start of the record crossing its end
+                }
+            }
+            assertEquals(expected(file), digest.finish());
+        }
+    }
+
+
+    @Test
+    public void sdfFileReadThroughOverlappingWindows() throws IOException {
+        File file = write(".sdf", sdf(new Random(2), 200));
+        for(int windowBytes : new int[]{8, 100, 1000}){
+            FileDigest digest = FileDigest.start(file);
+            try(SDFRecordSplitter splitter = new SDFRecordSplitter(file, windowBytes)){
+                while(splitter.nextRecord() != null){
+                    // every window is mapped again from the start of the record crossing its end
+                }
+            }
+            assertEquals(expected(file), digest.finish());
+        }
+    }
+
+
+    @Test
+    public void readingStoppedEarlyIsCompletedByFinish() throws IOException {
+        File file = write(".sdf", sdf(new Random(3), 200));
+        FileDigest digest = FileDigest.start(file);
+        try(SDFRecordSplitter splitter = new SDFRecordSplitter(file, 100)){
+            for(int i = 0; i < 10; i++){
+                assertNotNull(splitter.nextRecord());
+            }
+        }
+        assertEquals(expected(file), digest.finish());
+    }
+
+
+    @Test
+    public void compressedFileReadThroughCompressedInput() throws IOException {
+        File file = write(".csv.gz", csv(new Random(4), 20000));
+        FileDigest digest = FileDigest.start(file);
+        try(InputStream in = CompressedInput.open(file)){
+            byte[] buffer = new byte[4096];
+            while(in.read(buffer) != -1){
+                // the raw, compressed bytes are hashed by the decompressing thread
+            }
+        }
+        assertEquals(expected(file), digest.finish());
+    }
+
+
+    @Test
+    public void compressedFileReadThroughTheSplitters() throws IOException {
+        File csv = write(".csv.gz", csv(new Random(5), 2000));
+        FileDigest digest = FileDigest.start(csv);
+        try(CSVRecordSplitter splitter = new CSVRecordSplitter(csv, ',', true)){
+            while(splitter.nextChunk(200) != null){
+                // read to the end
+            }
+        }
+        assertEquals(expected(csv), digest.finish());
+
+        File sdf = write(".sdf.gz", sdf(new Random(6), 200));
+        digest = FileDigest.start(sdf);
+        try(SDFRecordSplitter splitter = new SDFRecordSplitter(sdf)){
+            while(splitter.nextRecord() != null){
+                // read to the end
+            }
+        }
+        assertEquals(expected(sdf), digest.finish());
+    }
+
+
+    @Test
+    public void fileOpenedTwiceIsHashedOnce() throws IOException {
+        File file = write(".csv", csv(new Random(7), 300));
+        FileDigest digest = FileDigest.start(file);
+        for(int i = 0; i < 2; i++){
+            try(CSVRecordSplitter splitter = new CSVRecordSplitter(file, ',', true, 64)){
+                while(splitter.nextChunk(10) != null){
+                    // read to the end
+                }
+            }
+        }
+        assertEquals(expected(file), digest.finish());
+    }
+
+
+    @Test
+    public void overlappingUpdatesAreHashedOnce() throws IOException {
+        File file = write(".csv", csv(new Random(8), 50));
+        byte[] bytes = Files.toByteArray(file);
+        FileDigest digest = FileDigest.start(file);
+        digest.update(0, ByteBuffer.wrap(bytes, 0, 100));
+        digest.update(40, ByteBuffer.wrap(bytes, 40, 100));
+        digest.update(0, ByteBuffer.wrap(bytes, 0, 10));
+        digest.update(140, ByteBuffer.wrap(bytes, 140, bytes.length - 140));
+        assertEquals(expected(file), digest.finish());
+    }
+
+
+    @Test
+    public void skippedBytesFallBackOnHashingTheWholeFile() throws IOException {
+        File file = write(".csv", csv(new Random(9), 50));
+        byte[] bytes = Files.toByteArray(file);
+        FileDigest digest = FileDigest.start(file);
+        digest.update(0, ByteBuffer.wrap(bytes, 0, 100));
+        // bytes 100 to 119 are never seen
+        digest.update(120, ByteBuffer.wrap(bytes, 120, bytes.length - 120));
+        digest.update(100, ByteBuffer.wrap(bytes, 100, 20));
+        assertEquals(expected(file), digest.finish());
+    }
+
+
+    @Test
+    public void unreadFileIsHashedByFinish() throws IOException {
+        File file = write(".sdf", sdf(new Random(10), 20));
+        assertEquals(expected(file), FileDigest.start(file).finish());
+    }
+
+
+    @Test
+    public void finishedDigestIsNoLongerFed() throws IOException {
+        File file = write(".csv", csv(new Random(11), 20));
+        FileDigest digest = FileDigest.start(file);
+        String hash = digest.finish();
+        assertNull(FileDigest.of(file));
+        assertEquals(expected(file), hash);
+    }
+}
@@ -0,0 +1,149 @@
+package de.unijena.cheminf.npopensourcecollector.readers;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SDFRecordSplitterTest {
+
+    private static final String FIRST = "CNP1\n  CDK\n\n  1  0  0  0  0  0  0  0  0  0999 V2000\nM  END\n> <id>\nCNP1\n\n$$$$\n";
+
+    private static final String SECOND = "CNP2\n  CDK\n\n  2  1  0  0  0  0  0  0  0  0999 V2000\nM  END\n$$$$\n";
+
+
+    private File write(String suffix, String content) throws IOException {
+        File file = File.createTempFile("splitter", suffix);
+        file.deleteOnExit();
+        try(OutputStream out = suffix.endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)){
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private File write(String content) throws IOException {
+        return write(".sdf", content);
+    }
+
+    private List<String> records(SDFRecordSplitter splitter) throws IOException {
+        List<String> records = new ArrayList<>();
+        try {
+            for(String record = splitter.nextRecord(); record != null; record = splitter.nextRecord()){
+                records.add(record);
+            }
+        } finally {
+            splitter.close();
+        }
+        return records;
+    }
+
+    private List<String> records(File file, int windowBytes) throws IOException {
+        return records(new SDFRecordSplitter(file, windowBytes));
+    }
+
+
+    @Test
+    public void recordsEndAfterTheTerminatorLine() throws IOException {
+        File file = write(FIRST + SECOND);
+        assertEquals(Arrays.asList(FIRST, SECOND), records(new SDFRecordSplitter(file)));
+    }
+
+
+    @Test
+    public void terminatorNeedsToStartTheLine() throws IOException {
+        String record = "CNP1\nname with $$$$ inside\nM  END\n$$$$\r\n";
+        File file = write(record + SECOND);
+        assertEquals(Arrays.asList(record, SECOND), records(new SDFRecordSplitter(file)));
+    }
+
+
+    @Test
+    public void recordCrossingTheWindowIsMappedAgainFromItsStart() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < 20; i++){
+            String record = (i % 2 == 0 ? FIRST : SECOND).replace("CNP", "CNP" + i + "_");
+            content.append(record);
+            expected.add(record);
+        }
+        File file = write(content.toString());
+        // windows of every size up to the file, so that a window ends at every byte of a record
+        for(int windowBytes = FIRST.length(); windowBytes <= content.length() + 1; windowBytes++){
+            assertEquals("window of " + windowBytes + " bytes", expected, records(file, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void windowIsDoubledWhenOneRecordFillsIt() throws IOException {
+        StringBuilder large = new StringBuilder("CNP1\n");
+        for(int i = 0; i < 200; i++){
+            large.append("> <comment>\nline ").append(i).append('\n');
+        }
+        large.append("$$$$\n");
+        File file = write(SECOND + large + SECOND);
+        for(int windowBytes = 1; windowBytes <= 64; windowBytes++){
+            assertEquals(Arrays.asList(SECOND, large.toString(), SECOND), records(file, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void terminatorAtTheEndOfTheFileWithoutLineEnd() throws IOException {
+        String last = SECOND.substring(0, SECOND.length() - 1);
+        File file = write(FIRST + last);
+        for(int windowBytes = 1; windowBytes <= FIRST.length() + last.length() + 1; windowBytes++){
+            assertEquals(Arrays.asList(FIRST, last), records(file, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void terminatorAtTheEndOfAWindowButNotOfTheFile() throws IOException {
+        // the first window ends just after "$$$$", the line end is in the next one
+        File file = write("A\n$$$$\nB\n$$$$\n");
+        assertEquals(Arrays.asList("A\n$$$$\n", "B\n$$$$\n"), records(file, 6));
+    }
+
+
+    @Test
+    public void blankTailIsNotARecord() throws IOException {
+        File file = write(FIRST + " \n\r\n\t\n");
+        for(int windowBytes = 1; windowBytes <= FIRST.length() + 6; windowBytes++){
+            assertEquals(Collections.singletonList(FIRST), records(file, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void textAfterTheLastTerminatorIsARecord() throws IOException {
+        String tail = "CNP3\nM  END\n";
+        File file = write(FIRST + tail);
+        for(int windowBytes = 1; windowBytes <= FIRST.length() + tail.length() + 1; windowBytes++){
+            assertEquals(Arrays.asList(FIRST, tail), records(file, windowBytes));
+        }
+    }
+
+
+    @Test
+    public void emptyFileHasNoRecord() throws IOException {
+        assertEquals(Collections.emptyList(), records(new SDFRecordSplitter(write(""))));
+    }
+
+
+    @Test
+    public void compressedFileIsCutLineByLine() throws IOException {
+        File file = write(".sdf.gz", FIRST + SECOND + "\n\n");
+        assertEquals(Arrays.asList(FIRST, SECOND), records(new SDFRecordSplitter(file)));
+    }
+}
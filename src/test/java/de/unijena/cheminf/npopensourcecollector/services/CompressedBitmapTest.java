@@ -0,0 +1,126 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedBitmapTest {
+
+    private CompressedBitmap build(BitSet ordinals){
+        CompressedBitmap.Builder builder = new CompressedBitmap.Builder();
+        ordinals.stream().forEach(builder::add);
+        return builder.build();
+    }
+
+    /**
+     * Random ordinals over three 65536 chunks, dense enough in the first for a bitmap and sparse in the others
+     */
+    private BitSet randomOrdinals(Random random, double dense, double sparse){
+        BitSet ordinals = new BitSet();
+        for(int i = 0; i < 3 * 65536; i++){
+            if(random.nextDouble() < (i < 65536 ? dense : sparse)){
+                ordinals.set(i);
+            }
+        }
+        // an isolated chunk far away
+        ordinals.set(40 * 65536 + 17);
+        return ordinals;
+    }
+
+    private void assertSame(BitSet expected, CompressedBitmap bitmap){
+        assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+        assertEquals(expected.cardinality(), bitmap.getCardinality());
+        assertEquals(expected.isEmpty(), bitmap.isEmpty());
+    }
+
+
+    @Test
+    public void buildKeepsTheOrdinals(){
+        Random random = new Random(1);
+        for(double dense : new double[]{0.01, 0.3, 0.9}){
+            BitSet ordinals = randomOrdinals(random, dense, 0.02);
+            CompressedBitmap bitmap = build(ordinals);
+            assertSame(ordinals, bitmap);
+            for(int i = 0; i < 41 * 65536; i += 7){
+                assertEquals(ordinals.get(i), bitmap.contains(i));
+            }
+        }
+    }
+
+
+    @Test
+    public void andIsTheIntersection(){
+        Random random = new Random(2);
+        double[] densities = {0.001, 0.05, 0.07, 0.5};
+        for(double x : densities){
+            for(double y : densities){
+                BitSet a = randomOrdinals(random, x, y);
+                BitSet b = randomOrdinals(random, y, x);
+                BitSet expected = (BitSet) a.clone();
+                expected.and(b);
+
+                assertSame(expected, build(a).and(build(b)));
+                assertSame(expected, build(b).and(build(a)));
+            }
+        }
+    }
+
+
+    @Test
+    public void arrayAndBitmapThreshold(){
+        // 4096 values are kept as an array, 4097 as a bitmap
+        for(int size : new int[]{4095, 4096, 4097, 4098}){
+            BitSet a = new BitSet();
+            BitSet b = new BitSet();
+            for(int i = 0; i < size; i++){
+                a.set(i * 2);
+                b.set(i * 2);
+                b.set(i * 2 + 1);
+            }
+            CompressedBitmap bitmapA = build(a);
+            CompressedBitmap bitmapB = build(b);
+            assertSame(a, bitmapA);
+            assertSame(a, bitmapA.and(bitmapB));
+            assertSame(a, bitmapB.and(bitmapA));
+            assertSame(b, bitmapB.and(bitmapB));
+        }
+    }
+
+
+    @Test
+    public void disjointAndEmpty(){
+        BitSet a = new BitSet();
+        a.set(0, 5000);
+        BitSet b = new BitSet();
+        b.set(5000, 10000);
+        b.set(70000);
+
+        assertSame(new BitSet(), build(a).and(build(b)));
+        assertSame(new BitSet(), build(a).and(CompressedBitmap.empty()));
+        assertSame(new BitSet(), CompressedBitmap.empty().and(build(b)));
+        assertSame(new BitSet(), new CompressedBitmap.Builder().build());
+        assertFalse(CompressedBitmap.empty().contains(0));
+    }
+
+
+    @Test
+    public void lastOrdinalOfAChunk(){
+        BitSet ordinals = new BitSet();
+        ordinals.set(65535);
+        ordinals.set(65536);
+        ordinals.set(200 * 65536 + 65535);
+        CompressedBitmap bitmap = build(ordinals);
+        assertSame(ordinals, bitmap);
+        assertTrue(bitmap.contains(200 * 65536 + 65535));
+        assertFalse(bitmap.contains(65534));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ordinalsMustIncrease(){
+        new CompressedBitmap.Builder().add(3).add(3);
+    }
+}
@@ -0,0 +1,81 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PackedFingerprintMatrixTest {
+
+    private static final int LENGTH = TestFingerprints.PUBCHEM_LENGTH;
+
+
+    private List<BitSet> randomFingerprints(Random random, int n){
+        List<BitSet> fingerprints = TestFingerprints.random(random, n, LENGTH, 0.3);
+        // an empty fingerprint and one with the last bit set
+        fingerprints.add(new BitSet());
+        BitSet last = new BitSet();
+        last.set(LENGTH - 1);
+        fingerprints.add(last);
+        return fingerprints;
+    }
+
+    private PackedFingerprintMatrix matrix(List<BitSet> fingerprints){
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(fingerprints.size(), LENGTH);
+        for(int k = 0; k < fingerprints.size(); k++){
+            matrix.setRow(k, "id" + k, "CNP" + k, fingerprints.get(k));
+        }
+        return matrix;
+    }
+
+
+    @Test
+    public void rowsKeepTheFingerprints(){
+        List<BitSet> fingerprints = randomFingerprints(new Random(1), 50);
+        PackedFingerprintMatrix matrix = matrix(fingerprints);
+
+        assertEquals(fingerprints.size(), matrix.size());
+        assertEquals(14, matrix.getWordsPerFingerprint());
+        for(int k = 0; k < fingerprints.size(); k++){
+            assertEquals(fingerprints.get(k), BitSet.valueOf(matrix.getRow(k)));
+            assertEquals(fingerprints.get(k).cardinality(), matrix.getCardinality(k));
+            assertEquals("id" + k, matrix.getUniqueNaturalProductId(k));
+            assertEquals("CNP" + k, matrix.getCoconutId(k));
+        }
+    }
+
+
+    @Test
+    public void tanimotoMatchesBitSets(){
+        List<BitSet> fingerprints = randomFingerprints(new Random(2), 60);
+        PackedFingerprintMatrix matrix = matrix(fingerprints);
+
+        for(int i = 0; i < fingerprints.size(); i++){
+            long[] query = matrix.pack(fingerprints.get(i));
+            assertArrayEquals(matrix.getRow(i), query);
+            for(int j = 0; j < fingerprints.size(); j++){
+                double expected = TestFingerprints.tanimoto(fingerprints.get(i), fingerprints.get(j));
+                assertEquals(expected, matrix.tanimoto(i, j), 1e-12);
+                assertEquals(expected, matrix.tanimoto(query, fingerprints.get(i).cardinality(), j), 1e-12);
+            }
+        }
+    }
+
+
+    @Test
+    public void missingFingerprintIsAnEmptyRow(){
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(2, LENGTH);
+        matrix.setRow(0, "id0", "CNP0", null);
+        matrix.setRow(1, "id1", "CNP1", PackedFingerprintMatrix.toBitSet(Arrays.asList(3, null, -1, 3, 880)));
+
+        assertEquals(0, matrix.getCardinality(0));
+        assertEquals(2, matrix.getCardinality(1));
+        assertEquals(0.0, matrix.tanimoto(0, 0), 0.0);
+        assertEquals(0.0, matrix.tanimoto(0, 1), 0.0);
+        assertEquals(1.0, matrix.tanimoto(1, 1), 0.0);
+    }
+}
@@ -0,0 +1,127 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class SimilarityGraphFileTest {
+
+    private Path temporaryFile() throws IOException {
+        File file = File.createTempFile("similarity", ".graph");
+        file.deleteOnExit();
+        return file.toPath();
+    }
+
+    private PackedFingerprintMatrix randomMatrix(Random random, int size){
+        // noisy copies of a few prototypes, so that the graph has edges
+        BitSet[] prototypes = new BitSet[10];
+        for(int p = 0; p < prototypes.length; p++){
+            prototypes[p] = TestFingerprints.random(random, 166, 0.25);
+        }
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(size, 166);
+        for(int row = 0; row < size; row++){
+            BitSet fingerprint = TestFingerprints.noisyCopy(random, prototypes[random.nextInt(prototypes.length)], 166, 0.1);
+            // one id without coconut_id and one that is not ASCII
+            String coconutId = row == 3 ? null : row == 5 ? "CNP\u00e9" + row : "CNP" + row;
+            matrix.setRow(row, "id" + row, coconutId, fingerprint);
+        }
+        matrix.sortByCardinality();
+        return matrix;
+    }
+
+
+    @Test
+    public void writtenGraphReadsBack() throws IOException {
+        PackedFingerprintMatrix matrix = randomMatrix(new Random(1), 300);
+        SimilarityGraph graph = SimilarityGraph.build(new TanimotoTileEngine(matrix, 32, 0.4), matrix.size(), new ForkJoinPool(4));
+        assertTrue(graph.numberOfEdges() > 0);
+
+        for(int scoreBits : new int[]{8, 16}){
+            Path path = temporaryFile();
+            SimilarityGraphFile.write(graph, matrix, path, scoreBits);
+            SimilarityGraphFile file = SimilarityGraphFile.open(path);
+
+            // quantisation error of the scores
+            double delta = scoreBits == 8 ? 0.5 / 255 + 1e-12 : 0.5 / 65535 + 1e-12;
+
+            assertEquals(scoreBits, file.getScoreBits());
+            assertEquals(graph.size(), file.size());
+            assertEquals(graph.numberOfEdges(), file.numberOfEdges());
+            for(int node = 0; node < matrix.size(); node++){
+                assertEquals(matrix.getCoconutId(node) == null ? "" : matrix.getCoconutId(node), file.getCoconutId(node));
+                assertEquals(graph.degree(node), file.degree(node));
+                for(int k = 1; k < file.degree(node); k++){
+                    assertTrue("neighbours sorted", file.neighbour(node, k - 1) < file.neighbour(node, k));
+                }
+                for(int other = 0; other < matrix.size(); other++){
+                    double tanimoto = matrix.tanimoto(node, other);
+                    double expected = other != node && tanimoto >= 0.4 ? tanimoto : 0.0;
+                    assertEquals(node + "-" + other, expected, file.tanimotoBetween(node, other), delta);
+                }
+            }
+            for(int node = 0; node < matrix.size(); node++){
+                if(matrix.getCoconutId(node) != null){
+                    assertEquals(node, file.getNode(matrix.getCoconutId(node)));
+                }
+            }
+            assertEquals(-1, file.getNode("CNP-missing"));
+        }
+    }
+
+
+    @Test
+    public void neighboursAreWrittenInNodeOrder() throws IOException {
+        // node 0 is linked to 2 then 1, as the parallel build may fill them
+        SimilarityGraph graph = new SimilarityGraph(new int[]{0, 2, 3, 4}, new int[]{2, 1, 0, 0},
+                new short[]{SimilarityGraph.quantise(0.9), SimilarityGraph.quantise(0.5), SimilarityGraph.quantise(0.5), SimilarityGraph.quantise(0.9)});
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(3, 64);
+        for(int row = 0; row < 3; row++){
+            matrix.setRow(row, "id" + row, "CNP" + row, new BitSet());
+        }
+        Path path = temporaryFile();
+        SimilarityGraphFile.write(graph, matrix, path, 16);
+        SimilarityGraphFile file = SimilarityGraphFile.open(path);
+
+        assertEquals(2, file.numberOfEdges());
+        assertEquals(1, file.neighbour(0, 0));
+        assertEquals(2, file.neighbour(0, 1));
+        assertEquals(0.5, file.tanimoto(0, 0), 1e-4);
+        assertEquals(0.9, file.tanimoto(0, 1), 1e-4);
+        assertEquals(0.9, file.tanimotoBetween(2, 0), 1e-4);
+        assertEquals(0.0, file.tanimotoBetween(1, 2), 0.0);
+        assertEquals(2, file.getNode("CNP2"));
+    }
+
+
+    @Test
+    public void emptyGraph() throws IOException {
+        Path path = temporaryFile();
+        SimilarityGraphFile.write(new SimilarityGraph(new int[]{0}, new int[0], new short[0]), new PackedFingerprintMatrix(0, 64), path, 8);
+        SimilarityGraphFile file = SimilarityGraphFile.open(path);
+        assertEquals(0, file.size());
+        assertEquals(0, file.numberOfEdges());
+        assertEquals(-1, file.getNode("CNP1"));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        Path path = temporaryFile();
+        Files.write(path, new byte[64]);
+        SimilarityGraphFile.open(path);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scoreBitsAre8Or16() throws IOException {
+        SimilarityGraphFile.write(new SimilarityGraph(new int[]{0}, new int[0], new short[0]), new PackedFingerprintMatrix(0, 64), temporaryFile(), 12);
+    }
+}
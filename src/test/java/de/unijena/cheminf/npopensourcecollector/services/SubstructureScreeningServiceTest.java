@@ -0,0 +1,65 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubstructureScreeningServiceTest {
+
+    private final SubstructureScreeningService screeningService = new SubstructureScreeningService();
+
+
+    private BitSet storedBits(String smiles) throws Exception {
+        // same perception as the fingerprints computed at unification time
+        IAtomContainer molecule = QueryMoleculeParser.parse(smiles);
+        return FingerprintType.PUBCHEM.newFingerprinter().getBitFingerprint(molecule).asBitSet();
+    }
+
+    private List<Integer> toList(BitSet bits){
+        List<Integer> list = new ArrayList<>();
+        bits.stream().forEach(list::add);
+        return list;
+    }
+
+
+    @Test
+    public void hydrogenCountBitsAreNotScreened() throws Exception {
+        // PubChem key 0 is ">= 4 H"
+        assertTrue(storedBits("c1ccccc1").get(0));
+
+        BitSet queryBits = screeningService.screeningBits(QueryMoleculeParser.parse("c1ccccc1"), FingerprintType.PUBCHEM);
+        assertFalse(queryBits.get(0));
+        assertFalse(queryBits.isEmpty());
+    }
+
+
+    @Test
+    public void benzeneBitsAreAllSetForHexachlorobenzene() throws Exception {
+        BitSet queryBits = screeningService.screeningBits(QueryMoleculeParser.parse("c1ccccc1"), FingerprintType.PUBCHEM);
+        BitSet targetBits = storedBits("Clc1c(Cl)c(Cl)c(Cl)c(Cl)c1Cl");
+
+        BitSet missing = (BitSet) queryBits.clone();
+        missing.andNot(targetBits);
+        assertTrue("query bits missing from the target: " + missing, missing.isEmpty());
+    }
+
+
+    @Test
+    public void hexachlorobenzeneIsACandidateForBenzene() throws Exception {
+        SubstructureScreeningIndex index = new SubstructureScreeningIndex(FingerprintType.PUBCHEM,
+                Arrays.asList("hexachlorobenzene", "ethanol"), Arrays.asList("CNP1", "CNP2"),
+                Arrays.asList("Clc1c(Cl)c(Cl)c(Cl)c(Cl)c1Cl", "CCO"),
+                Arrays.asList(toList(storedBits("Clc1c(Cl)c(Cl)c(Cl)c(Cl)c1Cl")), toList(storedBits("CCO"))));
+
+        BitSet queryBits = screeningService.screeningBits(QueryMoleculeParser.parse("c1ccccc1"), FingerprintType.PUBCHEM);
+        int[] candidates = index.screen(queryBits).toArray();
+
+        assertArrayEquals(new int[]{0}, candidates);
+    }
+}
@@ -0,0 +1,206 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TanimotoTileEngineTest {
+
+    private static final int LENGTH = TestFingerprints.PUBCHEM_LENGTH;
+
+    private static final double[] THRESHOLDS = {0.3, 0.5, 0.7, 0.85, 1.0};
+
+
+    /**
+     * Random fingerprints of varied popcounts, and subsets of some of them whose Tanimoto with their superset is
+     * exactly one of the thresholds, so that the pruning is tested at its boundary
+     */
+    private List<BitSet> fingerprints(Random random){
+        List<BitSet> fingerprints = TestFingerprints.random(random, 150, LENGTH, 0.2);
+        for(int k = 0; k < 20; k++){
+            BitSet superset = new BitSet();
+            superset.set(k * 20, k * 20 + 20);
+            fingerprints.add(superset);
+            for(int kept : new int[]{6, 10, 14, 17, 20}){
+                BitSet subset = new BitSet();
+                subset.set(k * 20, k * 20 + kept);
+                fingerprints.add(subset);
+            }
+        }
+        fingerprints.add(new BitSet());
+        fingerprints.add(new BitSet());
+        Collections.shuffle(fingerprints, random);
+        return fingerprints;
+    }
+
+    private PackedFingerprintMatrix matrix(List<BitSet> fingerprints, boolean sorted){
+        PackedFingerprintMatrix matrix = new PackedFingerprintMatrix(fingerprints.size(), LENGTH);
+        for(int k = 0; k < fingerprints.size(); k++){
+            matrix.setRow(k, Integer.toString(k), "CNP" + k, fingerprints.get(k));
+        }
+        if(sorted){
+            matrix.sortByCardinality();
+        }
+        return matrix;
+    }
+
+    private static String pair(int a, int b){
+        return Math.min(a, b) + "-" + Math.max(a, b);
+    }
+
+    private static int original(PackedFingerprintMatrix matrix, int row){
+        return Integer.parseInt(matrix.getUniqueNaturalProductId(row));
+    }
+
+    private Map<String, Double> bruteForcePairs(List<BitSet> fingerprints, double threshold){
+        Map<String, Double> pairs = new HashMap<>();
+        for(int i = 0; i < fingerprints.size(); i++){
+            for(int j = i + 1; j < fingerprints.size(); j++){
+                double tanimoto = TestFingerprints.tanimoto(fingerprints.get(i), fingerprints.get(j));
+                if(tanimoto >= threshold){
+                    pairs.put(pair(i, j), tanimoto);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Visits the tiles as the similarity computation does, a row block ends at its first unreachable tile
+     */
+    private Map<String, Double> tilePairs(PackedFingerprintMatrix matrix, int blockSize, double threshold){
+        TanimotoTileEngine engine = new TanimotoTileEngine(matrix, blockSize, threshold);
+        Map<String, Double> pairs = new HashMap<>();
+        SimilarityPairCollector collector = new SimilarityPairCollector() {
+            @Override
+            public void collect(int i, int j, double tanimoto) {
+                assertNull("pair found twice", pairs.put(pair(original(matrix, i), original(matrix, j)), tanimoto));
+            }
+
+            @Override
+            public void tileFinished(int rowBlock, int colBlock) {
+            }
+        };
+        int nbBlocks = engine.getNumberOfBlocks();
+        for(int r = 0; r < nbBlocks; r++){
+            for(int c = r; c < nbBlocks && engine.canReachThreshold(r, c); c++){
+                engine.computeTile(r, c, collector);
+            }
+        }
+        return pairs;
+    }
+
+
+    @Test
+    public void sortedRowsFormPopcountBuckets(){
+        List<BitSet> fingerprints = fingerprints(new Random(1));
+        PackedFingerprintMatrix matrix = matrix(fingerprints, true);
+
+        assertTrue(matrix.isSortedByCardinality());
+        for(int row = 0; row < matrix.size(); row++){
+            assertEquals(fingerprints.get(original(matrix, row)), BitSet.valueOf(matrix.getRow(row)));
+            if(row > 0){
+                assertTrue(matrix.getCardinality(row - 1) <= matrix.getCardinality(row));
+            }
+        }
+        for(int c = -1; c <= LENGTH + 1; c++){
+            int first = matrix.firstRowWithCardinality(c);
+            assertTrue(first == matrix.size() || matrix.getCardinality(first) >= c);
+            assertTrue(first == 0 || matrix.getCardinality(first - 1) < c);
+        }
+    }
+
+
+    @Test
+    public void cardinalityBoundsKeepEveryReachablePopcount(){
+        for(double threshold : THRESHOLDS){
+            for(int a = 0; a <= 200; a++){
+                for(int b = 1; b <= 200; b++){
+                    // the best Tanimoto of two fingerprints with a and b bits set, when one is a subset of the other
+                    if((double) Math.min(a, b) / Math.max(a, b) >= threshold){
+                        assertTrue(a + " " + b + " " + threshold, PackedFingerprintMatrix.minimalCardinality(a, threshold) <= b);
+                        assertTrue(a + " " + b + " " + threshold, b <= PackedFingerprintMatrix.maximalCardinality(a, threshold));
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void tilesFindTheBruteForcePairs(){
+        List<BitSet> fingerprints = fingerprints(new Random(2));
+        for(double threshold : THRESHOLDS){
+            Map<String, Double> expected = bruteForcePairs(fingerprints, threshold);
+            for(int blockSize : new int[]{1, 7, 64, 1000}){
+                String message = "threshold " + threshold + ", blocks of " + blockSize;
+                assertEquals(message, expected, tilePairs(matrix(fingerprints, false), blockSize, threshold));
+                assertEquals(message + ", sorted", expected, tilePairs(matrix(fingerprints, true), blockSize, threshold));
+            }
+        }
+    }
+
+
+    @Test
+    public void searchFindsTheBruteForceHits(){
+        List<BitSet> fingerprints = fingerprints(new Random(3));
+        for(boolean sorted : new boolean[]{false, true}){
+            PackedFingerprintMatrix matrix = matrix(fingerprints, sorted);
+            for(double threshold : THRESHOLDS){
+                TanimotoTileEngine engine = new TanimotoTileEngine(matrix, 64, threshold);
+                for(int q = 0; q < fingerprints.size(); q += 5){
+                    BitSet query = fingerprints.get(q);
+                    Map<Integer, Double> expected = new HashMap<>();
+                    for(int k = 0; k < fingerprints.size(); k++){
+                        double tanimoto = TestFingerprints.tanimoto(query, fingerprints.get(k));
+                        if(tanimoto >= threshold){
+                            expected.put(k, tanimoto);
+                        }
+                    }
+                    Map<Integer, Double> hits = new HashMap<>();
+                    engine.search(matrix.pack(query), query.cardinality(), (row, tanimoto) -> hits.put(original(matrix, row), tanimoto));
+                    assertEquals("query " + q + ", threshold " + threshold, expected, hits);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void nearestNeighboursAreTheBruteForceOnes(){
+        List<BitSet> fingerprints = fingerprints(new Random(4));
+        PackedFingerprintMatrix matrix = matrix(fingerprints, true);
+        for(double threshold : new double[]{0.01, 0.5}){
+            TanimotoTileEngine engine = new TanimotoTileEngine(matrix, 64, threshold);
+            for(int k : new int[]{1, 5, 20}){
+                BoundedNeighbourHeap heap = new BoundedNeighbourHeap(k);
+                for(int row = 0; row < matrix.size(); row++){
+                    List<Double> expected = new ArrayList<>();
+                    for(int other = 0; other < matrix.size(); other++){
+                        double tanimoto = matrix.tanimoto(row, other);
+                        if(other != row && matrix.getCardinality(row) > 0 && tanimoto >= threshold){
+                            expected.add(tanimoto);
+                        }
+                    }
+                    expected.sort(Collections.reverseOrder());
+                    expected = expected.subList(0, Math.min(k, expected.size()));
+
+                    engine.nearestNeighbours(row, heap);
+                    int[] rows = new int[k];
+                    double[] scores = new double[k];
+                    int n = heap.drainDescending(rows, scores);
+                    List<Double> found = new ArrayList<>();
+                    for(int i = 0; i < n; i++){
+                        assertNotEquals(row, rows[i]);
+                        assertEquals(matrix.tanimoto(row, rows[i]), scores[i], 0.0);
+                        found.add(scores[i]);
+                    }
+                    // ties may be broken either way, the scores are the same
+                    assertEquals("row " + row + ", k " + k + ", threshold " + threshold, expected, found);
+                }
+            }
+        }
+    }
+}
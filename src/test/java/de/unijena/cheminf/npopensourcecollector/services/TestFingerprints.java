@@ -0,0 +1,67 @@
+package de.unijena.cheminf.npopensourcecollector.services;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random fingerprints and the reference Tanimoto for the tests of the similarity services
+ */
+final class TestFingerprints {
+
+    // not a multiple of 64, as the PubChem fingerprints
+    static final int PUBCHEM_LENGTH = 881;
+
+
+    private TestFingerprints(){
+    }
+
+
+    /**
+     * Fingerprint of the given length where each bit is set with the given probability
+     */
+    static BitSet random(Random random, int length, double density){
+        BitSet fingerprint = new BitSet();
+        for(int bit = 0; bit < length; bit++){
+            if(random.nextDouble() < density){
+                fingerprint.set(bit);
+            }
+        }
+        return fingerprint;
+    }
+
+
+    /**
+     * n fingerprints of varied popcounts, each with a density drawn between 0 and maxDensity
+     */
+    static List<BitSet> random(Random random, int n, int length, double maxDensity){
+        List<BitSet> fingerprints = new ArrayList<>();
+        for(int k = 0; k < n; k++){
+            fingerprints.add(random(random, length, random.nextDouble() * maxDensity));
+        }
+        return fingerprints;
+    }
+
+
+    /**
+     * Copy of the prototype where each bit is flipped with the given probability
+     */
+    static BitSet noisyCopy(Random random, BitSet prototype, int length, double flipProbability){
+        BitSet fingerprint = (BitSet) prototype.clone();
+        for(int bit = 0; bit < length; bit++){
+            if(random.nextDouble() < flipProbability){
+                fingerprint.flip(bit);
+            }
+        }
+        return fingerprint;
+    }
+
+
+    static double tanimoto(BitSet a, BitSet b){
+        BitSet common = (BitSet) a.clone();
+        common.and(b);
+        int union = a.cardinality() + b.cardinality() - common.cardinality();
+        return union == 0 ? 0.0 : (double) common.cardinality() / union;
+    }
+}